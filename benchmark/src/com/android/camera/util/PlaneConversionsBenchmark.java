@@ -0,0 +1,230 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the pure Java conversions in {@link PlaneConversions}, which back
+ * {@code ImageUtils.yuv_420_888toNv21}, {@code ImageUtils.yuv_420_888toRgb} and
+ * {@code ImageUtils.rgbaImageToRgbaByteArray}, on synthetic frames laid out like those of
+ * jni/benchmark/yuv_jpeg_benchmark, which covers the native libyuv and libjpeg-turbo paths.
+ *
+ * <p>Compile this file with jmh-core on the classpath and jmh-generator-annprocess as
+ * annotation processor, together with PlaneConversions.java, BufferPool.java and the
+ * androidx.annotation jar, then run
+ * <pre>
+ *   java -Xmx4g -cp ... org.openjdk.jmh.Main PlaneConversionsBenchmark -prof gc
+ * </pre>
+ * Scores are ns per frame; MB/s of 4:2:0 input is 1.5 * width * height * 1000 / score. The gc
+ * profiler's gc.alloc.rate.norm is the number of bytes allocated per frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlaneConversionsBenchmark {
+    // ImageUtils.COLOR_MATRIX_BT601_FULL_RANGE
+    private static final int COLOR_MATRIX_BT601_FULL_RANGE = 0;
+
+    /**
+     * A synthetic YUV_420_888 frame, with the plane buffers, pixel strides and row strides an
+     * Image would report for the layout. The u and v planes of NV12 and NV21 frames overlap in
+     * one interleaved buffer. Padded frames have row strides rounded up past the width, like
+     * most camera HALs produce.
+     */
+    @State(Scope.Benchmark)
+    public static class YuvFrame {
+        @Param({"vga", "1080p", "12mp", "50mp"})
+        public String size;
+
+        @Param({"I420", "NV12", "NV21"})
+        public String layout;
+
+        @Param({"false", "true"})
+        public boolean padded;
+
+        int mWidth;
+        int mHeight;
+        ByteBuffer mY;
+        ByteBuffer mU;
+        ByteBuffer mV;
+        int mYRowStride;
+        int mUvPixelStride;
+        int mUvRowStride;
+
+        byte[] mNv21Array;
+        ByteBuffer mNv21Buffer;
+        ByteBuffer mRgb;
+
+        @Setup
+        public void setUp() {
+            mWidth = frameWidth(size);
+            mHeight = frameHeight(size);
+            final int chromaWidth = (mWidth + 1) / 2;
+            final int chromaHeight = (mHeight + 1) / 2;
+            final boolean planar = layout.equals("I420");
+            mYRowStride = padded ? align(mWidth + 1, 64) : mWidth;
+            mUvPixelStride = planar ? 1 : 2;
+            final int chromaRowBytes = chromaWidth * mUvPixelStride;
+            mUvRowStride = padded ? align(chromaRowBytes + 1, 64) : chromaRowBytes;
+
+            // A smooth gradient with some texture, like the native benchmark's frames.
+            mY = ByteBuffer.allocateDirect(mYRowStride * mHeight);
+            for (int y = 0; y < mHeight; y++) {
+                for (int x = 0; x < mWidth; x++) {
+                    mY.put(y * mYRowStride + x, (byte) (x * 255 / mWidth + ((x ^ y) & 15)));
+                }
+            }
+            // The last row of a plane stops right after its last sample.
+            final int planeSize = mUvRowStride * (chromaHeight - 1)
+                    + mUvPixelStride * (chromaWidth - 1) + 1;
+            final ByteBuffer chroma = ByteBuffer.allocateDirect(planar ? 2 * planeSize
+                    : planeSize + 1);
+            for (int i = 0; i < chroma.capacity(); i++) {
+                chroma.put(i, (byte) (96 + (long) i * 31 / chroma.capacity() + (i & 7)));
+            }
+            final ByteBuffer first = slice(chroma, 0, planeSize);
+            final ByteBuffer second = slice(chroma, planar ? planeSize : 1, planeSize);
+            mU = layout.equals("NV21") ? second : first;
+            mV = layout.equals("NV21") ? first : second;
+
+            mNv21Array = new byte[mWidth * mHeight + (mWidth / 2) * (mHeight / 2) * 2];
+            mNv21Buffer = ByteBuffer.allocateDirect(mNv21Array.length);
+            mRgb = ByteBuffer.allocateDirect(
+                    mWidth * mHeight * PlaneConversions.BYTES_PER_RGB_PIX);
+        }
+    }
+
+    /** A synthetic RGBA_8888 plane, with padded rows if requested. */
+    @State(Scope.Benchmark)
+    public static class RgbaFrame {
+        @Param({"vga", "1080p", "12mp", "50mp"})
+        public String size;
+
+        @Param({"false", "true"})
+        public boolean padded;
+
+        int mWidth;
+        int mHeight;
+        int mRowStride;
+        ByteBuffer mRgba;
+
+        @Setup
+        public void setUp() {
+            mWidth = frameWidth(size);
+            mHeight = frameHeight(size);
+            mRowStride = padded ? align(mWidth * 4 + 1, 64) : mWidth * 4;
+            mRgba = ByteBuffer.allocateDirect(mRowStride * mHeight);
+            for (int i = 0; i < mRgba.capacity(); i++) {
+                mRgba.put(i, (byte) i);
+            }
+        }
+    }
+
+    @Benchmark
+    public byte[] yuv420ToNv21Array(YuvFrame frame) {
+        PlaneConversions.yuv420ToNv21(frame.mY, frame.mYRowStride,
+                frame.mU, frame.mUvPixelStride, frame.mUvRowStride,
+                frame.mV, frame.mUvPixelStride, frame.mUvRowStride,
+                frame.mWidth, frame.mHeight, frame.mNv21Array);
+        return frame.mNv21Array;
+    }
+
+    @Benchmark
+    public ByteBuffer yuv420ToNv21Buffer(YuvFrame frame) {
+        frame.mNv21Buffer.clear();
+        PlaneConversions.yuv420ToNv21(frame.mY, frame.mYRowStride,
+                frame.mU, frame.mUvPixelStride, frame.mUvRowStride,
+                frame.mV, frame.mUvPixelStride, frame.mUvRowStride,
+                frame.mWidth, frame.mHeight, frame.mNv21Buffer);
+        return frame.mNv21Buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer yuv420ToRgb(YuvFrame frame) {
+        frame.mRgb.clear();
+        PlaneConversions.yuv420ToRgb(frame.mY, 1, frame.mYRowStride,
+                frame.mU, frame.mUvPixelStride, frame.mUvRowStride,
+                frame.mV, frame.mUvPixelStride, frame.mUvRowStride,
+                frame.mWidth, frame.mHeight, COLOR_MATRIX_BT601_FULL_RANGE, frame.mRgb);
+        return frame.mRgb;
+    }
+
+    @Benchmark
+    public byte[] rgbaToByteArray(RgbaFrame frame) {
+        frame.mRgba.rewind();
+        return PlaneConversions.rgbaToByteArray(frame.mRgba, 4, frame.mRowStride,
+                frame.mWidth, frame.mHeight);
+    }
+
+    private static int frameWidth(String size) {
+        switch (size) {
+            case "vga":
+                return 640;
+            case "1080p":
+                return 1920;
+            case "12mp":
+                return 4000;
+            case "50mp":
+                return 8160;
+            default:
+                throw new IllegalArgumentException("Unknown frame size: " + size);
+        }
+    }
+
+    private static int frameHeight(String size) {
+        switch (size) {
+            case "vga":
+                return 480;
+            case "1080p":
+                return 1080;
+            case "12mp":
+                return 3000;
+            case "50mp":
+                return 6120;
+            default:
+                throw new IllegalArgumentException("Unknown frame size: " + size);
+        }
+    }
+
+    private static int align(int value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+    /** Returns a view of {@code length} bytes of {@code buffer} from {@code offset}. */
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+}
@@ -0,0 +1,30 @@
+
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+# Benchmarks the native conversion and codec paths on synthetic frames.  Build
+# with ndk-build, push to a device and run
+#   adb shell /data/local/tmp/yuv_jpeg_benchmark [filter]
+# or build it for the host with jni/host/Makefile.
+
+LOCAL_C_INCLUDES := $(LOCAL_PATH) \
+                    $(LOCAL_PATH)/../image-processing-util \
+                    $(LOCAL_PATH)/../jpegutil
+
+LOCAL_CFLAGS := -ffast-math \
+                -O3 \
+                -funroll-loops \
+                -Wextra
+
+LOCAL_SHARED_LIBRARIES := libjpeg \
+                          libyuv
+
+LOCAL_SRC_FILES := yuv_jpeg_benchmark.cpp \
+                   ../image-processing-util/image_processing_util.cc \
+                   ../jpegutil/jpegexif.cpp \
+                   ../jpegutil/jpegtransform.cpp \
+                   ../jpegutil/jpegutil.cpp
+
+LOCAL_MODULE := yuv_jpeg_benchmark
+
+include $(BUILD_EXECUTABLE)
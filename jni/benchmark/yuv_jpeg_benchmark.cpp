@@ -0,0 +1,423 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Benchmarks the compute kernels behind the JNI entry points of jni_jpegutil
+ * and image_processing_util_jni, on synthetic YUV_420_888 frames.
+ *
+ * Usage: yuv_jpeg_benchmark [filter]
+ *
+ * Every benchmark whose name contains filter is run, for each frame size and
+ * chroma layout, and reported in ns/frame and in MB/s of 4:2:0 input.  The
+ * encoders also report the size of their output, so that the entropy coding
+ * modes can be weighed by time against size.
+ *
+ * The pure Java fallbacks of ImageUtils are benchmarked under JMH by
+ * benchmark/src/com/android/camera/util/PlaneConversionsBenchmark.java.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include <algorithm>
+#include <functional>
+#include <memory>
+#include <string>
+#include <vector>
+
+#include "image_processing_util.h"
+#include "jpegtransform.h"
+#include "jpegutil.h"
+
+namespace {
+
+// Frames are timed until both limits are reached, after one warm-up frame.
+const int kMinIterations = 5;
+const int64_t kMinNanos = 500 * 1000 * 1000LL;
+
+const int kJpegQuality = 95;
+
+struct FrameSize {
+  const char* name;
+  int width;
+  int height;
+};
+
+const FrameSize kFrameSizes[] = {
+    {"vga", 640, 480},
+    {"1080p", 1920, 1080},
+    {"12mp", 4000, 3000},
+    {"50mp", 8160, 6120},
+};
+
+enum Layout { kI420, kNV12, kNV21 };
+
+/**
+ * A synthetic YUV_420_888 frame, with the plane pointers, pixel strides and
+ * row strides an Android Image would report for the layout.  Padded frames
+ * have row strides rounded up past the width, like most camera HALs produce.
+ */
+class Frame {
+ public:
+  Frame(int width, int height, Layout layout, bool padded)
+      : id_(next_id_++), width_(width), height_(height), layout_(layout) {
+    const int chroma_width = (width + 1) / 2;
+    const int chroma_height = (height + 1) / 2;
+    y_row_stride_ = padded ? Align(width + 1, 64) : width;
+    uv_pixel_stride_ = layout == kI420 ? 1 : 2;
+    const int chroma_row_bytes = chroma_width * uv_pixel_stride_;
+    uv_row_stride_ =
+        padded ? Align(chroma_row_bytes + 1, 64) : chroma_row_bytes;
+
+    y_.resize(static_cast<size_t>(y_row_stride_) * height);
+    // Semi-planar frames share one interleaved plane, like Android's NV12 and
+    // NV21 images whose u and v planes overlap.
+    chroma_.resize(static_cast<size_t>(uv_row_stride_) * chroma_height *
+                   (layout == kI420 ? 2 : 1) + 1);
+
+    // A smooth gradient with some texture, so that jpeg sizes are realistic.
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        y_[y * y_row_stride_ + x] = (x * 255 / width + ((x ^ y) & 15)) & 0xFF;
+      }
+    }
+    for (size_t i = 0; i < chroma_.size(); i++) {
+      chroma_[i] = 96 + (i * 31 / chroma_.size()) + (i & 7);
+    }
+
+    switch (layout) {
+      case kI420:
+        u_ = chroma_.data();
+        v_ = chroma_.data() +
+             static_cast<size_t>(uv_row_stride_) * chroma_height;
+        break;
+      case kNV12:
+        u_ = chroma_.data();
+        v_ = chroma_.data() + 1;
+        break;
+      case kNV21:
+        v_ = chroma_.data();
+        u_ = chroma_.data() + 1;
+        break;
+    }
+  }
+
+  /** Returns an id that is unique to this frame, for caching derived data. */
+  int id() const { return id_; }
+  int width() const { return width_; }
+  int height() const { return height_; }
+  Layout layout() const { return layout_; }
+  unsigned char* y() { return y_.data(); }
+  unsigned char* u() { return u_; }
+  unsigned char* v() { return v_; }
+  int y_row_stride() const { return y_row_stride_; }
+  int uv_row_stride() const { return uv_row_stride_; }
+  int uv_pixel_stride() const { return uv_pixel_stride_; }
+
+  /** Returns the size of the frame as packed 4:2:0, which MB/s refers to. */
+  double Bytes() const { return width_ * static_cast<double>(height_) * 1.5; }
+
+ private:
+  static int Align(int value, int alignment) {
+    return (value + alignment - 1) / alignment * alignment;
+  }
+
+  static int next_id_;
+
+  const int id_;
+  const int width_;
+  const int height_;
+  const Layout layout_;
+  int y_row_stride_;
+  int uv_row_stride_;
+  int uv_pixel_stride_;
+  std::vector<unsigned char> y_;
+  std::vector<unsigned char> chroma_;
+  unsigned char* u_;
+  unsigned char* v_;
+};
+
+int Frame::next_id_ = 0;
+
+int64_t NowNanos() {
+  timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+/**
+ * Returns the median time of one call of op, in nanoseconds.  The result of the
+ * warm-up call is stored in result.
+ */
+int64_t TimeOp(const std::function<int()>& op, int* result) {
+  *result = op();
+  if (*result < 0) {
+    return -1;
+  }
+  std::vector<int64_t> samples;
+  int64_t start = NowNanos();
+  while (static_cast<int>(samples.size()) < kMinIterations ||
+         NowNanos() - start < kMinNanos) {
+    int64_t t0 = NowNanos();
+    op();
+    samples.push_back(NowNanos() - t0);
+  }
+  std::nth_element(samples.begin(), samples.begin() + samples.size() / 2,
+                   samples.end());
+  return samples[samples.size() / 2];
+}
+
+/** A benchmark over one frame. */
+struct Benchmark {
+  const char* name;
+  std::function<int(Frame&)> run;
+};
+
+int EncodeJpeg(Frame& frame, std::vector<unsigned char>& out, int num_threads,
+               int flags = 0) {
+  return jpegutil::Compress(
+      frame.width(), frame.height(), frame.y(), 1, frame.y_row_stride(),
+      frame.u(), frame.uv_pixel_stride(), frame.uv_row_stride(), frame.v(),
+      frame.uv_pixel_stride(), frame.uv_row_stride(), out.data(), out.size(),
+      kJpegQuality, 0, 0, frame.width(), frame.height(), 0, num_threads, flags);
+}
+
+std::vector<Benchmark> CreateBenchmarks() {
+  std::vector<Benchmark> benchmarks;
+
+  // ImageProcessingUtil.convertYUVToNV21.
+  benchmarks.push_back({"android420_to_nv21", [](Frame& frame) {
+    static std::vector<unsigned char> dst;
+    dst.resize(image_processing_util::GetNV21ByteCount(frame.width(),
+                                                       frame.height()));
+    return image_processing_util::Android420ToNV21(
+        frame.y(), frame.y_row_stride(), frame.u(), frame.uv_row_stride(),
+        frame.v(), frame.uv_row_stride(), 1, frame.uv_pixel_stride(),
+        dst.data(), frame.width(), frame.height());
+  }});
+
+  // ImageProcessingUtil.rotateYUV, into a frame of the same layout.
+  benchmarks.push_back({"android420_rotate_90", [](Frame& frame) {
+    static std::unique_ptr<Frame> dst;
+    if (!dst || dst->width() != frame.height() ||
+        dst->height() != frame.width() || dst->layout() != frame.layout()) {
+      dst.reset(
+          new Frame(frame.height(), frame.width(), frame.layout(), false));
+    }
+    return image_processing_util::Android420Rotate(
+        frame.y(), frame.y_row_stride(), frame.u(), frame.uv_row_stride(),
+        frame.v(), frame.uv_row_stride(), frame.uv_pixel_stride(), dst->y(),
+        dst->y_row_stride(), 1, dst->u(), dst->uv_row_stride(),
+        dst->uv_pixel_stride(), dst->v(), dst->uv_row_stride(),
+        dst->uv_pixel_stride(), nullptr, nullptr, nullptr, frame.width(),
+        frame.height(), libyuv::kRotate90);
+  }});
+
+  // ImageProcessingUtil.convertYUVToRGB and convertYUVToBitmap.
+  benchmarks.push_back({"android420_to_abgr", [](Frame& frame) {
+    static std::vector<unsigned char> dst;
+    dst.resize(static_cast<size_t>(frame.width()) * frame.height() * 4);
+    return image_processing_util::Android420ToABGR(
+        frame.y(), frame.y_row_stride(), frame.u(), frame.uv_row_stride(),
+        frame.v(), frame.uv_row_stride(), frame.uv_pixel_stride(), dst.data(),
+        frame.width() * 4, &libyuv::kYvuJPEGConstants, frame.width(),
+        frame.height());
+  }});
+
+  // ImageProcessingUtil.convertYUVToRGB with a rotation of 90 degrees.
+  benchmarks.push_back({"android420_to_abgr_rotate_90", [](Frame& frame) {
+    static std::vector<unsigned char> dst;
+    dst.resize(static_cast<size_t>(frame.width()) * frame.height() * 4);
+    return image_processing_util::Android420ToABGRRotate(
+        frame.y(), frame.y_row_stride(), frame.u(), frame.uv_row_stride(),
+        frame.v(), frame.uv_row_stride(), frame.uv_pixel_stride(), dst.data(),
+        frame.height() * 4, &libyuv::kYvuJPEGConstants, frame.width(),
+        frame.height(), libyuv::kRotate90, false);
+  }});
+
+  // The scaled analysis conversions, down to VGA.
+  benchmarks.push_back({"android420_scale_to_vga_abgr", [](Frame& frame) {
+    static std::vector<unsigned char> dst(640 * 480 * 4);
+    return image_processing_util::Android420ScaleToABGR(
+        frame.y(), frame.y_row_stride(), frame.u(), frame.uv_row_stride(),
+        frame.v(), frame.uv_row_stride(), frame.uv_pixel_stride(), 0, 0,
+        frame.width(), frame.height(), dst.data(), 640 * 4, 640, 480,
+        libyuv::kFilterBilinear, &libyuv::kYvuJPEGConstants);
+  }});
+
+  // JpegUtilNative.compressJpegFromYUV420Image.
+  benchmarks.push_back({"jpeg_encode", [](Frame& frame) {
+    static std::vector<unsigned char> out;
+    out.resize(static_cast<size_t>(frame.Bytes()) * 2 + 65536);
+    return EncodeJpeg(frame, out, 1);
+  }});
+
+  benchmarks.push_back({"jpeg_encode_4_threads", [](Frame& frame) {
+    static std::vector<unsigned char> out;
+    out.resize(static_cast<size_t>(frame.Bytes()) * 2 + 65536);
+    return EncodeJpeg(frame, out, 4);
+  }});
+
+  // The ENCODE_* flags of compressJpegFromYUV420Image.
+  benchmarks.push_back({"jpeg_encode_optimized", [](Frame& frame) {
+    static std::vector<unsigned char> out;
+    out.resize(static_cast<size_t>(frame.Bytes()) * 2 + 65536);
+    return EncodeJpeg(frame, out, 1, jpegutil::kEncodeOptimizeCoding);
+  }});
+
+  benchmarks.push_back({"jpeg_encode_progressive", [](Frame& frame) {
+    static std::vector<unsigned char> out;
+    out.resize(static_cast<size_t>(frame.Bytes()) * 2 + 65536);
+    return EncodeJpeg(frame, out, 1, jpegutil::kEncodeProgressive);
+  }});
+
+  benchmarks.push_back({"jpeg_encode_arithmetic", [](Frame& frame) {
+    static std::vector<unsigned char> out;
+    out.resize(static_cast<size_t>(frame.Bytes()) * 2 + 65536);
+    return EncodeJpeg(frame, out, 1, jpegutil::kEncodeArithmetic);
+  }});
+
+  // JpegUtilNative.compressJpegFromYUV420ImageToSize, with a budget of one
+  // bit per pixel.
+  benchmarks.push_back({"jpeg_encode_to_size", [](Frame& frame) {
+    static std::vector<unsigned char> out;
+    out.resize(static_cast<size_t>(frame.width()) * frame.height() / 8);
+    return jpegutil::CompressToSize(
+        frame.width(), frame.height(), frame.y(), 1, frame.y_row_stride(),
+        frame.u(), frame.uv_pixel_stride(), frame.uv_row_stride(), frame.v(),
+        frame.uv_pixel_stride(), frame.uv_row_stride(), out.data(), out.size(),
+        kJpegQuality, 0, 0, frame.width(), frame.height(), 0);
+  }});
+
+  // JpegUtilNative.compressJpegFromImage with a YUV_444_888 image.  The frames
+  // are 4:2:0, so their luma plane stands in for both chroma planes.
+  benchmarks.push_back({"jpeg_encode_444", [](Frame& frame) {
+    static std::vector<unsigned char> out;
+    out.resize(static_cast<size_t>(frame.width()) * frame.height() * 3 + 65536);
+    return jpegutil::CompressYCbCr(
+        frame.width(), frame.height(), 1, 1, frame.y(), 1, frame.y_row_stride(),
+        frame.y(), 1, frame.y_row_stride(), frame.y(), 1, frame.y_row_stride(),
+        out.data(), out.size(), kJpegQuality, 0, 0, frame.width(),
+        frame.height(), 0);
+  }});
+
+  // JpegUtilNative.compressJpegFromImage with a Y8 image, e.g. an IR frame.
+  benchmarks.push_back({"jpeg_encode_gray", [](Frame& frame) {
+    static std::vector<unsigned char> out;
+    out.resize(static_cast<size_t>(frame.Bytes()) * 2 + 65536);
+    return jpegutil::CompressGrayscale(
+        frame.width(), frame.height(), frame.y(), 1, frame.y_row_stride(),
+        out.data(), out.size(), kJpegQuality, 0, 0, frame.width(),
+        frame.height(), 0);
+  }});
+
+  // JpegUtilNative.compressJpegFromYUV420ImageWithExif, with the 160x120
+  // thumbnail still captures get.  Compare with jpeg_encode.
+  benchmarks.push_back({"jpeg_encode_exif", [](Frame& frame) {
+    static std::vector<unsigned char> out;
+    out.resize(static_cast<size_t>(frame.Bytes()) * 2 + 65536);
+    return jpegutil::CompressWithExif(
+        frame.width(), frame.height(), frame.y(), 1, frame.y_row_stride(),
+        frame.u(), frame.uv_pixel_stride(), frame.uv_row_stride(), frame.v(),
+        frame.uv_pixel_stride(), frame.uv_row_stride(), out.data(), out.size(),
+        kJpegQuality, 0, 0, frame.width(), frame.height(), 0, 1, 160, 120);
+  }});
+
+  // JpegEncoderSession, which keeps the compressor between frames.
+  benchmarks.push_back({"jpeg_encode_session", [](Frame& frame) {
+    static std::vector<unsigned char> out;
+    static jpegutil::EncoderSession* session = nullptr;
+    if (session == nullptr || session->width() != frame.width() ||
+        session->height() != frame.height()) {
+      delete session;
+      session = new jpegutil::EncoderSession(frame.width(), frame.height(),
+                                             kJpegQuality);
+    }
+    out.resize(static_cast<size_t>(frame.Bytes()) * 2 + 65536);
+    return session->Compress(
+        frame.y(), 1, frame.y_row_stride(), frame.u(), frame.uv_pixel_stride(),
+        frame.uv_row_stride(), frame.v(), frame.uv_pixel_stride(),
+        frame.uv_row_stride(), out.data(), out.size(), 0, 0, frame.width(),
+        frame.height(), 0);
+  }});
+
+  // JpegUtilNative.transformJpegLossless.  Only the encode outside of the
+  // timed op depends on the layout.
+  benchmarks.push_back({"jpeg_rotate_90_lossless", [](Frame& frame) {
+    static std::vector<unsigned char> jpeg;
+    static std::vector<unsigned char> out;
+    static int encoded_id = -1;
+    if (encoded_id != frame.id()) {
+      jpeg.resize(static_cast<size_t>(frame.Bytes()) * 2 + 65536);
+      int size = EncodeJpeg(frame, jpeg, 1);
+      if (size < 0) {
+        return size;
+      }
+      jpeg.resize(size);
+      out.resize(jpeg.size() + 65536);
+      encoded_id = frame.id();
+    }
+    jpegutil::TransformOptions options;
+    options.transform = jpegutil::kTransformRotate90;
+    options.trim = true;
+    return jpegutil::TransformJpeg(jpeg.data(), jpeg.size(), out.data(),
+                                   out.size(), options, nullptr);
+  }});
+
+  return benchmarks;
+}
+
+}  // namespace
+
+int main(int argc, char** argv) {
+  const char* filter = argc > 1 ? argv[1] : "";
+  const char* kLayoutNames[] = {"i420", "nv12", "nv21"};
+
+  printf("%-30s %-6s %-12s %14s %10s %10s\n", "benchmark", "size", "layout",
+         "ns/frame", "MB/s", "bytes");
+  std::vector<Benchmark> benchmarks = CreateBenchmarks();
+  for (const FrameSize& size : kFrameSizes) {
+    for (int layout = kI420; layout <= kNV21; layout++) {
+      for (int padded = 0; padded <= 1; padded++) {
+        Frame frame(size.width, size.height, static_cast<Layout>(layout),
+                    padded);
+        std::string layout_name =
+            std::string(kLayoutNames[layout]) + (padded ? "-padded" : "");
+        for (const Benchmark& benchmark : benchmarks) {
+          if (strstr(benchmark.name, filter) == nullptr) {
+            continue;
+          }
+          int result;
+          int64_t nanos =
+              TimeOp([&]() { return benchmark.run(frame); }, &result);
+          if (nanos < 0) {
+            printf("%-30s %-6s %-12s %14s\n", benchmark.name, size.name,
+                   layout_name.c_str(), "FAILED");
+            continue;
+          }
+          // The conversions return 0, only the encoders produce a size.
+          std::string bytes = result > 0 ? std::to_string(result) : "-";
+          printf("%-30s %-6s %-12s %14lld %10.1f %10s\n", benchmark.name,
+                 size.name, layout_name.c_str(), static_cast<long long>(nanos),
+                 frame.Bytes() / 1e6 / (nanos / 1e9), bytes.c_str());
+          fflush(stdout);
+        }
+      }
+    }
+  }
+  return 0;
+}
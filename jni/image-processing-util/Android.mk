@@ -21,7 +21,8 @@ LOCAL_LDLIBS := -landroid \
 
 LOCAL_SHARED_LIBRARIES := libyuv
 
-LOCAL_SRC_FILES := image_processing_util_jni.cc
+LOCAL_SRC_FILES := image_processing_util.cc \
+                   image_processing_util_jni.cc
 
 LOCAL_SDK_VERSION := 17
 
@@ -0,0 +1,848 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "image_processing_util.h"
+
+#include <algorithm>
+#include <cinttypes>
+#include <cstdlib>
+#include <cstring>
+
+#include "libyuv/convert.h"
+#include "libyuv/planar_functions.h"
+#include "libyuv/rotate_argb.h"
+
+namespace image_processing_util {
+
+#define align_buffer_64(var, size)                                           \
+  uint8_t* var##_mem = (uint8_t*)(malloc((size) + 63));         /* NOLINT */ \
+  uint8_t* var = (uint8_t*)(((intptr_t)(var##_mem) + 63) & ~63) /* NOLINT */
+
+#define free_aligned_buffer_64(var) \
+  free(var##_mem);                  \
+  var = 0
+
+static void weave_pixels(const uint8_t* src_u,
+                        const uint8_t* src_v,
+                        int src_pixel_stride_uv,
+                        uint8_t* dst_uv,
+                        int width) {
+    int i;
+    for (i = 0; i < width; ++i) {
+        dst_uv[0] = *src_u;
+        dst_uv[1] = *src_v;
+        dst_uv += 2;
+        src_u += src_pixel_stride_uv;
+        src_v += src_pixel_stride_uv;
+    }
+}
+
+libyuv::RotationMode GetRotationMode(int rotation) {
+    libyuv::RotationMode mode = libyuv::kRotate0;
+    switch (rotation) {
+        case 0:
+            mode = libyuv::kRotate0;
+            break;
+        case 90:
+            mode = libyuv::kRotate90;
+            break;
+        case 180:
+            mode = libyuv::kRotate180;
+            break;
+        case 270:
+            mode = libyuv::kRotate270;
+            break;
+        default:
+            break;
+    }
+    return mode;
+}
+
+// Returns the libyuv constants for |color_matrix|, or nullptr if it is not a ColorMatrix. The
+// "Yvu" variants are used since the u and v planes are swapped to produce ABGR, see
+// Android420ToABGR().
+const libyuv::YuvConstants* GetYvuConstants(int color_matrix) {
+    switch (color_matrix) {
+        case kColorMatrixBt601FullRange:
+            return &libyuv::kYvuJPEGConstants;
+        case kColorMatrixBt601LimitedRange:
+            return &libyuv::kYvuI601Constants;
+        case kColorMatrixBt709FullRange:
+            return &libyuv::kYvuF709Constants;
+        case kColorMatrixBt709LimitedRange:
+            return &libyuv::kYvuH709Constants;
+        case kColorMatrixBt2020FullRange:
+            return &libyuv::kYvuV2020Constants;
+        case kColorMatrixBt2020LimitedRange:
+            return &libyuv::kYvu2020Constants;
+        default:
+            return nullptr;
+    }
+}
+
+// Helper function to convert Android420 to ABGR with the given libyuv "Yvu" constants.
+int Android420ToABGR(const uint8_t* src_y,
+                     int src_stride_y,
+                     const uint8_t* src_u,
+                     int src_stride_u,
+                     const uint8_t* src_v,
+                     int src_stride_v,
+                     int src_pixel_stride_uv,
+                     uint8_t* dst_abgr,
+                     int dst_stride_abgr,
+                     const libyuv::YuvConstants* yvu_constants,
+                     int width,
+                     int height) {
+    return libyuv::Android420ToARGBMatrix(src_y,
+                                          src_stride_y,
+                                          src_v,
+                                          src_stride_v,
+                                          src_u,
+                                          src_stride_u,
+                                          src_pixel_stride_uv,
+                                          dst_abgr,
+                                          dst_stride_abgr,
+                                          yvu_constants,
+                                          width,
+                                          height);
+}
+
+
+// Source tiles are converted into a cache resident scratch area of this many pixels square and
+// rotated from there into the destination. Must be even, so that every tile starts on a chroma
+// sample.
+static const int kRotateTileSize = 64;
+
+// Helper function to convert the |width| x |height| region at (|x|, |y|) of an Android420 image of
+// |image_width| x |image_height| to ABGR with |yvu_constants|. If |last_pixel_missing| is true,
+// the yuv data of the bottom-right image pixel is missing and that pixel is left unconverted.
+static int Android420RegionToABGR(const uint8_t* src_y,
+                                  int src_stride_y,
+                                  const uint8_t* src_u,
+                                  int src_stride_u,
+                                  const uint8_t* src_v,
+                                  int src_stride_v,
+                                  int src_pixel_stride_uv,
+                                  uint8_t* dst_abgr,
+                                  int dst_stride_abgr,
+                                  const libyuv::YuvConstants* yvu_constants,
+                                  int image_width,
+                                  int image_height,
+                                  int x,
+                                  int y,
+                                  int width,
+                                  int height,
+                                  bool last_pixel_missing) {
+    int rows = (last_pixel_missing && y + height == image_height) ? height - 1 : height;
+    int result = 0;
+    if (rows > 0) {
+        result = Android420ToABGR(src_y + y * src_stride_y + x,
+                                  src_stride_y,
+                                  src_u + (y / 2) * src_stride_u + (x / 2) * src_pixel_stride_uv,
+                                  src_stride_u,
+                                  src_v + (y / 2) * src_stride_v + (x / 2) * src_pixel_stride_uv,
+                                  src_stride_v,
+                                  src_pixel_stride_uv,
+                                  dst_abgr,
+                                  dst_stride_abgr,
+                                  yvu_constants,
+                                  width,
+                                  rows);
+    }
+    if (result == 0 && rows < height) {
+        // Convert the last row without the last pixel.
+        int last_row = y + rows;
+        int last_row_width = (x + width == image_width) ? width - 1 : width;
+        if (last_row_width > 0) {
+            result = Android420ToABGR(
+                    src_y + last_row * src_stride_y + x,
+                    src_stride_y,
+                    src_u + (last_row / 2) * src_stride_u + (x / 2) * src_pixel_stride_uv,
+                    src_stride_u,
+                    src_v + (last_row / 2) * src_stride_v + (x / 2) * src_pixel_stride_uv,
+                    src_stride_v,
+                    src_pixel_stride_uv,
+                    dst_abgr + rows * dst_stride_abgr,
+                    dst_stride_abgr,
+                    yvu_constants,
+                    last_row_width,
+                    1);
+        }
+    }
+    return result;
+}
+
+// Returns the pixel of |dst_abgr| that pixel (|x|, |y|) of a |width| x |height| image lands on
+// when the image is rotated clockwise by |mode|.
+static uint8_t* RotatedPixel(uint8_t* dst_abgr,
+                             int dst_stride_abgr,
+                             int x,
+                             int y,
+                             int width,
+                             int height,
+                             libyuv::RotationMode mode) {
+    switch (mode) {
+        case libyuv::kRotate90:
+            return dst_abgr + x * dst_stride_abgr + (height - 1 - y) * 4;
+        case libyuv::kRotate180:
+            return dst_abgr + (height - 1 - y) * dst_stride_abgr + (width - 1 - x) * 4;
+        case libyuv::kRotate270:
+            return dst_abgr + (width - 1 - x) * dst_stride_abgr + y * 4;
+        default:
+            return dst_abgr + y * dst_stride_abgr + x * 4;
+    }
+}
+
+// Returns the top-left pixel of |dst_abgr| covered by the |tile_width| x |tile_height| tile at
+// (|tile_x|, |tile_y|) of a |width| x |height| image, once rotated clockwise by |mode|.
+static uint8_t* RotatedTileOrigin(uint8_t* dst_abgr,
+                                  int dst_stride_abgr,
+                                  int tile_x,
+                                  int tile_y,
+                                  int tile_width,
+                                  int tile_height,
+                                  int width,
+                                  int height,
+                                  libyuv::RotationMode mode) {
+    switch (mode) {
+        case libyuv::kRotate90:
+            // The bottom-left corner of the tile ends up top-left.
+            return RotatedPixel(dst_abgr, dst_stride_abgr, tile_x, tile_y + tile_height - 1,
+                                width, height, mode);
+        case libyuv::kRotate180:
+            return RotatedPixel(dst_abgr, dst_stride_abgr, tile_x + tile_width - 1,
+                                tile_y + tile_height - 1, width, height, mode);
+        case libyuv::kRotate270:
+            // The top-right corner of the tile ends up top-left.
+            return RotatedPixel(dst_abgr, dst_stride_abgr, tile_x + tile_width - 1, tile_y,
+                                width, height, mode);
+        default:
+            return RotatedPixel(dst_abgr, dst_stride_abgr, tile_x, tile_y, width, height, mode);
+    }
+}
+
+// Layouts of the chroma planes of an Android420 image that libyuv handles without a per-pixel
+// weave.
+enum Yuv420Layout {
+    kYuv420LayoutI420,
+    kYuv420LayoutNV12,
+    kYuv420LayoutNV21,
+    kYuv420LayoutOther,
+};
+
+static Yuv420Layout GetYuv420Layout(const uint8_t* u,
+                                    int stride_u,
+                                    int pixel_stride_u,
+                                    const uint8_t* v,
+                                    int stride_v,
+                                    int pixel_stride_v) {
+    const ptrdiff_t vu_off = v - u;
+    if (pixel_stride_u == 1 && pixel_stride_v == 1) {
+        return kYuv420LayoutI420;
+    }
+    if (pixel_stride_u == 2 && pixel_stride_v == 2 && stride_u == stride_v) {
+        if (vu_off == 1) {
+            return kYuv420LayoutNV12;
+        }
+        if (vu_off == -1) {
+            return kYuv420LayoutNV21;
+        }
+    }
+    return kYuv420LayoutOther;
+}
+
+// Chroma rows of a semi-planar destination that are rotated per pass of
+// Android420ChromaToSemiPlanarRotate.
+static const int kRotateBandRows = 16;
+
+// Helper function to rotate the I420, NV12 or NV21 chroma planes of an Android420 image into the
+// interleaved chroma plane of an NV12 image, or of an NV21 image if |dst_is_vu| is true. The
+// destination is produced kRotateBandRows rows at a time: the source rectangle that lands on
+// those rows is rotated into a small planar scratch band, which is then interleaved into place.
+static int Android420ChromaToSemiPlanarRotate(const uint8_t* src_u,
+                                              int src_stride_u,
+                                              const uint8_t* src_v,
+                                              int src_stride_v,
+                                              int src_pixel_stride_uv,
+                                              uint8_t* dst_uv,
+                                              int dst_stride_uv,
+                                              bool dst_is_vu,
+                                              int halfwidth,
+                                              int halfheight,
+                                              libyuv::RotationMode mode) {
+    bool flip_wh = (mode == libyuv::kRotate90 || mode == libyuv::kRotate270);
+    int rotated_halfwidth = flip_wh ? halfheight : halfwidth;
+    int rotated_halfheight = flip_wh ? halfwidth : halfheight;
+
+    align_buffer_64(band, rotated_halfwidth * kRotateBandRows * 2);
+    uint8_t* band_u = band;
+    uint8_t* band_v = band + rotated_halfwidth * kRotateBandRows;
+
+    int result = 0;
+    for (int row = 0; result == 0 && row < rotated_halfheight; row += kRotateBandRows) {
+        int rows = std::min(kRotateBandRows, rotated_halfheight - row);
+
+        // The source rectangle that lands on rotated rows [row, row + rows).
+        int x = 0;
+        int y = 0;
+        int w = halfwidth;
+        int h = halfheight;
+        switch (mode) {
+            case libyuv::kRotate90:
+                x = row;
+                w = rows;
+                break;
+            case libyuv::kRotate180:
+                y = halfheight - row - rows;
+                h = rows;
+                break;
+            case libyuv::kRotate270:
+                x = halfwidth - row - rows;
+                w = rows;
+                break;
+            default:
+                y = row;
+                h = rows;
+                break;
+        }
+
+        // Only the chroma is rotated here, so the y plane is null. Sizes are in luma samples.
+        result = libyuv::Android420ToI420Rotate(
+                nullptr,
+                0,
+                src_u + y * src_stride_u + x * src_pixel_stride_uv,
+                src_stride_u,
+                src_v + y * src_stride_v + x * src_pixel_stride_uv,
+                src_stride_v,
+                src_pixel_stride_uv,
+                nullptr,
+                0,
+                band_u,
+                rotated_halfwidth,
+                band_v,
+                rotated_halfwidth,
+                w * 2,
+                h * 2,
+                mode);
+        if (result == 0) {
+            libyuv::MergeUVPlane(dst_is_vu ? band_v : band_u,
+                                 rotated_halfwidth,
+                                 dst_is_vu ? band_u : band_v,
+                                 rotated_halfwidth,
+                                 dst_uv + row * dst_stride_uv,
+                                 dst_stride_uv,
+                                 rotated_halfwidth,
+                                 rows);
+        }
+    }
+
+    free_aligned_buffer_64(band);
+    return result;
+}
+
+// The scaling filters selectable from Java, in the order of the ImageProcessingUtil.SCALE_FILTER_*
+// constants.
+bool GetFilterMode(int filter, libyuv::FilterMode* mode) {
+    switch (filter) {
+        case 0:
+            *mode = libyuv::kFilterNone;
+            return true;
+        case 1:
+            *mode = libyuv::kFilterBilinear;
+            return true;
+        case 2:
+            *mode = libyuv::kFilterBox;
+            return true;
+        default:
+            return false;
+    }
+}
+
+// Helper function to crop the |crop_width| x |crop_height| region at (|crop_x|, |crop_y|) of an
+// Android420 image, scale it to |dst_width| x |dst_height| and convert it to ABGR. The region is
+// scaled in yuv, so the color conversion only runs over the destination pixels. |crop_x| and
+// |crop_y| must be even, so that the region starts on a chroma sample.
+int Android420ScaleToABGR(const uint8_t* src_y,
+                          int src_stride_y,
+                          const uint8_t* src_u,
+                          int src_stride_u,
+                          const uint8_t* src_v,
+                          int src_stride_v,
+                          int src_pixel_stride_uv,
+                          int crop_x,
+                          int crop_y,
+                          int crop_width,
+                          int crop_height,
+                          uint8_t* dst_abgr,
+                          int dst_stride_abgr,
+                          int dst_width,
+                          int dst_height,
+                          libyuv::FilterMode filter,
+                          const libyuv::YuvConstants* yvu_constants) {
+    const Yuv420Layout layout = GetYuv420Layout(src_u, src_stride_u, src_pixel_stride_uv, src_v,
+                                                src_stride_v, src_pixel_stride_uv);
+    src_y += crop_y * src_stride_y + crop_x;
+    src_u += (crop_y / 2) * src_stride_u + (crop_x / 2) * src_pixel_stride_uv;
+    src_v += (crop_y / 2) * src_stride_v + (crop_x / 2) * src_pixel_stride_uv;
+
+    // The scaled frame, as I420 or as NV12/NV21 depending on the source layout.
+    const int dst_half_width = (dst_width + 1) / 2;
+    const int dst_half_height = (dst_height + 1) / 2;
+    const int scaled_y_size = dst_width * dst_height;
+    uint8_t* scaled = static_cast<uint8_t*>(
+            malloc(scaled_y_size + dst_half_width * dst_half_height * 2));
+    if (scaled == nullptr) {
+        return -1;
+    }
+    uint8_t* scaled_y = scaled;
+    uint8_t* scaled_u = scaled + scaled_y_size;
+    uint8_t* scaled_v = scaled_u + dst_half_width * dst_half_height;
+
+    int result;
+    // libyuv filters interleaved chroma at most bilinearly, so box filtering goes through the
+    // planar path below.
+    if ((layout == kYuv420LayoutNV12 || layout == kYuv420LayoutNV21)
+        && filter != libyuv::kFilterBox) {
+        const uint8_t* src_uv = layout == kYuv420LayoutNV12 ? src_u : src_v;
+        result = libyuv::NV12Scale(src_y, src_stride_y, src_uv, src_stride_u, crop_width,
+                                   crop_height, scaled_y, dst_width, scaled_u,
+                                   dst_half_width * 2, dst_width, dst_height, filter);
+        if (result == 0) {
+            // Swapping u and v with the "Yvu" constants produces ABGR, see Android420ToABGR().
+            result = layout == kYuv420LayoutNV12
+                    ? libyuv::NV21ToARGBMatrix(scaled_y, dst_width, scaled_u,
+                                               dst_half_width * 2, dst_abgr, dst_stride_abgr,
+                                               yvu_constants, dst_width, dst_height)
+                    : libyuv::NV12ToARGBMatrix(scaled_y, dst_width, scaled_u,
+                                               dst_half_width * 2, dst_abgr, dst_stride_abgr,
+                                               yvu_constants, dst_width, dst_height);
+        }
+    } else {
+        uint8_t* planar = nullptr;
+        if (layout != kYuv420LayoutI420) {
+            // Gather the chroma of the region into planes first. The luma plane is scaled in
+            // place.
+            const int half_width = (crop_width + 1) / 2;
+            const int half_height = (crop_height + 1) / 2;
+            planar = static_cast<uint8_t*>(malloc(half_width * half_height * 2));
+            if (planar == nullptr) {
+                free(scaled);
+                return -1;
+            }
+            uint8_t* planar_u = planar;
+            uint8_t* planar_v = planar_u + half_width * half_height;
+            libyuv::Android420ToI420(nullptr, 0, src_u, src_stride_u, src_v, src_stride_v,
+                                     src_pixel_stride_uv, nullptr, 0, planar_u, half_width,
+                                     planar_v, half_width, crop_width, crop_height);
+            src_u = planar_u;
+            src_stride_u = half_width;
+            src_v = planar_v;
+            src_stride_v = half_width;
+        }
+        result = libyuv::I420Scale(src_y, src_stride_y, src_u, src_stride_u, src_v, src_stride_v,
+                                   crop_width, crop_height, scaled_y, dst_width, scaled_u,
+                                   dst_half_width, scaled_v, dst_half_width, dst_width,
+                                   dst_height, filter);
+        if (result == 0) {
+            result = libyuv::I420ToARGBMatrix(scaled_y, dst_width, scaled_v, dst_half_width,
+                                              scaled_u, dst_half_width, dst_abgr,
+                                              dst_stride_abgr, yvu_constants, dst_width,
+                                              dst_height);
+        }
+        free(planar);
+    }
+
+    free(scaled);
+    return result;
+}
+
+// Helper function to convert Android420 to NV21. The chroma planes are (width / 2) x
+// (height / 2), matching ImageUtils#getNv21ByteCount. I420, NV12 and NV21 layouts are handled
+// with libyuv plane operations; only other layouts (e.g. unequal u/v row strides) take the
+// per-pixel weave.
+int Android420ToNV21(const uint8_t* src_y,
+                     int src_stride_y,
+                     const uint8_t* src_u,
+                     int src_stride_u,
+                     const uint8_t* src_v,
+                     int src_stride_v,
+                     int src_pixel_stride_y,
+                     int src_pixel_stride_uv,
+                     uint8_t* dst_nv21,
+                     int width,
+                     int height) {
+    if (src_pixel_stride_y != 1) {
+        return -1;
+    }
+
+    int halfwidth = width / 2;
+    int halfheight = height / 2;
+    uint8_t* dst_vu = dst_nv21 + width * height;
+    int dst_stride_vu = halfwidth * 2;
+
+    libyuv::CopyPlane(src_y, src_stride_y, dst_nv21, width, width, height);
+
+    switch (GetYuv420Layout(src_u, src_stride_u, src_pixel_stride_uv, src_v, src_stride_v,
+                            src_pixel_stride_uv)) {
+        case kYuv420LayoutI420:
+            libyuv::MergeUVPlane(src_v, src_stride_v, src_u, src_stride_u, dst_vu,
+                                 dst_stride_vu, halfwidth, halfheight);
+            break;
+        case kYuv420LayoutNV21:
+            // The chroma rows are already in the output order.
+            libyuv::CopyPlane(src_v, src_stride_v, dst_vu, dst_stride_vu, halfwidth * 2,
+                              halfheight);
+            break;
+        case kYuv420LayoutNV12:
+            libyuv::SwapUVPlane(src_u, src_stride_u, dst_vu, dst_stride_vu, halfwidth,
+                                halfheight);
+            break;
+        default:
+            // General case fallback, weave v before u.
+            for (int y = 0; y < halfheight; y++) {
+                weave_pixels(src_v, src_u, src_pixel_stride_uv, dst_vu, halfwidth);
+                src_u += src_stride_u;
+                src_v += src_stride_v;
+                dst_vu += dst_stride_vu;
+            }
+            break;
+    }
+    return 0;
+}
+
+int64_t GetNV21ByteCount(int width, int height) {
+    return static_cast<int64_t>(width) * height
+            + static_cast<int64_t>(width / 2) * (height / 2) * 2;
+}
+
+int Android420ToABGRRotate(const uint8_t* src_y,
+                           int src_stride_y,
+                           const uint8_t* src_u,
+                           int src_stride_u,
+                           const uint8_t* src_v,
+                           int src_stride_v,
+                           int src_pixel_stride_uv,
+                           uint8_t* dst_abgr,
+                           int dst_stride_abgr,
+                           const libyuv::YuvConstants* yvu_constants,
+                           int width,
+                           int height,
+                           libyuv::RotationMode mode,
+                           bool has_pixel_shift) {
+    int result = 0;
+    if (mode == libyuv::kRotate0) {
+        result = Android420RegionToABGR(src_y, src_stride_y, src_u, src_stride_u, src_v,
+                                        src_stride_v, src_pixel_stride_uv, dst_abgr,
+                                        dst_stride_abgr, yvu_constants, width, height, 0, 0,
+                                        width, height, has_pixel_shift);
+    } else {
+        // Convert tile by tile into a cache resident scratch area and rotate each tile straight
+        // into the destination, instead of converting the whole frame and rotating it again.
+        alignas(64) uint8_t tile[kRotateTileSize * kRotateTileSize * 4];
+        for (int tile_y = 0; result == 0 && tile_y < height; tile_y += kRotateTileSize) {
+            int tile_height = std::min(kRotateTileSize, height - tile_y);
+            for (int tile_x = 0; result == 0 && tile_x < width; tile_x += kRotateTileSize) {
+                int tile_width = std::min(kRotateTileSize, width - tile_x);
+                result = Android420RegionToABGR(src_y, src_stride_y, src_u, src_stride_u, src_v,
+                                                src_stride_v, src_pixel_stride_uv, tile,
+                                                kRotateTileSize * 4, yvu_constants, width,
+                                                height, tile_x, tile_y, tile_width, tile_height,
+                                                has_pixel_shift);
+                if (result == 0) {
+                    result = libyuv::ARGBRotate(tile,
+                                                kRotateTileSize * 4,
+                                                RotatedTileOrigin(dst_abgr, dst_stride_abgr,
+                                                                  tile_x, tile_y, tile_width,
+                                                                  tile_height, width, height,
+                                                                  mode),
+                                                dst_stride_abgr,
+                                                tile_width,
+                                                tile_height,
+                                                mode);
+                }
+            }
+        }
+    }
+
+    if (result == 0 && has_pixel_shift) {
+        // Set the 2x2 pixels on the right bottom by duplicating the 3rd pixel
+        // from the right to left in each row.
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 2; j++) {
+                memcpy(RotatedPixel(dst_abgr, dst_stride_abgr, width - 1 - j, height - 1 - i,
+                                    width, height, mode),
+                       RotatedPixel(dst_abgr, dst_stride_abgr, width - 3 - j, height - 1 - i,
+                                    width, height, mode),
+                       4);
+            }
+        }
+    }
+    return result;
+}
+
+int ShiftPixel(uint8_t* src_y,
+               int src_stride_y,
+               uint8_t* src_u,
+               int src_stride_u,
+               uint8_t* src_v,
+               int src_stride_v,
+               int width,
+               int height,
+               int start_offset_y,
+               int start_offset_u,
+               int start_offset_v) {
+    // TODO(b/195990691): extend the pixel shift to handle multiple corrupted pixels.
+    // We don't support multiple pixel shift now.
+    // Y
+    for (int i = 0; i < height; i++) {
+        memmove(&src_y[0 + i * src_stride_y],
+                &src_y[start_offset_y + i * src_stride_y],
+                width - 1);
+
+        src_y[width - start_offset_y + i * src_stride_y] =
+                src_y[src_stride_y - start_offset_y + i * src_stride_y];
+    }
+
+    // U
+    for (int i = 0; i < height / 2; i++) {
+        memmove(&src_u[0 + i * src_stride_u],
+                &src_u[start_offset_u + i * src_stride_u],
+                width / 2 - 1);
+
+        src_u[width / 2 - start_offset_u + i * src_stride_u] =
+                src_u[src_stride_u - start_offset_u + i * src_stride_u];
+    }
+
+    // V
+    for (int i = 0; i < height / 2; i++) {
+        memmove(&src_v[0 + i * src_stride_v],
+                &src_v[start_offset_v + i * src_stride_v],
+                width / 2 - 1);
+
+        src_v[width / 2 - start_offset_v + i * src_stride_v] =
+                src_v[src_stride_v - start_offset_v + i * src_stride_v];
+    }
+
+    return 0;
+}
+
+int Android420Rotate(const uint8_t* src_y,
+                     int src_stride_y,
+                     const uint8_t* src_u,
+                     int src_stride_u,
+                     const uint8_t* src_v,
+                     int src_stride_v,
+                     int src_pixel_stride_uv,
+                     uint8_t* dst_y,
+                     int dst_stride_y,
+                     int dst_pixel_stride_y,
+                     uint8_t* dst_u,
+                     int dst_stride_u,
+                     int dst_pixel_stride_u,
+                     uint8_t* dst_v,
+                     int dst_stride_v,
+                     int dst_pixel_stride_v,
+                     uint8_t* rotated_y,
+                     uint8_t* rotated_u,
+                     uint8_t* rotated_v,
+                     int width,
+                     int height,
+                     libyuv::RotationMode mode) {
+    int halfwidth = (width + 1) >> 1;
+    int halfheight = (height + 1) >> 1;
+
+    bool flip_wh = (mode == libyuv::kRotate90 || mode == libyuv::kRotate270);
+
+    // Rotate straight into the destination planes when both sides have a layout libyuv handles.
+    Yuv420Layout src_layout = GetYuv420Layout(src_u, src_stride_u, src_pixel_stride_uv,
+                                              src_v, src_stride_v, src_pixel_stride_uv);
+    Yuv420Layout dst_layout = GetYuv420Layout(dst_u, dst_stride_u, dst_pixel_stride_u,
+                                              dst_v, dst_stride_v, dst_pixel_stride_v);
+    if (src_layout != kYuv420LayoutOther && dst_layout != kYuv420LayoutOther
+        && dst_pixel_stride_y == 1) {
+        int result = libyuv::RotatePlane(src_y, src_stride_y, dst_y, dst_stride_y,
+                                         width, height, mode);
+        if (result != 0) {
+            return result;
+        }
+        if (dst_layout == kYuv420LayoutI420) {
+            return libyuv::Android420ToI420Rotate(nullptr,
+                                                  0,
+                                                  src_u,
+                                                  src_stride_u,
+                                                  src_v,
+                                                  src_stride_v,
+                                                  src_pixel_stride_uv,
+                                                  nullptr,
+                                                  0,
+                                                  dst_u,
+                                                  dst_stride_u,
+                                                  dst_v,
+                                                  dst_stride_v,
+                                                  width,
+                                                  height,
+                                                  mode);
+        }
+        bool dst_is_vu = dst_layout == kYuv420LayoutNV21;
+        return Android420ChromaToSemiPlanarRotate(src_u,
+                                                  src_stride_u,
+                                                  src_v,
+                                                  src_stride_v,
+                                                  src_pixel_stride_uv,
+                                                  dst_is_vu ? dst_v : dst_u,
+                                                  dst_stride_u,
+                                                  dst_is_vu,
+                                                  halfwidth,
+                                                  halfheight,
+                                                  mode);
+    }
+
+    // Otherwise rotate into I420 intermediate planes first and copy them pixel by pixel. The
+    // intermediate planes are allocated here if the caller did not provide them.
+    uint8_t* rotated_planes = nullptr;
+    if (rotated_y == nullptr || rotated_u == nullptr || rotated_v == nullptr) {
+        int y_size = width * height;
+        int uv_size = halfwidth * halfheight;
+        rotated_planes = static_cast<uint8_t*>(malloc(y_size + uv_size * 2));
+        if (rotated_planes == nullptr) {
+            return -1;
+        }
+        rotated_y = rotated_planes;
+        rotated_u = rotated_planes + y_size;
+        rotated_v = rotated_planes + y_size + uv_size;
+    }
+
+    int rotated_stride_y = flip_wh ? height : width;
+    int rotated_stride_u = flip_wh ? halfheight : halfwidth;
+    int rotated_stride_v = flip_wh ? halfheight : halfwidth;
+
+    int rotated_width = flip_wh ? height : width;
+    int rotated_height = flip_wh ? width : height;
+    int rotated_halfwidth = flip_wh ? halfheight : halfwidth;
+    int rotated_halfheight = flip_wh ? halfwidth : halfheight;
+
+    int result = 0;
+    const ptrdiff_t vu_off = src_v - src_u;
+
+    if (src_pixel_stride_uv == 1) {
+        // I420
+        result = libyuv::I420Rotate(src_y,
+                                    src_stride_y,
+                                    src_u,
+                                    src_stride_u,
+                                    src_v,
+                                    src_stride_v,
+                                    rotated_y,
+                                    rotated_stride_y,
+                                    rotated_u,
+                                    rotated_stride_u,
+                                    rotated_v,
+                                    rotated_stride_v,
+                                    width,
+                                    height,
+                                    mode);
+    } else if (src_pixel_stride_uv == 2 && vu_off == -1 &&
+               src_stride_u == src_stride_v) {
+        // NV21
+        result = libyuv::NV12ToI420Rotate(src_y,
+                                          src_stride_y,
+                                          src_v,
+                                          src_stride_v,
+                                          rotated_y,
+                                          rotated_stride_y,
+                                          rotated_v,
+                                          rotated_stride_v,
+                                          rotated_u,
+                                          rotated_stride_u,
+                                          width,
+                                          height,
+                                          mode);
+    } else if (src_pixel_stride_uv == 2 && vu_off == 1 && src_stride_u == src_stride_v) {
+        // NV12
+        result = libyuv::NV12ToI420Rotate(src_y,
+                                          src_stride_y,
+                                          src_u,
+                                          src_stride_u,
+                                          rotated_y,
+                                          rotated_stride_y,
+                                          rotated_u,
+                                          rotated_stride_u,
+                                          rotated_v,
+                                          rotated_stride_v,
+                                          width,
+                                          height,
+                                          mode);
+    } else {
+        // General case fallback creates NV12
+        align_buffer_64(plane_uv, halfwidth * 2 * halfheight);
+        uint8_t* dst_uv = plane_uv;
+        for (int y = 0; y < halfheight; y++) {
+            weave_pixels(src_u, src_v, src_pixel_stride_uv, dst_uv, halfwidth);
+            src_u += src_stride_u;
+            src_v += src_stride_v;
+            dst_uv += halfwidth * 2;
+        }
+
+        result = libyuv::NV12ToI420Rotate(src_y,
+                                          src_stride_y,
+                                          plane_uv,
+                                          halfwidth * 2,
+                                          rotated_y,
+                                          rotated_stride_y,
+                                          rotated_u,
+                                          rotated_stride_u,
+                                          rotated_v,
+                                          rotated_stride_v,
+                                          width,
+                                          height,
+                                          mode);
+        free_aligned_buffer_64(plane_uv);
+    }
+
+    if (result == 0) {
+        // Y
+        int rotated_pixel_stride_y = 1;
+        for (int i = 0; i < rotated_height; i++) {
+            for (int j = 0; j < rotated_width; j++) {
+                dst_y[i * dst_stride_y + j * dst_pixel_stride_y] =
+                        rotated_y[i * rotated_stride_y + j * rotated_pixel_stride_y];
+            }
+        }
+
+        // U
+        int rotated_pixel_stride_u = 1;
+        for (int i = 0; i < rotated_halfheight; i++) {
+            for (int j = 0; j < rotated_halfwidth; j++) {
+                dst_u[i * dst_stride_u + j * dst_pixel_stride_u] =
+                        rotated_u[i * rotated_stride_u + j * rotated_pixel_stride_u];
+            }
+        }
+
+        // V
+        int rotated_pixel_stride_v = 1;
+        for (int i = 0; i < rotated_halfheight; i++) {
+            for (int j = 0; j < rotated_halfwidth; j++) {
+                dst_v[i * dst_stride_v + j * dst_pixel_stride_v] =
+                        rotated_v[i * rotated_stride_v + j * rotated_pixel_stride_v];
+            }
+        }
+    }
+
+    free(rotated_planes);
+    return result;
+}
+
+}  // namespace image_processing_util
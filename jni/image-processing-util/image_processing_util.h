@@ -0,0 +1,164 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#pragma once
+
+#include <cstdint>
+
+#include "libyuv/convert_argb.h"
+#include "libyuv/rotate.h"
+#include "libyuv/scale.h"
+
+// The compute kernels behind image_processing_util_jni. They work on raw plane pointers only, so
+// that they also build for a Linux host, where they can be profiled and fuzzed. All functions
+// return 0 on success and -1 on failure.
+namespace image_processing_util {
+
+// The color matrices selectable from Java, in the order of the ImageUtils.COLOR_MATRIX_*
+// constants.
+enum ColorMatrix {
+    kColorMatrixBt601FullRange = 0,
+    kColorMatrixBt601LimitedRange = 1,
+    kColorMatrixBt709FullRange = 2,
+    kColorMatrixBt709LimitedRange = 3,
+    kColorMatrixBt2020FullRange = 4,
+    kColorMatrixBt2020LimitedRange = 5,
+};
+
+// Returns the libyuv rotation mode for a clockwise |rotation| of 0, 90, 180 or 270 degrees.
+// Other values map to kRotate0.
+libyuv::RotationMode GetRotationMode(int rotation);
+
+// Returns the libyuv constants for |color_matrix|, or nullptr if it is not a ColorMatrix. The
+// "Yvu" variants are used since the u and v planes are swapped to produce ABGR, see
+// Android420ToABGR().
+const libyuv::YuvConstants* GetYvuConstants(int color_matrix);
+
+// Maps one of the ImageProcessingUtil.SCALE_FILTER_* constants to |mode|. Returns false if
+// |filter| is not one of them.
+bool GetFilterMode(int filter, libyuv::FilterMode* mode);
+
+// Converts an Android420 image to ABGR with the given libyuv "Yvu" constants.
+int Android420ToABGR(const uint8_t* src_y,
+                     int src_stride_y,
+                     const uint8_t* src_u,
+                     int src_stride_u,
+                     const uint8_t* src_v,
+                     int src_stride_v,
+                     int src_pixel_stride_uv,
+                     uint8_t* dst_abgr,
+                     int dst_stride_abgr,
+                     const libyuv::YuvConstants* yvu_constants,
+                     int width,
+                     int height);
+
+// Converts an Android420 image to ABGR and rotates it clockwise by |mode| into |dst_abgr|. If
+// |has_pixel_shift| is true, the yuv data of the bottom-right pixel is missing: it is left
+// unconverted and the bottom-right 2x2 pixels are copied from two pixels to their left.
+int Android420ToABGRRotate(const uint8_t* src_y,
+                           int src_stride_y,
+                           const uint8_t* src_u,
+                           int src_stride_u,
+                           const uint8_t* src_v,
+                           int src_stride_v,
+                           int src_pixel_stride_uv,
+                           uint8_t* dst_abgr,
+                           int dst_stride_abgr,
+                           const libyuv::YuvConstants* yvu_constants,
+                           int width,
+                           int height,
+                           libyuv::RotationMode mode,
+                           bool has_pixel_shift);
+
+// Crops the |crop_width| x |crop_height| region at (|crop_x|, |crop_y|) of an Android420 image,
+// scales it to |dst_width| x |dst_height| and converts it to ABGR. The region is scaled in yuv, so
+// the color conversion only runs over the destination pixels. |crop_x| and |crop_y| must be even,
+// so that the region starts on a chroma sample.
+int Android420ScaleToABGR(const uint8_t* src_y,
+                          int src_stride_y,
+                          const uint8_t* src_u,
+                          int src_stride_u,
+                          const uint8_t* src_v,
+                          int src_stride_v,
+                          int src_pixel_stride_uv,
+                          int crop_x,
+                          int crop_y,
+                          int crop_width,
+                          int crop_height,
+                          uint8_t* dst_abgr,
+                          int dst_stride_abgr,
+                          int dst_width,
+                          int dst_height,
+                          libyuv::FilterMode filter,
+                          const libyuv::YuvConstants* yvu_constants);
+
+// Returns the size of a |width| x |height| NV21 image written by Android420ToNV21().
+int64_t GetNV21ByteCount(int width, int height);
+
+// Converts an Android420 image to NV21. The chroma planes are (width / 2) x (height / 2),
+// matching ImageUtils#getNv21ByteCount.
+int Android420ToNV21(const uint8_t* src_y,
+                     int src_stride_y,
+                     const uint8_t* src_u,
+                     int src_stride_u,
+                     const uint8_t* src_v,
+                     int src_stride_v,
+                     int src_pixel_stride_y,
+                     int src_pixel_stride_uv,
+                     uint8_t* dst_nv21,
+                     int width,
+                     int height);
+
+// Shifts every row of an Android420 image left in place by the start offsets, the workaround for
+// devices whose images start one pixel late.
+int ShiftPixel(uint8_t* src_y,
+               int src_stride_y,
+               uint8_t* src_u,
+               int src_stride_u,
+               uint8_t* src_v,
+               int src_stride_v,
+               int width,
+               int height,
+               int start_offset_y,
+               int start_offset_u,
+               int start_offset_v);
+
+// Rotates an Android420 image clockwise by |mode| into the planes of another Android420 image.
+// The rotated_* planes are I420 scratch space for destinations libyuv cannot write to directly;
+// they are allocated here if any of them is null.
+int Android420Rotate(const uint8_t* src_y,
+                     int src_stride_y,
+                     const uint8_t* src_u,
+                     int src_stride_u,
+                     const uint8_t* src_v,
+                     int src_stride_v,
+                     int src_pixel_stride_uv,
+                     uint8_t* dst_y,
+                     int dst_stride_y,
+                     int dst_pixel_stride_y,
+                     uint8_t* dst_u,
+                     int dst_stride_u,
+                     int dst_pixel_stride_u,
+                     uint8_t* dst_v,
+                     int dst_stride_v,
+                     int dst_pixel_stride_v,
+                     uint8_t* rotated_y,
+                     uint8_t* rotated_u,
+                     uint8_t* rotated_v,
+                     int width,
+                     int height,
+                     libyuv::RotationMode mode);
+
+}  // namespace image_processing_util
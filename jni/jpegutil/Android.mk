@@ -20,7 +20,9 @@ LOCAL_LDLIBS := -llog \
 
 LOCAL_SHARED_LIBRARIES := libjpeg
 
-LOCAL_SRC_FILES := jpegutil.cpp \
+LOCAL_SRC_FILES := jpegexif.cpp \
+                   jpegtransform.cpp \
+                   jpegutil.cpp \
                    jpegutilnative.cpp
 
 LOCAL_SDK_VERSION := 17
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include "jpegexif.h"
+
+namespace {
+
+const int kTagCompression = 0x0103;
+const int kTagOrientation = 0x0112;
+const int kTagXResolution = 0x011A;
+const int kTagYResolution = 0x011B;
+const int kTagResolutionUnit = 0x0128;
+const int kTagJpegInterchangeFormat = 0x0201;
+const int kTagJpegInterchangeFormatLength = 0x0202;
+const int kTagYCbCrPositioning = 0x0213;
+const int kTagExifIfdPointer = 0x8769;
+const int kTagExifVersion = 0x9000;
+const int kTagComponentsConfiguration = 0x9101;
+const int kTagFlashpixVersion = 0xA000;
+const int kTagColorSpace = 0xA001;
+const int kTagPixelXDimension = 0xA002;
+const int kTagPixelYDimension = 0xA003;
+
+const int kTypeShort = 3;
+const int kTypeLong = 4;
+const int kTypeRational = 5;
+const int kTypeUndefined = 7;
+
+// Compression of a jpeg thumbnail, inches, centered chroma, and sRGB.
+const int kCompressionJpeg = 6;
+const int kResolutionUnitInches = 2;
+const int kYCbCrPositioningCentered = 1;
+const int kColorSpaceSrgb = 1;
+const unsigned int kResolutionDpi = 72;
+
+/**
+ * Writes a big-endian TIFF structure.  IFDs are written one after another,
+ * each followed by the values which do not fit into their entries.
+ */
+class TiffWriter {
+ public:
+  TiffWriter() {
+    const unsigned char header[] = {'M', 'M', 0, 42};
+    data_.assign(header, header + sizeof(header));
+    Put32(8);
+  }
+
+  /**
+   * Starts an IFD with count entries at the end of the data, and returns its
+   * offset.
+   */
+  size_t BeginIfd(int count) {
+    size_t ifd = data_.size();
+    Put16(count);
+    entry_ = data_.size();
+    // The entries and the offset of the next IFD.
+    data_.resize(data_.size() + 12 * count + 4);
+    return ifd;
+  }
+
+  /** Adds an entry whose value fits into it, left-justified. */
+  void AddShort(int tag, unsigned int value) {
+    AddEntry(tag, kTypeShort, 1, value << 16);
+  }
+
+  void AddLong(int tag, unsigned int value) {
+    AddEntry(tag, kTypeLong, 1, value);
+  }
+
+  void AddUndefined4(int tag, const unsigned char value[4]) {
+    AddEntry(tag, kTypeUndefined, 4,
+             (value[0] << 24) | (value[1] << 16) | (value[2] << 8) | value[3]);
+  }
+
+  /** Adds a rational, whose value is appended to the data after the IFD. */
+  void AddRational(int tag, unsigned int numerator, unsigned int denominator) {
+    AddEntry(tag, kTypeRational, 1, data_.size());
+    Put32(numerator);
+    Put32(denominator);
+  }
+
+  /**
+   * Adds an entry whose value is an offset which is only known later, and
+   * returns the position to patch it at with Patch32().
+   */
+  size_t AddLongPlaceholder(int tag) {
+    AddEntry(tag, kTypeLong, 1, 0);
+    return entry_ - 4;
+  }
+
+  /** Links the IFD at ifd to the next IFD, at the end of the data. */
+  void LinkNextIfd(size_t ifd) {
+    Patch32(ifd + 2 + 12 * Get16(ifd), data_.size());
+  }
+
+  void Patch32(size_t pos, unsigned int value) {
+    data_[pos] = value >> 24;
+    data_[pos + 1] = (value >> 16) & 0xFF;
+    data_[pos + 2] = (value >> 8) & 0xFF;
+    data_[pos + 3] = value & 0xFF;
+  }
+
+  void Append(const unsigned char* data, size_t size) {
+    data_.insert(data_.end(), data, data + size);
+  }
+
+  size_t size() const { return data_.size(); }
+
+  const std::vector<unsigned char>& data() const { return data_; }
+
+ private:
+  void AddEntry(int tag, int type, unsigned int count, unsigned int value) {
+    data_[entry_] = (tag >> 8) & 0xFF;
+    data_[entry_ + 1] = tag & 0xFF;
+    data_[entry_ + 2] = 0;
+    data_[entry_ + 3] = type;
+    Patch32(entry_ + 4, count);
+    Patch32(entry_ + 8, value);
+    entry_ += 12;
+  }
+
+  unsigned int Get16(size_t pos) const {
+    return (data_[pos] << 8) | data_[pos + 1];
+  }
+
+  void Put16(unsigned int value) {
+    data_.push_back((value >> 8) & 0xFF);
+    data_.push_back(value & 0xFF);
+  }
+
+  void Put32(unsigned int value) {
+    Put16(value >> 16);
+    Put16(value & 0xFFFF);
+  }
+
+  std::vector<unsigned char> data_;
+  // Where the next entry of the current IFD is written.
+  size_t entry_ = 0;
+};
+
+}  // namespace
+
+std::vector<unsigned char> jpegutil::BuildExifSegment(
+    unsigned int width, unsigned int height, int orientation,
+    const unsigned char* thumbnail, size_t thumbnail_size) {
+  static const unsigned char kExifVersion[4] = {'0', '2', '3', '0'};
+  static const unsigned char kFlashpixVersion[4] = {'0', '1', '0', '0'};
+  static const unsigned char kComponentsYCbCr[4] = {1, 2, 3, 0};
+
+  TiffWriter tiff;
+
+  // IFD0, describing the primary image.  Entries are sorted by tag.
+  size_t ifd0 = tiff.BeginIfd(6);
+  tiff.AddShort(kTagOrientation, orientation);
+  tiff.AddRational(kTagXResolution, kResolutionDpi, 1);
+  tiff.AddRational(kTagYResolution, kResolutionDpi, 1);
+  tiff.AddShort(kTagResolutionUnit, kResolutionUnitInches);
+  tiff.AddShort(kTagYCbCrPositioning, kYCbCrPositioningCentered);
+  size_t exif_ifd_pointer = tiff.AddLongPlaceholder(kTagExifIfdPointer);
+
+  tiff.Patch32(exif_ifd_pointer, tiff.size());
+  tiff.BeginIfd(6);
+  tiff.AddUndefined4(kTagExifVersion, kExifVersion);
+  tiff.AddUndefined4(kTagComponentsConfiguration, kComponentsYCbCr);
+  tiff.AddUndefined4(kTagFlashpixVersion, kFlashpixVersion);
+  tiff.AddShort(kTagColorSpace, kColorSpaceSrgb);
+  tiff.AddLong(kTagPixelXDimension, width);
+  tiff.AddLong(kTagPixelYDimension, height);
+
+  if (thumbnail_size > 0) {
+    // IFD1, describing the thumbnail, which follows it.
+    tiff.LinkNextIfd(ifd0);
+    tiff.BeginIfd(6);
+    tiff.AddShort(kTagCompression, kCompressionJpeg);
+    tiff.AddRational(kTagXResolution, kResolutionDpi, 1);
+    tiff.AddRational(kTagYResolution, kResolutionDpi, 1);
+    tiff.AddShort(kTagResolutionUnit, kResolutionUnitInches);
+    size_t offset = tiff.AddLongPlaceholder(kTagJpegInterchangeFormat);
+    tiff.AddLong(kTagJpegInterchangeFormatLength, thumbnail_size);
+    tiff.Patch32(offset, tiff.size());
+    tiff.Append(thumbnail, thumbnail_size);
+  }
+
+  static const unsigned char kExifHeader[] = {'E', 'x', 'i', 'f', 0, 0};
+  const size_t payload = 2 + sizeof(kExifHeader) + tiff.size();
+  if (payload > kMaxMarkerPayload + 2) {
+    return std::vector<unsigned char>();
+  }
+  std::vector<unsigned char> segment = {
+      0xFF, 0xE1, static_cast<unsigned char>(payload >> 8),
+      static_cast<unsigned char>(payload & 0xFF)};
+  segment.insert(segment.end(), kExifHeader,
+                 kExifHeader + sizeof(kExifHeader));
+  segment.insert(segment.end(), tiff.data().begin(), tiff.data().end());
+  return segment;
+}
+
+int jpegutil::ExifOrientationForRotation(int degrees) {
+  switch (((degrees % 360) + 360) % 360) {
+    case 90:
+      return 6;
+    case 180:
+      return 3;
+    case 270:
+      return 8;
+    default:
+      return 1;
+  }
+}
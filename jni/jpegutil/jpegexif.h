@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#pragma once
+
+#include <stddef.h>
+
+#include <vector>
+
+/*
+ * Writes the EXIF APP1 segment of jpegs encoded by jpegutil.
+ */
+namespace jpegutil {
+
+/** The largest payload of a marker segment, after its 2-byte length. */
+const size_t kMaxMarkerPayload = 65533;
+
+/**
+ * Builds a complete EXIF APP1 segment, from the marker to the end of the
+ * thumbnail, for a width x height image.  It holds the tags EXIF requires of
+ * a primary image, the orientation (1 to 8), and the thumbnail if
+ * thumbnail_size is not 0.  Returns an empty vector if the segment exceeds the
+ * size limit of a marker segment.
+ */
+std::vector<unsigned char> BuildExifSegment(unsigned int width,
+                                            unsigned int height,
+                                            int orientation,
+                                            const unsigned char* thumbnail,
+                                            size_t thumbnail_size);
+
+/**
+ * Returns the EXIF orientation tag for an image that viewers should rotate
+ * clockwise by degrees, a multiple of 90.
+ */
+int ExifOrientationForRotation(int degrees);
+
+}  // namespace jpegutil
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include "jpegtransform.h"
+
+#include <setjmp.h>
+#include <stdio.h>
+#include <string.h>
+
+extern "C" {
+#include "jpeglib.h"
+#include "jerror.h"
+#include "transupp.h"
+}
+
+namespace {
+
+struct TransformErrorMgr {
+  jpeg_error_mgr pub;
+  jmp_buf setjmp_buffer;
+  // Set when the fixed-size output buffer runs out of space.
+  bool out_buf_too_small;
+};
+
+void TransformErrorExit(j_common_ptr cinfo) {
+  TransformErrorMgr* err = reinterpret_cast<TransformErrorMgr*>(cinfo->err);
+  (*cinfo->err->output_message)(cinfo);
+  longjmp(err->setjmp_buffer, 1);
+}
+
+/** A destination manager which writes into a fixed-size buffer. */
+struct FixedDestinationMgr {
+  jpeg_destination_mgr pub;
+  unsigned char* buf;
+  size_t capacity;
+};
+
+void InitFixedDestination(j_compress_ptr cinfo) {
+  FixedDestinationMgr* dest =
+      reinterpret_cast<FixedDestinationMgr*>(cinfo->dest);
+  dest->pub.next_output_byte = dest->buf;
+  dest->pub.free_in_buffer = dest->capacity;
+}
+
+boolean EmptyFixedDestination(j_compress_ptr cinfo) {
+  reinterpret_cast<TransformErrorMgr*>(cinfo->err)->out_buf_too_small = true;
+  ERREXIT(cinfo, JERR_BUFFER_SIZE);
+  return false;
+}
+
+void TermFixedDestination(j_compress_ptr cinfo __unused) {
+  // do nothing to terminate the output buffer
+}
+
+/**
+ * A minimal editor for the EXIF APP1 segment saved from a jpeg, which can read
+ * and reset the orientation and update the pixel dimensions in place.  Every
+ * access is bounds-checked, so a malformed segment is treated as missing tags.
+ */
+class ExifSegment {
+ public:
+  explicit ExifSegment(jpeg_saved_marker_ptr marker)
+      : tiff_(nullptr), size_(0), little_endian_(false) {
+    static const unsigned char kExifHeader[] = {'E', 'x', 'i', 'f', 0, 0};
+    if (marker == nullptr || marker->data_length < sizeof(kExifHeader) + 8 ||
+        memcmp(marker->data, kExifHeader, sizeof(kExifHeader)) != 0) {
+      return;
+    }
+    unsigned char* tiff = marker->data + sizeof(kExifHeader);
+    if (tiff[0] == 'I' && tiff[1] == 'I') {
+      little_endian_ = true;
+    } else if (tiff[0] != 'M' || tiff[1] != 'M') {
+      return;
+    }
+    tiff_ = tiff;
+    size_ = marker->data_length - sizeof(kExifHeader);
+  }
+
+  /** Returns the EXIF APP1 segment among the markers saved by srcinfo. */
+  static jpeg_saved_marker_ptr Find(j_decompress_ptr srcinfo) {
+    for (jpeg_saved_marker_ptr marker = srcinfo->marker_list;
+         marker != nullptr; marker = marker->next) {
+      if (marker->marker == JPEG_APP0 + 1 && marker->data_length >= 6 &&
+          memcmp(marker->data, "Exif", 4) == 0) {
+        return marker;
+      }
+    }
+    return nullptr;
+  }
+
+  /** Returns the orientation tag (1 to 8), or 0 if it is missing. */
+  int GetOrientation() const {
+    int type;
+    size_t value = FindEntry(Ifd0(), kTagOrientation, &type);
+    if (value == 0 || type != kTypeShort) {
+      return 0;
+    }
+    int orientation = Read16(value);
+    return orientation >= 1 && orientation <= 8 ? orientation : 0;
+  }
+
+  void SetOrientation(int orientation) {
+    int type;
+    size_t value = FindEntry(Ifd0(), kTagOrientation, &type);
+    if (value != 0 && type == kTypeShort) {
+      Write16(value, orientation);
+    }
+  }
+
+  void SetPixelDimensions(unsigned int width, unsigned int height) {
+    int type;
+    size_t exif_ifd = FindEntry(Ifd0(), kTagExifIfdPointer, &type);
+    if (exif_ifd == 0 || type != kTypeLong) {
+      return;
+    }
+    size_t ifd = Read32(exif_ifd);
+    SetDimension(ifd, kTagPixelXDimension, width);
+    SetDimension(ifd, kTagPixelYDimension, height);
+  }
+
+ private:
+  static const int kTagOrientation = 0x0112;
+  static const int kTagExifIfdPointer = 0x8769;
+  static const int kTagPixelXDimension = 0xA002;
+  static const int kTagPixelYDimension = 0xA003;
+  static const int kTypeShort = 3;
+  static const int kTypeLong = 4;
+
+  size_t Ifd0() const { return tiff_ != nullptr ? Read32(4) : 0; }
+
+  /**
+   * Returns the offset of the value field of the entry for tag in the IFD at
+   * offset ifd, or 0 if there is no such entry.
+   */
+  size_t FindEntry(size_t ifd, int tag, int* type) const {
+    if (tiff_ == nullptr || ifd == 0 || ifd > size_ || size_ - ifd < 2) {
+      return 0;
+    }
+    int count = Read16(ifd);
+    for (int i = 0; i < count; i++) {
+      size_t entry = ifd + 2 + 12 * i;
+      if (entry + 12 > size_) {
+        break;
+      }
+      if (static_cast<int>(Read16(entry)) == tag) {
+        *type = Read16(entry + 2);
+        return entry + 8;
+      }
+    }
+    return 0;
+  }
+
+  void SetDimension(size_t ifd, int tag, unsigned int dimension) {
+    int type;
+    size_t value = FindEntry(ifd, tag, &type);
+    if (value == 0) {
+      return;
+    }
+    if (type == kTypeLong) {
+      Write32(value, dimension);
+    } else if (type == kTypeShort && dimension <= 0xFFFF) {
+      Write16(value, dimension);
+    }
+  }
+
+  unsigned int Read16(size_t offset) const {
+    const unsigned char* p = tiff_ + offset;
+    return little_endian_ ? p[0] | (p[1] << 8) : (p[0] << 8) | p[1];
+  }
+
+  unsigned int Read32(size_t offset) const {
+    unsigned int hi = Read16(offset + (little_endian_ ? 2 : 0));
+    unsigned int lo = Read16(offset + (little_endian_ ? 0 : 2));
+    return (hi << 16) | lo;
+  }
+
+  void Write16(size_t offset, unsigned int value) {
+    unsigned char* p = tiff_ + offset;
+    p[little_endian_ ? 0 : 1] = value & 0xFF;
+    p[little_endian_ ? 1 : 0] = (value >> 8) & 0xFF;
+  }
+
+  void Write32(size_t offset, unsigned int value) {
+    Write16(offset + (little_endian_ ? 0 : 2), value & 0xFFFF);
+    Write16(offset + (little_endian_ ? 2 : 0), value >> 16);
+  }
+
+  unsigned char* tiff_;
+  size_t size_;
+  bool little_endian_;
+};
+
+/** Returns the transform which displays an image with the EXIF orientation. */
+jpegutil::TransformType TransformForExifOrientation(int orientation) {
+  switch (orientation) {
+    case 2:
+      return jpegutil::kTransformFlipHorizontal;
+    case 3:
+      return jpegutil::kTransformRotate180;
+    case 4:
+      return jpegutil::kTransformFlipVertical;
+    case 5:
+      return jpegutil::kTransformTranspose;
+    case 6:
+      return jpegutil::kTransformRotate90;
+    case 7:
+      return jpegutil::kTransformTransverse;
+    case 8:
+      return jpegutil::kTransformRotate270;
+    default:
+      return jpegutil::kTransformNone;
+  }
+}
+
+}  // namespace
+
+int jpegutil::TransformJpeg(const unsigned char* in_buf, size_t in_size,
+                            unsigned char* out_buf, size_t out_buf_capacity,
+                            const TransformOptions& options,
+                            TransformResult* result) {
+  // libjpeg requires the use of setjmp/longjmp to recover from errors.  See
+  // Compress() for why the structs are volatile.
+  volatile jpeg_decompress_struct srcinfov;
+  volatile jpeg_compress_struct dstinfov;
+  jpeg_decompress_struct& srcinfo =
+      *const_cast<jpeg_decompress_struct*>(&srcinfov);
+  jpeg_compress_struct& dstinfo =
+      *const_cast<jpeg_compress_struct*>(&dstinfov);
+
+  // Both structs share one error manager, so an error in either returns here.
+  TransformErrorMgr err;
+  err.out_buf_too_small = false;
+  srcinfo.err = jpeg_std_error(&err.pub);
+  dstinfo.err = &err.pub;
+  err.pub.error_exit = TransformErrorExit;
+
+  if (setjmp(err.setjmp_buffer)) {
+    jpeg_destroy_compress(&dstinfo);
+    jpeg_destroy_decompress(&srcinfo);
+    return err.out_buf_too_small ? kTransformErrorOutBufTooSmall
+                                 : kTransformErrorFailed;
+  }
+
+  jpeg_create_decompress(&srcinfo);
+  jpeg_create_compress(&dstinfo);
+
+  jpeg_mem_src(&srcinfo, in_buf, in_size);
+
+  FixedDestinationMgr dest;
+  dest.pub.init_destination = InitFixedDestination;
+  dest.pub.empty_output_buffer = EmptyFixedDestination;
+  dest.pub.term_destination = TermFixedDestination;
+  dest.buf = out_buf;
+  dest.capacity = out_buf_capacity;
+  dstinfo.dest = &dest.pub;
+
+  jcopy_markers_setup(&srcinfo, JCOPYOPT_ALL);
+  jpeg_read_header(&srcinfo, true);
+
+  ExifSegment exif(ExifSegment::Find(&srcinfo));
+  TransformType transform = options.transform;
+  if (options.apply_exif_orientation) {
+    transform = TransformForExifOrientation(exif.GetOrientation());
+  }
+
+  jpeg_transform_info xform = {};
+  xform.transform = static_cast<JXFORM_CODE>(transform);
+  xform.trim = options.trim;
+  xform.perfect = !options.trim;
+  if (options.crop) {
+    if (options.crop_left < 0 || options.crop_top < 0 ||
+        options.crop_right <= options.crop_left ||
+        options.crop_bottom <= options.crop_top) {
+      ERREXIT(&srcinfo, JERR_BAD_CROP_SPEC);
+    }
+    xform.crop = true;
+    xform.crop_xoffset = options.crop_left;
+    xform.crop_xoffset_set = JCROP_POS;
+    xform.crop_yoffset = options.crop_top;
+    xform.crop_yoffset_set = JCROP_POS;
+    xform.crop_width = options.crop_right - options.crop_left;
+    xform.crop_width_set = JCROP_POS;
+    xform.crop_height = options.crop_bottom - options.crop_top;
+    xform.crop_height_set = JCROP_POS;
+  }
+
+  if (!jtransform_request_workspace(&srcinfo, &xform)) {
+    ERREXIT(&srcinfo, JERR_CONVERSION_NOTIMPL);
+  }
+
+  // The saved markers are written out by jcopy_markers_execute(), so the EXIF
+  // segment is updated in place to describe the output.
+  if (options.apply_exif_orientation) {
+    exif.SetOrientation(1);
+  }
+  exif.SetPixelDimensions(xform.output_width, xform.output_height);
+
+  jvirt_barray_ptr* src_coefs = jpeg_read_coefficients(&srcinfo);
+  jpeg_copy_critical_parameters(&srcinfo, &dstinfo);
+  jvirt_barray_ptr* dst_coefs =
+      jtransform_adjust_parameters(&srcinfo, &dstinfo, src_coefs, &xform);
+
+  jpeg_write_coefficients(&dstinfo, dst_coefs);
+  jcopy_markers_execute(&srcinfo, &dstinfo, JCOPYOPT_ALL);
+  jtransform_execute_transform(&srcinfo, &dstinfo, src_coefs, &xform);
+
+  jpeg_finish_compress(&dstinfo);
+  int num_bytes = static_cast<int>(dest.capacity - dest.pub.free_in_buffer);
+
+  if (result != nullptr) {
+    result->crop_left = xform.x_crop_offset * xform.iMCU_sample_width;
+    result->crop_top = xform.y_crop_offset * xform.iMCU_sample_height;
+    result->crop_right = result->crop_left + xform.output_width;
+    result->crop_bottom = result->crop_top + xform.output_height;
+    result->transform = transform;
+  }
+
+  // The whole input has been consumed already, so there is no need to
+  // finish decompressing.
+  jpeg_destroy_compress(&dstinfo);
+  jpeg_destroy_decompress(&srcinfo);
+
+  return num_bytes;
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#pragma once
+
+#include <stddef.h>
+
+/*
+ * Lossless operations on compressed jpegs, built on libjpeg-turbo's transupp.
+ * The DCT coefficients are copied between images without an IDCT/FDCT, so
+ * there is no generation loss and no pixel-domain work.
+ */
+namespace jpegutil {
+
+/** Returned by TransformJpeg() if the output buffer is too small. */
+const int kTransformErrorOutBufTooSmall = -1;
+
+/**
+ * Returned by TransformJpeg() if the input is not a valid jpeg or the
+ * requested transform cannot be applied to it.
+ */
+const int kTransformErrorFailed = -2;
+
+/**
+ * The geometric transforms supported by TransformJpeg().  The values match
+ * libjpeg-turbo's JXFORM_CODE.  Rotations are clockwise.
+ */
+enum TransformType {
+  kTransformNone = 0,
+  kTransformFlipHorizontal = 1,
+  kTransformFlipVertical = 2,
+  kTransformTranspose = 3,
+  kTransformTransverse = 4,
+  kTransformRotate90 = 5,
+  kTransformRotate180 = 6,
+  kTransformRotate270 = 7,
+};
+
+/** A lossless transform applied by TransformJpeg(). */
+struct TransformOptions {
+  /** The transform to apply. */
+  TransformType transform = kTransformNone;
+
+  /**
+   * If true, the transform is taken from the EXIF orientation tag of the
+   * input instead, and the tag of the output is reset to 1 (normal).
+   */
+  bool apply_exif_orientation = false;
+
+  /**
+   * Blocks cannot be split, so partial iMCUs at the right and bottom edges
+   * cannot be moved by most transforms.  If true they are dropped, otherwise
+   * a transform which cannot be applied exactly fails.
+   */
+  bool trim = false;
+
+  /**
+   * If true, crops the transformed image to the rectangle from
+   * (crop_left, crop_top) to (crop_right - 1, crop_bottom - 1).  The right and
+   * bottom edges are kept exactly, but the top-left corner is moved up and
+   * left onto the grid of iMCUs (16x16 pixels for 4:2:0), since blocks cannot
+   * be split without re-encoding.
+   */
+  bool crop = false;
+  int crop_left = 0;
+  int crop_top = 0;
+  int crop_right = 0;
+  int crop_bottom = 0;
+};
+
+/**
+ * The geometry of the jpeg written by TransformJpeg(), in the coordinates of
+ * the transformed image before cropping.
+ */
+struct TransformResult {
+  int crop_left = 0;
+  int crop_top = 0;
+  int crop_right = 0;
+  int crop_bottom = 0;
+  /** The transform that was applied. */
+  TransformType transform = kTransformNone;
+};
+
+/**
+ * Losslessly transforms the jpeg in in_buf into out_buf.  Markers, including
+ * EXIF, are copied over, and the EXIF pixel dimensions are updated to the
+ * output size.  Returns the number of bytes written, or one of the
+ * kTransformError codes.  If result is not null, it receives the geometry of
+ * the output image.
+ */
+int TransformJpeg(const unsigned char* in_buf, size_t in_size,
+                  unsigned char* out_buf, size_t out_buf_capacity,
+                  const TransformOptions& options, TransformResult* result);
+
+}  // namespace jpegutil
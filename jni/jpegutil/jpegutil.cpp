@@ -14,16 +14,21 @@
  * limitations under the License.
  */
 #include "jpegutil.h"
+#include "jpegexif.h"
 #include <memory.h>
+#include <algorithm>
 #include <array>
 #include <vector>
 #include <cstring>
 #include <cstdio>
+#include <atomic>
+#include <thread>
 
 #include <setjmp.h>
 
 extern "C" {
 #include "jpeglib.h"
+#include "jerror.h"
 }
 
 using namespace std;
@@ -137,27 +142,154 @@ void jpegutil::Transform::Map(int x, int y, int* x_out, int* y_out) const {
   *y_out = x * mat10_ + y * mat11_ + orig_y_;
 }
 
-int jpegutil::Compress(int img_width, int img_height,
-                       jpegutil::RowIterator<16>& y_row_generator,
-                       jpegutil::RowIterator<8>& cb_row_generator,
-                       jpegutil::RowIterator<8>& cr_row_generator,
-                       unsigned char* out_buf, size_t out_buf_capacity,
-                       std::function<void(size_t)> flush, int quality) {
+namespace {
+
+/**
+ * Sets the parameters shared by every raw encode, on top of the libjpeg
+ * defaults, and the entropy coding selected by flags, a combination of
+ * EncodeFlags.  num_components is 3 for YCbCr, whose luma has luma_h_samp x
+ * luma_v_samp samples for every chroma sample, or 1 for grayscale.  Image
+ * dimensions are left to the caller.
+ */
+void SetRawParameters(jpeg_compress_struct* cinfo, int quality, int flags,
+                      int num_components, int luma_h_samp, int luma_v_samp) {
+  cinfo->input_components = num_components;
+
+  // Set defaults based on the above values
+  jpeg_set_defaults(cinfo);
+
+  jpeg_set_quality(cinfo, quality, true);
+
+  cinfo->dct_method = JDCT_IFAST;
+
+  cinfo->raw_data_in = true;
+
+  jpeg_set_colorspace(cinfo, num_components == 1 ? JCS_GRAYSCALE : JCS_YCbCr);
+
+  cinfo->comp_info[0].h_samp_factor = luma_h_samp;
+  cinfo->comp_info[0].v_samp_factor = luma_v_samp;
+  for (int i = 1; i < num_components; i++) {
+    cinfo->comp_info[i].h_samp_factor = 1;
+    cinfo->comp_info[i].v_samp_factor = 1;
+  }
+
+  if (flags & jpegutil::kEncodeArithmetic) {
+    cinfo->arith_code = true;
+  } else if (flags & jpegutil::kEncodeOptimizeCoding) {
+    cinfo->optimize_coding = true;
+  }
+  if (flags & jpegutil::kEncodeProgressive) {
+    // The scan script depends on the colorspace, so this comes last.
+    jpeg_simple_progression(cinfo);
+  }
+}
+
+/** Sets the parameters of a raw 4:2:0 encode, see SetRawParameters(). */
+void SetYuv420Parameters(jpeg_compress_struct* cinfo, int quality,
+                         int flags) {
+  SetRawParameters(cinfo, quality, flags, 3, 2, 2);
+}
+
+/**
+ * Feeds img_height rows, read from first_row onwards, to a started compressor
+ * one 16-row MCU row at a time.  yArr must hold 16 entries, cbArr and crArr 8.
+ */
+void WriteRawRows(jpeg_compress_struct* cinfo, int img_height, int first_row,
+                  RowIterator<16>& y_row_generator,
+                  RowIterator<8>& cb_row_generator,
+                  RowIterator<8>& cr_row_generator, JSAMPROW* yArr,
+                  JSAMPROW* cbArr, JSAMPROW* crArr,
+                  const BandObserver& band_observer = nullptr) {
+  JSAMPARRAY imgArr[3] = {yArr, cbArr, crArr};
+
+  for (int y = 0; y < img_height; y += DCTSIZE * 2) {
+    std::array<unsigned char*, 16> yData = y_row_generator.LoadAt(first_row + y);
+    std::array<unsigned char*, 8> cbData =
+        cb_row_generator.LoadAt((first_row + y) / 2);
+    std::array<unsigned char*, 8> crData =
+        cr_row_generator.LoadAt((first_row + y) / 2);
+    if (band_observer) {
+      band_observer(first_row + y, yData, cbData, crData);
+    }
+
+    for (int row = 0; row < DCTSIZE * 2; row++) {
+      yArr[row] = yData[row];
+    }
+    for (int row = 0; row < DCTSIZE; row++) {
+      cbArr[row] = cbData[row];
+      crArr[row] = crData[row];
+    }
+
+    jpeg_write_raw_data(cinfo, imgArr, DCTSIZE * 2);
+  }
+}
+
+/**
+ * The planes, transforms and output geometry of one 4:2:0 frame after
+ * applying a crop followed by a rotation.
+ */
+struct FrameLayout {
+  int width;
+  int height;
+  Plane yP;
+  Plane cbP;
+  Plane crP;
+  Transform yTrans;
+  Transform chromaTrans;
+  int y_row_length;
+  int chroma_row_length;
+
+  FrameLayout(int imgWidth, int imgHeight, unsigned char* yBuf, int yPStride,
+              int yRStride, unsigned char* cbBuf, int cbPStride,
+              int cbRStride, unsigned char* crBuf, int crPStride,
+              int crRStride, int cropLeft, int cropTop, int cropRight,
+              int cropBottom, int rot90)
+      : yP{imgWidth, imgHeight, yBuf, yPStride, yRStride},
+        cbP{imgWidth / 2, imgHeight / 2, cbBuf, cbPStride, cbRStride},
+        crP{imgWidth / 2, imgHeight / 2, crBuf, crPStride, crRStride},
+        yTrans(Transform::ForCropFollowedByRotation(
+            cropLeft, cropTop, cropRight, cropBottom, rot90)),
+        chromaTrans(Transform::ForCropFollowedByRotation(
+            cropLeft / 2, cropTop / 2, cropRight / 2, cropBottom / 2, rot90)) {
+    width = cropRight - cropLeft;
+    height = cropBottom - cropTop;
+
+    rot90 %= 4;
+    // for 90 and 270-degree rotations, flip the final width and height
+    if (rot90 == 1 || rot90 == 3) {
+      width = cropBottom - cropTop;
+      height = cropRight - cropLeft;
+    }
+
+    // Round up to the nearest multiple of 64.
+    y_row_length = RowLength(width);
+    chroma_row_length = RowLength(width / 2);
+  }
+
+  static int RowLength(int width) { return (width + 16 + 63) & ~63; }
+};
+
+/**
+ * Runs one img_width x img_height encode with libjpeg, buffering the output
+ * in out_buf and draining it through flush like Compress().  set_parameters
+ * sets up the compressor after its dimensions, and write_rows feeds the
+ * started compressor the whole image.  Errors longjmp out of both, so neither
+ * may hold resources which need to be released.
+ */
+int RunCompressor(
+    int img_width, int img_height, unsigned char* out_buf,
+    size_t out_buf_capacity, std::function<bool(size_t)> flush,
+    const std::function<void(jpeg_compress_struct*)>& set_parameters,
+    const std::function<void(jpeg_compress_struct*)>& write_rows) {
   // libjpeg requires the use of setjmp/longjmp to recover from errors.  Since
-  // this doesn't play well with RAII, we must use pointers and manually call
-  // delete. See POSIX documentation for longjmp() for details on why the
-  // volatile keyword is necessary.
+  // this doesn't play well with RAII, the callers own everything which needs
+  // to be released. See POSIX documentation for longjmp() for details on why
+  // the volatile keyword is necessary.
   volatile jpeg_compress_struct cinfov;
 
   jpeg_compress_struct& cinfo =
       *const_cast<struct jpeg_compress_struct*>(&cinfov);
 
-  JSAMPROW* volatile yArr = nullptr;
-  JSAMPROW* volatile cbArr = nullptr;
-  JSAMPROW* volatile crArr = nullptr;
-
-  JSAMPARRAY imgArr[3];
-
   // Error handling
 
   struct my_error_mgr {
@@ -186,10 +318,6 @@ int jpegutil::Compress(int img_width, int img_height,
     // longjmp()).
     jpeg_destroy_compress(&cinfo);
 
-    safeDeleteArray(yArr);
-    safeDeleteArray(cbArr);
-    safeDeleteArray(crArr);
-
     return -1;
   }
 
@@ -200,7 +328,7 @@ int jpegutil::Compress(int img_width, int img_height,
   struct ClientData {
     unsigned char* out_buf;
     size_t out_buf_capacity;
-    std::function<void(size_t)> flush;
+    std::function<bool(size_t)> flush;
     int totalOutputBytes;
   } clientData{out_buf, out_buf_capacity, flush, 0};
 
@@ -219,8 +347,16 @@ int jpegutil::Compress(int img_width, int img_height,
   dest.empty_output_buffer = [](j_compress_ptr cinfo) -> boolean {
     ClientData& cdata = *reinterpret_cast<ClientData*>(cinfo->client_data);
 
+    if (!cdata.flush) {
+      // Without a flush callback the output buffer cannot be drained, so
+      // running out of space is an error rather than a wrap-around.
+      ERREXIT(cinfo, JERR_BUFFER_SIZE);
+    }
+
     size_t numBytesInBuffer = cdata.out_buf_capacity;
-    cdata.flush(numBytesInBuffer);
+    if (!cdata.flush(numBytesInBuffer)) {
+      ERREXIT(cinfo, JERR_FILE_WRITE);
+    }
     cdata.totalOutputBytes += numBytesInBuffer;
 
     // Reset the buffer
@@ -239,69 +375,348 @@ int jpegutil::Compress(int img_width, int img_height,
   // Set jpeg parameters
   cinfo.image_width = img_width;
   cinfo.image_height = img_height;
-  cinfo.input_components = 3;
 
-  // Set defaults based on the above values
-  jpeg_set_defaults(&cinfo);
+  set_parameters(&cinfo);
 
-  jpeg_set_quality(&cinfo, quality, true);
+  jpeg_start_compress(&cinfo, true);
 
-  cinfo.dct_method = JDCT_IFAST;
+  write_rows(&cinfo);
 
-  cinfo.raw_data_in = true;
+  jpeg_finish_compress(&cinfo);
 
-  jpeg_set_colorspace(&cinfo, JCS_YCbCr);
+  int numBytesInBuffer = cinfo.dest->next_output_byte - out_buf;
 
-  cinfo.comp_info[0].h_samp_factor = 2;
-  cinfo.comp_info[0].v_samp_factor = 2;
-  cinfo.comp_info[1].h_samp_factor = 1;
-  cinfo.comp_info[1].v_samp_factor = 1;
-  cinfo.comp_info[2].h_samp_factor = 1;
-  cinfo.comp_info[2].v_samp_factor = 1;
+  bool flushed = !flush || flush(numBytesInBuffer);
 
-  jpeg_start_compress(&cinfo, true);
+  clientData.totalOutputBytes += numBytesInBuffer;
 
-  yArr = new JSAMPROW[cinfo.comp_info[0].v_samp_factor * DCTSIZE];
-  cbArr = new JSAMPROW[cinfo.comp_info[1].v_samp_factor * DCTSIZE];
-  crArr = new JSAMPROW[cinfo.comp_info[2].v_samp_factor * DCTSIZE];
+  jpeg_destroy_compress(&cinfo);
 
-  imgArr[0] = const_cast<JSAMPARRAY>(yArr);
-  imgArr[1] = const_cast<JSAMPARRAY>(cbArr);
-  imgArr[2] = const_cast<JSAMPARRAY>(crArr);
+  return flushed ? clientData.totalOutputBytes : -1;
+}
 
-  for (int y = 0; y < img_height; y += DCTSIZE * 2) {
-    std::array<unsigned char*, 16> yData = y_row_generator.LoadAt(y);
-    std::array<unsigned char*, 8> cbData = cb_row_generator.LoadAt(y / 2);
-    std::array<unsigned char*, 8> crData = cr_row_generator.LoadAt(y / 2);
+}  // namespace
 
-    for (int row = 0; row < DCTSIZE * 2; row++) {
-      yArr[row] = yData[row];
-    }
-    for (int row = 0; row < DCTSIZE; row++) {
-      cbArr[row] = cbData[row];
-      crArr[row] = crData[row];
+int jpegutil::Compress(int img_width, int img_height,
+                       jpegutil::RowIterator<16>& y_row_generator,
+                       jpegutil::RowIterator<8>& cb_row_generator,
+                       jpegutil::RowIterator<8>& cr_row_generator,
+                       unsigned char* out_buf, size_t out_buf_capacity,
+                       std::function<bool(size_t)> flush, int quality,
+                       int first_row, unsigned int restart_interval,
+                       int flags, const BandObserver& band_observer) {
+  JSAMPROW yArr[DCTSIZE * 2];
+  JSAMPROW cbArr[DCTSIZE];
+  JSAMPROW crArr[DCTSIZE];
+
+  return RunCompressor(
+      img_width, img_height, out_buf, out_buf_capacity, flush,
+      [&](jpeg_compress_struct* cinfo) {
+        SetYuv420Parameters(cinfo, quality, flags);
+        cinfo->restart_interval = restart_interval;
+      },
+      [&](jpeg_compress_struct* cinfo) {
+        WriteRawRows(cinfo, img_height, first_row, y_row_generator,
+                     cb_row_generator, cr_row_generator, yArr, cbArr, crArr,
+                     band_observer);
+      });
+}
+
+namespace {
+
+/**
+ * One plane of a raw encode of any sampling: the plane, the transform which
+ * maps the output image into it, and its sampling factors in the output.
+ */
+struct RawComponent {
+  Plane plane;
+  Transform transform;
+  int h_samp;
+  int v_samp;
+};
+
+/**
+ * Compresses width x height images of one or three components straight from
+ * their planes, at any sampling factors libjpeg supports.  Each component is
+ * read through one RowIterator per block row of an MCU, so the iterators do
+ * not depend on the vertical sampling.
+ */
+int CompressComponents(int width, int height,
+                       const std::vector<RawComponent>& components,
+                       unsigned char* outBuf, size_t outBufCapacity,
+                       int quality, int flags) {
+  int maxHSamp = 1;
+  int maxVSamp = 1;
+  for (const RawComponent& c : components) {
+    maxHSamp = max(maxHSamp, c.h_samp);
+    maxVSamp = max(maxVSamp, c.v_samp);
+  }
+  const int mcuHeight = maxVSamp * DCTSIZE;
+
+  // Everything which needs to be released is created here, outside of
+  // RunCompressor().
+  std::vector<RowIterator<DCTSIZE>> iterators;
+  std::vector<JSAMPROW> rows;
+  std::array<JSAMPARRAY, 3> rowArrays;
+  for (const RawComponent& c : components) {
+    const int rowLength = FrameLayout::RowLength(
+        (width * c.h_samp + maxHSamp - 1) / maxHSamp);
+    for (int i = 0; i < c.v_samp; i++) {
+      iterators.emplace_back(c.plane, c.transform, rowLength);
     }
+    rows.resize(rows.size() + c.v_samp * DCTSIZE);
+  }
+  JSAMPROW* componentRows = rows.data();
+  for (size_t i = 0; i < components.size(); i++) {
+    rowArrays[i] = componentRows;
+    componentRows += components[i].v_samp * DCTSIZE;
+  }
 
-    jpeg_write_raw_data(&cinfo, imgArr, DCTSIZE * 2);
+  return RunCompressor(
+      width, height, outBuf, outBufCapacity, nullptr,
+      [&](jpeg_compress_struct* cinfo) {
+        SetRawParameters(cinfo, quality, flags, components.size(),
+                         components[0].h_samp, components[0].v_samp);
+      },
+      [&](jpeg_compress_struct* cinfo) {
+        for (int y = 0; y < height; y += mcuHeight) {
+          RowIterator<DCTSIZE>* iterator = iterators.data();
+          JSAMPROW* row = rows.data();
+          for (const RawComponent& c : components) {
+            const int componentY = y * c.v_samp / maxVSamp;
+            for (int i = 0; i < c.v_samp; i++) {
+              std::array<unsigned char*, DCTSIZE> data =
+                  (iterator++)->LoadAt(componentY + i * DCTSIZE);
+              row = std::copy(data.begin(), data.end(), row);
+            }
+          }
+          jpeg_write_raw_data(cinfo, rowArrays.data(), mcuHeight);
+        }
+      });
+}
+
+}  // namespace
+
+int jpegutil::CompressYCbCr(int width, int height, int chromaHFactor,
+                            int chromaVFactor, unsigned char* yBuf,
+                            int yPStride, int yRStride, unsigned char* cbBuf,
+                            int cbPStride, int cbRStride, unsigned char* crBuf,
+                            int crPStride, int crRStride,
+                            unsigned char* outBuf, size_t outBufCapacity,
+                            int quality, int cropLeft, int cropTop,
+                            int cropRight, int cropBottom, int rot90,
+                            int flags) {
+  if (chromaHFactor < 1 || chromaVFactor < 1 || cropRight <= cropLeft ||
+      cropBottom <= cropTop) {
+    return -1;
   }
+  const Transform yTrans = Transform::ForCropFollowedByRotation(
+      cropLeft, cropTop, cropRight, cropBottom, rot90);
+  const Transform chromaTrans = Transform::ForCropFollowedByRotation(
+      cropLeft / chromaHFactor, cropTop / chromaVFactor,
+      cropRight / chromaHFactor, cropBottom / chromaVFactor, rot90);
+  // Rotating by 90 or 270 degrees turns horizontal subsampling into vertical
+  // subsampling, e.g. 4:2:2 into 4:4:0.
+  const bool transposed = rot90 % 2 == 1;
+
+  const std::vector<RawComponent> components = {
+      {{width, height, yBuf, yPStride, yRStride},
+       yTrans,
+       transposed ? chromaVFactor : chromaHFactor,
+       transposed ? chromaHFactor : chromaVFactor},
+      {{width / chromaHFactor, height / chromaVFactor, cbBuf, cbPStride,
+        cbRStride},
+       chromaTrans,
+       1,
+       1},
+      {{width / chromaHFactor, height / chromaVFactor, crBuf, crPStride,
+        crRStride},
+       chromaTrans,
+       1,
+       1}};
+  return CompressComponents(yTrans.output_width(), yTrans.output_height(),
+                            components, outBuf, outBufCapacity, quality,
+                            flags);
+}
 
-  jpeg_finish_compress(&cinfo);
+int jpegutil::CompressGrayscale(int width, int height, unsigned char* yBuf,
+                                int yPStride, int yRStride,
+                                unsigned char* outBuf, size_t outBufCapacity,
+                                int quality, int cropLeft, int cropTop,
+                                int cropRight, int cropBottom, int rot90,
+                                int flags) {
+  if (cropRight <= cropLeft || cropBottom <= cropTop) {
+    return -1;
+  }
+  const Transform yTrans = Transform::ForCropFollowedByRotation(
+      cropLeft, cropTop, cropRight, cropBottom, rot90);
+  const std::vector<RawComponent> components = {
+      {{width, height, yBuf, yPStride, yRStride}, yTrans, 1, 1}};
+  return CompressComponents(yTrans.output_width(), yTrans.output_height(),
+                            components, outBuf, outBufCapacity, quality,
+                            flags);
+}
 
-  int numBytesInBuffer = cinfo.dest->next_output_byte - out_buf;
+namespace {
 
-  flush(numBytesInBuffer);
+// Each 4:2:0 MCU covers 16x16 luma samples.
+const int kMcuSize = DCTSIZE * 2;
+// The DRI marker stores the restart interval in 16 bits.
+const int kMaxRestartInterval = 65535;
 
-  clientData.totalOutputBytes += numBytesInBuffer;
+inline int ReadBigEndian16(const unsigned char* p) { return (p[0] << 8) | p[1]; }
 
-  safeDeleteArray(yArr);
-  safeDeleteArray(cbArr);
-  safeDeleteArray(crArr);
+/**
+ * Walks the marker segments of an encoded JPEG, starting after SOI, and returns
+ * the offset of the first marker with the given code, or -1 if the start of
+ * scan or the end of the data is reached first.
+ */
+int FindMarker(const std::vector<unsigned char>& jpeg, unsigned char code) {
+  size_t pos = 2;
+  while (pos + 4 <= jpeg.size() && jpeg[pos] == 0xFF) {
+    if (jpeg[pos + 1] == code) {
+      return static_cast<int>(pos);
+    }
+    if (jpeg[pos + 1] == 0xDA) {
+      return -1;
+    }
+    pos += 2 + ReadBigEndian16(&jpeg[pos + 2]);
+  }
+  return -1;
+}
 
-  jpeg_destroy_compress(&cinfo);
+/**
+ * Encodes an image as a sequence of independently compressed horizontal bands
+ * and stitches them into one baseline JPEG.
+ *
+ * Every band holds the same number of MCU rows (except possibly the last) and
+ * is encoded with its own libjpeg context, starting with fresh DC predictions.
+ * That is exactly how a decoder treats a restart interval, so declaring one
+ * interval per band with DRI and separating the entropy-coded segments with
+ * RSTn markers yields a standard JPEG.  The Huffman tables are the fixed
+ * defaults, so all bands agree on them.
+ */
+int CompressParallel(int width, int height, const Plane& yP, const Plane& cbP,
+                     const Plane& crP, const Transform& yTrans,
+                     const Transform& chromaTrans, int y_row_length,
+                     int cb_row_length, int cr_row_length,
+                     unsigned char* outBuf, size_t outBufCapacity, int quality,
+                     int numThreads) {
+  const int mcusPerRow = (width + kMcuSize - 1) / kMcuSize;
+  const int mcuRows = (height + kMcuSize - 1) / kMcuSize;
+
+  int numBands = min(numThreads, mcuRows);
+  int bandMcuRows = (mcuRows + numBands - 1) / numBands;
+  if (bandMcuRows * mcusPerRow > kMaxRestartInterval) {
+    // Very wide images need shorter bands to fit the restart interval into
+    // DRI.  There are then more bands than threads, which take turns.
+    bandMcuRows = max(1, kMaxRestartInterval / mcusPerRow);
+  }
+  numBands = (mcuRows + bandMcuRows - 1) / bandMcuRows;
+  if (numBands <= 1) {
+    RowIterator<16> yIter(yP, yTrans, y_row_length);
+    RowIterator<8> cbIter(cbP, chromaTrans, cb_row_length);
+    RowIterator<8> crIter(crP, chromaTrans, cr_row_length);
+    return Compress(width, height, yIter, cbIter, crIter, outBuf,
+                    outBufCapacity, nullptr, quality);
+  }
+  const int bandHeight = bandMcuRows * kMcuSize;
+  const unsigned int restartInterval = bandMcuRows * mcusPerRow;
+
+  std::vector<std::vector<unsigned char>> bands(numBands);
+  std::vector<int> results(numBands, -1);
+  std::atomic<int> nextBand(0);
+
+  auto worker = [&]() {
+    // Bands are appended to through a small staging buffer.
+    std::vector<unsigned char> staging(64 * 1024);
+    for (int band = nextBand++; band < numBands; band = nextBand++) {
+      std::vector<unsigned char>& out = bands[band];
+      int firstRow = band * bandHeight;
+      int rows = min(bandHeight, height - firstRow);
+      RowIterator<16> yIter(yP, yTrans, y_row_length);
+      RowIterator<8> cbIter(cbP, chromaTrans, cb_row_length);
+      RowIterator<8> crIter(crP, chromaTrans, cr_row_length);
+      auto flush = [&](size_t numBytes) {
+        out.insert(out.end(), staging.begin(), staging.begin() + numBytes);
+        return true;
+      };
+      results[band] =
+          Compress(width, rows, yIter, cbIter, crIter, staging.data(),
+                   staging.size(), flush, quality, firstRow, restartInterval);
+    }
+  };
+
+  int numWorkers = min(numThreads, numBands);
+  std::vector<std::thread> threads;
+  threads.reserve(numWorkers - 1);
+  for (int i = 1; i < numWorkers; i++) {
+    threads.emplace_back(worker);
+  }
+  worker();
+  for (std::thread& thread : threads) {
+    thread.join();
+  }
+
+  for (int band = 0; band < numBands; band++) {
+    if (results[band] < 0) {
+      return -1;
+    }
+  }
 
-  return clientData.totalOutputBytes;
+  // The first band supplies the headers.  Its frame header still describes a
+  // single band, so patch in the full image height.
+  std::vector<unsigned char>& first = bands[0];
+  int sof = FindMarker(first, 0xC0);
+  if (sof < 0) {
+    return -1;
+  }
+  first[sof + 5] = static_cast<unsigned char>(height >> 8);
+  first[sof + 6] = static_cast<unsigned char>(height & 0xFF);
+
+  size_t total = 0;
+  unsigned char* out = outBuf;
+  auto append = [&](const unsigned char* data, size_t size) -> bool {
+    if (total + size > outBufCapacity) {
+      return false;
+    }
+    memcpy(out + total, data, size);
+    total += size;
+    return true;
+  };
+
+  // Everything but the trailing EOI of the first band.
+  if (!append(first.data(), first.size() - 2)) {
+    return -1;
+  }
+  for (int band = 1; band < numBands; band++) {
+    const std::vector<unsigned char>& data = bands[band];
+    // Find the start of scan, the entropy-coded segment follows its header.
+    size_t pos = 2;
+    while (pos + 4 <= data.size() && data[pos + 1] != 0xDA) {
+      pos += 2 + ReadBigEndian16(&data[pos + 2]);
+    }
+    if (pos + 4 > data.size()) {
+      return -1;
+    }
+    size_t entropyStart = pos + 2 + ReadBigEndian16(&data[pos + 2]);
+    size_t entropyEnd = data.size() - 2;
+    const unsigned char restartMarker[2] = {
+        0xFF, static_cast<unsigned char>(0xD0 + ((band - 1) & 7))};
+    if (!append(restartMarker, 2) ||
+        !append(data.data() + entropyStart, entropyEnd - entropyStart)) {
+      return -1;
+    }
+  }
+  const unsigned char eoi[2] = {0xFF, 0xD9};
+  if (!append(eoi, 2)) {
+    return -1;
+  }
+  return static_cast<int>(total);
 }
 
+}  // namespace
+
 int jpegutil::Compress(
     /** Input image dimensions */
     int width, int height,
@@ -319,45 +734,722 @@ int jpegutil::Compress(
     int cropLeft, int cropTop, int cropRight, int cropBottom,
     /** Rotation (multiple of 90).  For example, rot90 = 1 implies a 90 degree
      * rotation. */
-    int rot90) {
-  int finalWidth;
-  int finalHeight;
-  finalWidth = cropRight - cropLeft;
-  finalHeight = cropBottom - cropTop;
+    int rot90,
+    /** Number of encoder threads */
+    int numThreads,
+    /** A combination of EncodeFlags */
+    int flags) {
+  FrameLayout f(width, height, yBuf, yPStride, yRStride, cbBuf, cbPStride,
+                cbRStride, crBuf, crPStride, crRStride, cropLeft, cropTop,
+                cropRight, cropBottom, rot90);
+
+  // Bands can only be joined with the standard Huffman tables.
+  if (numThreads > 1 && flags == 0) {
+    return CompressParallel(f.width, f.height, f.yP, f.cbP, f.crP, f.yTrans,
+                            f.chromaTrans, f.y_row_length, f.chroma_row_length,
+                            f.chroma_row_length, outBuf, outBufCapacity,
+                            quality, numThreads);
+  }
 
-  rot90 %= 4;
-  // for 90 and 270-degree rotations, flip the final width and height
-  if (rot90 == 1) {
-    finalWidth = cropBottom - cropTop;
-    finalHeight = cropRight - cropLeft;
-  } else if (rot90 == 3) {
-    finalWidth = cropBottom - cropTop;
-    finalHeight = cropRight - cropLeft;
+  RowIterator<16> yIter(f.yP, f.yTrans, f.y_row_length);
+  RowIterator<8> cbIter(f.cbP, f.chromaTrans, f.chroma_row_length);
+  RowIterator<8> crIter(f.crP, f.chromaTrans, f.chroma_row_length);
+
+  // There is no flush callback, so the whole image must fit into outBuf.
+  return Compress(f.width, f.height, yIter, cbIter, crIter, outBuf,
+                  outBufCapacity, nullptr, quality, 0, 0, flags);
+}
+
+int jpegutil::Compress(int width, int height, unsigned char* yBuf,
+                       int yPStride, int yRStride, unsigned char* cbBuf,
+                       int cbPStride, int cbRStride, unsigned char* crBuf,
+                       int crPStride, int crRStride, unsigned char* outBuf,
+                       size_t outBufCapacity,
+                       std::function<bool(size_t)> flush, int quality,
+                       int cropLeft, int cropTop, int cropRight,
+                       int cropBottom, int rot90, int flags) {
+  FrameLayout f(width, height, yBuf, yPStride, yRStride, cbBuf, cbPStride,
+                cbRStride, crBuf, crPStride, crRStride, cropLeft, cropTop,
+                cropRight, cropBottom, rot90);
+
+  RowIterator<16> yIter(f.yP, f.yTrans, f.y_row_length);
+  RowIterator<8> cbIter(f.cbP, f.chromaTrans, f.chroma_row_length);
+  RowIterator<8> crIter(f.crP, f.chromaTrans, f.chroma_row_length);
+
+  return Compress(f.width, f.height, yIter, cbIter, crIter, outBuf,
+                  outBufCapacity, flush, quality, 0, 0, flags);
+}
+
+namespace {
+
+// Rate-controlled encodes sample every kMaxSampleInterval-th MCU row of large
+// images, and at least kMinSampleMcuRows of smaller ones.
+const int kMaxSampleInterval = 16;
+const int kMinSampleMcuRows = 8;
+// How much the logarithm of an encoded size typically falls per unit of the
+// logarithm of the quantization scale, for photos.
+const double kSizeScaleSlope = 0.7;
+// The fractions of the budget that the first and the corrective encode aim
+// for.  Sample estimates of photos are typically within 4% of the encoded size,
+// and corrected estimates within 1%, so this mostly avoids the corrective
+// encode while giving up little quality.
+const double kFirstTarget = 0.97;
+const double kRetryTarget = 0.99;
+// An encode which leaves more of the budget than this unused shows that the
+// sample misjudged the image, so the qualities above it are then bisected
+// instead of tried one at a time.
+const double kSearchTarget = 0.9;
+
+/**
+ * A subset of the MCU rows of an image, gathered through the crop and rotation
+ * of the image once and kept in packed planes, so that the sizes a
+ * rate-controlled encode estimates from can be encoded cheaply at several
+ * qualities.
+ */
+class SampledImage {
+ public:
+  SampledImage(const FrameLayout& f, int flags)
+      : width_(f.width), flags_(flags), staging_(64 * 1024) {
+    mcu_rows_ = (f.height + kMcuSize - 1) / kMcuSize;
+    const int interval =
+        max(1, min(kMaxSampleInterval, mcu_rows_ / kMinSampleMcuRows));
+    sample_mcu_rows_ = (mcu_rows_ + interval - 1) / interval;
+
+    y_row_length_ = f.y_row_length;
+    chroma_row_length_ = f.chroma_row_length;
+    y_.resize(static_cast<size_t>(y_row_length_) * sample_mcu_rows_ *
+              kMcuSize);
+    cb_.resize(static_cast<size_t>(chroma_row_length_) * sample_mcu_rows_ *
+               kMcuSize / 2);
+    cr_.resize(cb_.size());
+
+    RowIterator<16> yIter(f.yP, f.yTrans, y_row_length_);
+    RowIterator<8> cbIter(f.cbP, f.chromaTrans, chroma_row_length_);
+    RowIterator<8> crIter(f.crP, f.chromaTrans, chroma_row_length_);
+    for (int i = 0; i < sample_mcu_rows_; i++) {
+      // Take the middle MCU row of each interval.
+      const int row =
+          min(i * interval + interval / 2, mcu_rows_ - 1) * kMcuSize;
+      CopyRows(yIter.LoadAt(row), y_row_length_, &y_[0], i * kMcuSize);
+      CopyRows(cbIter.LoadAt(row / 2), chroma_row_length_, &cb_[0],
+               i * kMcuSize / 2);
+      CopyRows(crIter.LoadAt(row / 2), chroma_row_length_, &cr_[0],
+               i * kMcuSize / 2);
+    }
+  }
+
+  /**
+   * Returns the estimated size of the whole image encoded at quality, which
+   * scales the entropy-coded data of the sample to the number of MCU rows of
+   * the image, or -1 on error.  ratio scales the estimate of the entropy-coded
+   * data, to correct it after a full encode.
+   */
+  int64_t EstimateSize(int quality, double ratio = 1.0) {
+    int header = HeaderSize(quality);
+    int sample = SampleSize(quality);
+    if (header < 0 || sample < 0) {
+      return -1;
+    }
+    double data = static_cast<double>(max(0, sample - header)) * mcu_rows_ /
+                  sample_mcu_rows_;
+    return header + static_cast<int64_t>(data * ratio);
+  }
+
+  /**
+   * Returns the highest quality in [minQuality, maxQuality] whose estimated
+   * size is at most budget, or minQuality if there is none.
+   *
+   * Encoded sizes grow with the quality, so this narrows a bracket of a fitting
+   * and a non-fitting quality.  The logarithm of the size is close to linear
+   * in the logarithm of the quantization scale, so the next quality is mostly
+   * interpolated on those, with a bisection after every interpolation that
+   * did not halve the bracket.
+   */
+  int FindQuality(int minQuality, int maxQuality, int64_t budget,
+                  double ratio = 1.0) {
+    int64_t hiSize = EstimateSize(maxQuality, ratio);
+    if (hiSize >= 0 && hiSize <= budget) {
+      return maxQuality;
+    }
+    int lo = minQuality - 1;  // Fits; minQuality - 1 is a sentinel.
+    int hi = maxQuality;      // Does not fit.
+    int64_t loSize = -1;
+    bool bisect = false;
+    while (hi - lo > 1) {
+      int q = (lo + hi) / 2;
+      if (hiSize > budget && loSize < 0) {
+        // Without a fitting size yet, extrapolate with a typical slope.
+        double logScale =
+            LogScale(hi) + (log(hiSize) - log(budget)) / kSizeScaleSlope;
+        q = max(lo + 1, min(QualityForScale(exp(logScale)), hi - 1));
+      } else if (!bisect && hiSize > budget) {
+        double t = (log(budget) - log(loSize)) / (log(hiSize) - log(loSize));
+        double logScale = LogScale(lo) + t * (LogScale(hi) - LogScale(lo));
+        q = max(lo + 1, min(QualityForScale(exp(logScale)), hi - 1));
+      }
+      const int width = hi - lo;
+      int64_t size = EstimateSize(q, ratio);
+      if (size >= 0 && size <= budget) {
+        lo = q;
+        loSize = size;
+      } else {
+        hi = q;
+        hiSize = size;
+      }
+      bisect = !bisect && (hi - lo) * 2 > width;
+    }
+    return max(lo, minQuality);
   }
 
-  const Plane yP = {width, height, yBuf, yPStride, yRStride};
-  const Plane cbP = {width / 2, height / 2, cbBuf, cbPStride, cbRStride};
-  const Plane crP = {width / 2, height / 2, crBuf, crPStride, crRStride};
+  /**
+   * Returns the size of the markers and tables at quality, measured as the size
+   * of a flat 16x16 image, or -1 on error.
+   */
+  int HeaderSize(int quality) {
+    int& size = header_sizes_[quality];
+    if (size == 0) {
+      static const unsigned char kFlat[64] = {};
+      // A row stride of 0 repeats the same row.
+      const Plane flatP = {kMcuSize, kMcuSize, kFlat, 1, 0};
+      RowIterator<16> yIter(flatP, Transform(0, 0, kMcuSize, kMcuSize), 64);
+      RowIterator<8> cbIter(flatP, Transform(0, 0, kMcuSize / 2, kMcuSize / 2),
+                            64);
+      RowIterator<8> crIter(flatP, Transform(0, 0, kMcuSize / 2, kMcuSize / 2),
+                            64);
+      size = EncodedSize(kMcuSize, kMcuSize, yIter, cbIter, crIter, quality);
+    }
+    return size;
+  }
+
+ private:
+  /**
+   * Returns the logarithm of the percentage libjpeg scales its quantization
+   * tables by at quality, see jpeg_quality_scaling().
+   */
+  static double LogScale(int quality) {
+    return log(quality < 50 ? 5000.0 / quality : max(1, 200 - quality * 2));
+  }
 
-  auto flush = [](size_t numBytes __unused) {
-    // do nothing
+  /** Returns the quality for a scale, the inverse of jpeg_quality_scaling(). */
+  static int QualityForScale(double scale) {
+    return static_cast<int>(scale >= 100 ? 5000 / scale : (200 - scale) / 2);
+  }
+
+  /** Copies rows loaded by a RowIterator into a packed plane. */
+  template <size_t ROWS>
+  static void CopyRows(const std::array<unsigned char*, ROWS>& rows,
+                       int row_length, unsigned char* dst, int first_row) {
+    for (size_t i = 0; i < ROWS; i++) {
+      memcpy(dst + static_cast<size_t>(first_row + i) * row_length, rows[i],
+             row_length);
+    }
+  }
+
+  /** Returns the size of the sample encoded at quality, or -1 on error. */
+  int SampleSize(int quality) {
+    int& size = sample_sizes_[quality];
+    if (size == 0) {
+      const int height = sample_mcu_rows_ * kMcuSize;
+      const Plane yP = {y_row_length_, height, y_.data(), 1, y_row_length_};
+      const Plane cbP = {chroma_row_length_, height / 2, cb_.data(), 1,
+                         chroma_row_length_};
+      const Plane crP = {chroma_row_length_, height / 2, cr_.data(), 1,
+                         chroma_row_length_};
+      const Transform chromaTrans(0, 0, chroma_row_length_, height / 2);
+      RowIterator<16> yIter(yP, Transform(0, 0, y_row_length_, height),
+                            y_row_length_);
+      RowIterator<8> cbIter(cbP, chromaTrans, chroma_row_length_);
+      RowIterator<8> crIter(crP, chromaTrans, chroma_row_length_);
+      size = EncodedSize(width_, height, yIter, cbIter, crIter, quality);
+    }
+    return size;
+  }
+
+  /** Returns the size of an encode, or -1 on error. */
+  int EncodedSize(int width, int height, RowIterator<16>& yIter,
+                  RowIterator<8>& cbIter, RowIterator<8>& crIter,
+                  int quality) {
+    return Compress(width, height, yIter, cbIter, crIter, staging_.data(),
+                    staging_.size(), [](size_t) { return true; }, quality, 0,
+                    0, flags_);
+  }
+
+  const int width_;
+  const int flags_;
+  int mcu_rows_;
+  int sample_mcu_rows_;
+  int y_row_length_;
+  int chroma_row_length_;
+  std::vector<unsigned char> y_;
+  std::vector<unsigned char> cb_;
+  std::vector<unsigned char> cr_;
+  // Sample encodes only keep their size, so they share a small buffer.
+  std::vector<unsigned char> staging_;
+  // Sizes by quality, 0 if not encoded yet.
+  std::array<int, 101> sample_sizes_ = {};
+  std::array<int, 101> header_sizes_ = {};
+};
+
+}  // namespace
+
+int jpegutil::CompressToSize(int width, int height, unsigned char* yBuf,
+                             int yPStride, int yRStride, unsigned char* cbBuf,
+                             int cbPStride, int cbRStride, unsigned char* crBuf,
+                             int crPStride, int crRStride,
+                             unsigned char* outBuf, size_t outBufCapacity,
+                             int maxQuality, int cropLeft, int cropTop,
+                             int cropRight, int cropBottom, int rot90,
+                             int flags, int* qualityOut) {
+  maxQuality = max(1, min(maxQuality, 100));
+  FrameLayout f(width, height, yBuf, yPStride, yRStride, cbBuf, cbPStride,
+                cbRStride, crBuf, crPStride, crRStride, cropLeft, cropTop,
+                cropRight, cropBottom, rot90);
+  SampledImage sample(f, flags);
+
+  const int64_t budget = static_cast<int64_t>(outBufCapacity);
+  int quality = sample.FindQuality(1, maxQuality,
+                                   static_cast<int64_t>(budget * kFirstTarget));
+  int64_t estimate = sample.EstimateSize(quality);
+  if (estimate < 0) {
+    return -1;
+  }
+
+  RowIterator<16> yIter(f.yP, f.yTrans, f.y_row_length);
+  RowIterator<8> cbIter(f.cbP, f.chromaTrans, f.chroma_row_length);
+  RowIterator<8> crIter(f.crP, f.chromaTrans, f.chroma_row_length);
+
+  // Once outBuf overflows, keep encoding over its start just to learn the full
+  // size, which the corrective encode needs.  An encode which fits never
+  // wraps around, so outBuf then holds the whole jpeg.
+  auto encode = [&](int q) {
+    return Compress(f.width, f.height, yIter, cbIter, crIter, outBuf,
+                    outBufCapacity, [](size_t) { return true; }, q, 0, 0,
+                    flags);
+  };
+  auto fits = [&](int size) {
+    return static_cast<size_t>(size) <= outBufCapacity;
   };
 
-  // Round up to the nearest multiple of 64.
-  int y_row_length = (finalWidth + 16 + 63) & ~63;
-  int cb_row_length = (finalWidth / 2 + 16 + 63) & ~63;
-  int cr_row_length = (finalWidth / 2 + 16 + 63) & ~63;
+  int size = encode(quality);
+  if (size < 0) {
+    return -1;
+  }
+  // The highest quality known to fit, or 0, and the lowest one known not to.
+  int best = 0;
+  int tooLarge = maxQuality + 1;
+  if (!fits(size)) {
+    tooLarge = quality;
+    if (quality > 1) {
+      // Scale the estimated entropy-coded data by how far it was off at this
+      // quality, and encode once more at the quality that then fits.
+      const int header = sample.HeaderSize(quality);
+      const double ratio = static_cast<double>(size - header) /
+                           (estimate > header ? estimate - header : 1);
+      quality = sample.FindQuality(1, quality - 1,
+                                   static_cast<int64_t>(budget * kRetryTarget),
+                                   ratio);
+      size = encode(quality);
+      if (size < 0) {
+        return -1;
+      }
+      if (!fits(size)) {
+        tooLarge = quality;
+      }
+    }
+  }
+  if (fits(size)) {
+    best = quality;
+  }
+  // The estimates aim a little below the budget, so the qualities above best
+  // are tried one at a time until the next one overflows.  If the estimate is
+  // off too far to trust, they are bisected instead.
+  const bool bisect = best == 0 || size < budget * kSearchTarget;
+  // Whether outBuf holds the encode at best, which a larger one overwrites.
+  bool bestInBuf = best != 0;
+  while (tooLarge - best > 1) {
+    const int next = bisect ? best + (tooLarge - best) / 2 : best + 1;
+    size = encode(next);
+    if (size < 0) {
+      return -1;
+    }
+    bestInBuf = fits(size);
+    if (bestInBuf) {
+      best = next;
+    } else {
+      tooLarge = next;
+    }
+  }
+  if (best == 0) {
+    // Not even quality 1 fits.
+    return -1;
+  }
+  if (!bestInBuf) {
+    size = encode(best);
+  }
+  quality = best;
+  if (size < 0 || !fits(size)) {
+    return -1;
+  }
+  if (qualityOut != nullptr) {
+    *qualityOut = quality;
+  }
+  return size;
+}
 
-  Transform yTrans = Transform::ForCropFollowedByRotation(
-      cropLeft, cropTop, cropRight, cropBottom, rot90);
+namespace {
+
+// The quality of EXIF thumbnails, lowered in steps of kThumbnailQualityStep
+// until the thumbnail fits into the APP1 segment.
+const int kThumbnailQuality = 85;
+const int kThumbnailQualityStep = 15;
+// Room in the APP1 segment for the EXIF tags in front of the thumbnail.
+const size_t kExifTagBytes = 512;
+
+/**
+ * Box-filters the bands of an image, as seen by a BandObserver, into a 4:2:0
+ * thumbnail.  Every sample of the image is added to the thumbnail sample it
+ * falls into, so the work is one addition per sample.
+ */
+class ThumbnailAccumulator {
+ public:
+  ThumbnailAccumulator(int width, int height, int thumb_width,
+                       int thumb_height)
+      : y_(width, height, thumb_width, thumb_height),
+        cb_((width + 1) / 2, (height + 1) / 2, thumb_width / 2,
+            thumb_height / 2),
+        cr_((width + 1) / 2, (height + 1) / 2, thumb_width / 2,
+            thumb_height / 2) {}
+
+  void AddBand(int first_row, const std::array<unsigned char*, 16>& y_rows,
+               const std::array<unsigned char*, 8>& cb_rows,
+               const std::array<unsigned char*, 8>& cr_rows) {
+    y_.AddRows(first_row, y_rows.data(), y_rows.size());
+    cb_.AddRows(first_row / 2, cb_rows.data(), cb_rows.size());
+    cr_.AddRows(first_row / 2, cr_rows.data(), cr_rows.size());
+  }
+
+  /**
+   * Encodes the thumbnail into at most capacity bytes, at the highest quality
+   * from kThumbnailQuality down that fits.  Returns an empty vector on error.
+   */
+  std::vector<unsigned char> Encode(size_t capacity) {
+    std::vector<unsigned char> y = y_.Average();
+    std::vector<unsigned char> cb = cb_.Average();
+    std::vector<unsigned char> cr = cr_.Average();
+    std::vector<unsigned char> jpeg(capacity);
+    for (int quality = kThumbnailQuality; quality > 0;
+         quality -= kThumbnailQualityStep) {
+      int size = jpegutil::Compress(
+          y_.dst_width(), y_.dst_height(), y.data(), 1, y_.dst_width(),
+          cb.data(), 1, cb_.dst_width(), cr.data(), 1, cr_.dst_width(),
+          jpeg.data(), jpeg.size(), quality, 0, 0, y_.dst_width(),
+          y_.dst_height(), 0);
+      if (size >= 0) {
+        jpeg.resize(size);
+        return jpeg;
+      }
+    }
+    return std::vector<unsigned char>();
+  }
+
+ private:
+  /** The sums of one plane. */
+  class PlaneSums {
+   public:
+    PlaneSums(int src_width, int src_height, int dst_width, int dst_height)
+        : src_height_(src_height),
+          dst_width_(dst_width),
+          dst_height_(dst_height),
+          col_starts_(dst_width + 1),
+          row_counts_(dst_height),
+          sums_(static_cast<size_t>(dst_width) * dst_height) {
+      for (int x = 0; x <= dst_width; x++) {
+        col_starts_[x] =
+            (static_cast<int64_t>(x) * src_width + dst_width - 1) / dst_width;
+      }
+      for (int y = 0; y < src_height; y++) {
+        row_counts_[static_cast<int64_t>(y) * dst_height / src_height]++;
+      }
+    }
+
+    int dst_width() const { return dst_width_; }
+
+    int dst_height() const { return dst_height_; }
+
+    void AddRows(int first_row, unsigned char* const* rows, size_t count) {
+      for (size_t i = 0; i < count; i++) {
+        const int y = first_row + static_cast<int>(i);
+        if (y >= src_height_) {
+          // Rows past the bottom edge are repeats of the last row.
+          break;
+        }
+        uint32_t* sums =
+            &sums_[(static_cast<int64_t>(y) * dst_height_ / src_height_) *
+                   dst_width_];
+        const unsigned char* src = rows[i];
+        // Summing each run in a register, rather than adding every sample to
+        // its sum in memory, lets the compiler vectorize the loop.
+        for (int x = 0; x < dst_width_; x++) {
+          uint32_t sum = 0;
+          for (int sx = col_starts_[x]; sx < col_starts_[x + 1]; sx++) {
+            sum += src[sx];
+          }
+          sums[x] += sum;
+        }
+      }
+    }
+
+    /** Returns the plane of averages. */
+    std::vector<unsigned char> Average() const {
+      std::vector<unsigned char> plane(sums_.size());
+      for (int y = 0; y < dst_height_; y++) {
+        for (int x = 0; x < dst_width_; x++) {
+          const uint32_t count =
+              (col_starts_[x + 1] - col_starts_[x]) * row_counts_[y];
+          const size_t i = static_cast<size_t>(y) * dst_width_ + x;
+          plane[i] = count > 0 ? (sums_[i] + count / 2) / count : 0;
+        }
+      }
+      return plane;
+    }
+
+   private:
+    const int src_height_;
+    const int dst_width_;
+    const int dst_height_;
+    // The first image column of every thumbnail column, and the end of the
+    // last one.
+    std::vector<int> col_starts_;
+    // The number of image rows in every thumbnail row.
+    std::vector<uint32_t> row_counts_;
+    std::vector<uint32_t> sums_;
+  };
+
+  PlaneSums y_;
+  PlaneSums cb_;
+  PlaneSums cr_;
+};
+
+/**
+ * Fits a width x height image into max_width x max_height, keeping its aspect
+ * ratio, with even dimensions for the 4:2:0 chroma planes.
+ */
+void FitThumbnail(int width, int height, int max_width, int max_height,
+                  int* thumb_width, int* thumb_height) {
+  max_width = min(max_width, width);
+  max_height = min(max_height, height);
+  int64_t w = max_width;
+  int64_t h = max_height;
+  if (static_cast<int64_t>(width) * max_height >
+      static_cast<int64_t>(height) * max_width) {
+    h = (static_cast<int64_t>(height) * max_width + width / 2) / width;
+  } else {
+    w = (static_cast<int64_t>(width) * max_height + height / 2) / height;
+  }
+  *thumb_width = max(2, static_cast<int>(w) & ~1);
+  *thumb_height = max(2, static_cast<int>(h) & ~1);
+}
+
+}  // namespace
+
+int jpegutil::CompressWithExif(
+    int width, int height, unsigned char* yBuf, int yPStride, int yRStride,
+    unsigned char* cbBuf, int cbPStride, int cbRStride, unsigned char* crBuf,
+    int crPStride, int crRStride, unsigned char* outBuf, size_t outBufCapacity,
+    int quality, int cropLeft, int cropTop, int cropRight, int cropBottom,
+    int rot90, int orientation, int thumbnailMaxWidth, int thumbnailMaxHeight,
+    int flags) {
+  FrameLayout f(width, height, yBuf, yPStride, yRStride, cbBuf, cbPStride,
+                cbRStride, crBuf, crPStride, crRStride, cropLeft, cropTop,
+                cropRight, cropBottom, rot90);
+  if (f.width <= 0 || f.height <= 0) {
+    return -1;
+  }
+
+  std::unique_ptr<ThumbnailAccumulator> thumbnail;
+  BandObserver observer;
+  if (thumbnailMaxWidth > 0 && thumbnailMaxHeight > 0) {
+    int thumbWidth;
+    int thumbHeight;
+    FitThumbnail(f.width, f.height, thumbnailMaxWidth, thumbnailMaxHeight,
+                 &thumbWidth, &thumbHeight);
+    thumbnail.reset(
+        new ThumbnailAccumulator(f.width, f.height, thumbWidth, thumbHeight));
+    ThumbnailAccumulator* accumulator = thumbnail.get();
+    observer = [accumulator](int first_row,
+                             const std::array<unsigned char*, 16>& y_rows,
+                             const std::array<unsigned char*, 8>& cb_rows,
+                             const std::array<unsigned char*, 8>& cr_rows) {
+      accumulator->AddBand(first_row, y_rows, cb_rows, cr_rows);
+    };
+  }
+
+  RowIterator<16> yIter(f.yP, f.yTrans, f.y_row_length);
+  RowIterator<8> cbIter(f.cbP, f.chromaTrans, f.chroma_row_length);
+  RowIterator<8> crIter(f.crP, f.chromaTrans, f.chroma_row_length);
+  int size = Compress(f.width, f.height, yIter, cbIter, crIter, outBuf,
+                      outBufCapacity, nullptr, quality, 0, 0, flags, observer);
+  if (size < 4 || outBuf[0] != 0xFF || outBuf[1] != 0xD8) {
+    return -1;
+  }
+
+  std::vector<unsigned char> thumbnailJpeg;
+  if (thumbnail) {
+    thumbnailJpeg = thumbnail->Encode(kMaxMarkerPayload - kExifTagBytes);
+  }
+  std::vector<unsigned char> segment =
+      BuildExifSegment(f.width, f.height, orientation, thumbnailJpeg.data(),
+                       thumbnailJpeg.size());
+  if (segment.empty()) {
+    return -1;
+  }
 
-  Transform chromaTrans = Transform::ForCropFollowedByRotation(
-      cropLeft / 2, cropTop / 2, cropRight / 2, cropBottom / 2, rot90);
+  // Replace the JFIF APP0 segment after SOI, if there is one, with the EXIF
+  // APP1 segment.
+  size_t app0Size = 0;
+  if (size >= 6 && outBuf[2] == 0xFF && outBuf[3] == 0xE0) {
+    app0Size = 2 + ((outBuf[4] << 8) | outBuf[5]);
+  }
+  const size_t tail = size - 2 - app0Size;
+  if (2 + segment.size() + tail > outBufCapacity) {
+    return -1;
+  }
+  memmove(outBuf + 2 + segment.size(), outBuf + 2 + app0Size, tail);
+  memcpy(outBuf + 2, segment.data(), segment.size());
+  return static_cast<int>(2 + segment.size() + tail);
+}
+
+struct jpegutil::EncoderSession::State {
+  // Error handling, see Compress() for why setjmp/longjmp is needed.
+  struct ErrorManager {
+    jpeg_error_mgr pub;
+    jmp_buf setjmp_buffer;
+  };
+
+  jpeg_compress_struct cinfo;
+  ErrorManager err;
+  jpeg_destination_mgr dest;
+
+  unsigned char* out_buf = nullptr;
+  size_t out_buf_capacity = 0;
+
+  std::array<JSAMPROW, DCTSIZE * 2> yArr;
+  std::array<JSAMPROW, DCTSIZE> cbArr;
+  std::array<JSAMPROW, DCTSIZE> crArr;
+
+  RowIterator<16> yIter;
+  RowIterator<8> cbIter;
+  RowIterator<8> crIter;
+
+  State(const Plane& yP, const Plane& chromaP, int y_row_length,
+        int chroma_row_length)
+      : yIter(yP, Transform(0, 0, yP.width, yP.height), y_row_length),
+        cbIter(chromaP, Transform(0, 0, chromaP.width, chromaP.height),
+               chroma_row_length),
+        crIter(chromaP, Transform(0, 0, chromaP.width, chromaP.height),
+               chroma_row_length) {}
+};
+
+jpegutil::EncoderSession::EncoderSession(int width, int height, int quality)
+    : width_(width), height_(height), quality_(quality) {
+  // Size the row buffers for the widest output any crop or rotation of a
+  // width x height image can produce, so that frames never reallocate them.
+  int maxOutputWidth = max(width, height);
+  const Plane yP = {width, height, nullptr, 1, width};
+  const Plane chromaP = {width / 2, height / 2, nullptr, 1, width / 2};
+  std::unique_ptr<State> state(
+      new State(yP, chromaP, FrameLayout::RowLength(maxOutputWidth),
+                FrameLayout::RowLength(maxOutputWidth / 2)));
+
+  jpeg_compress_struct& cinfo = state->cinfo;
+  cinfo.err = jpeg_std_error(&state->err.pub);
+  state->err.pub.error_exit = [](j_common_ptr cinfo) {
+    State::ErrorManager* myerr =
+        reinterpret_cast<State::ErrorManager*>(cinfo->err);
+
+    (*cinfo->err->output_message)(cinfo);
+
+    // Return control to the setjmp point (see calls to setjmp()).
+    longjmp(myerr->setjmp_buffer, 1);
+  };
 
-  RowIterator<16> yIter(yP, yTrans, y_row_length);
-  RowIterator<8> cbIter(cbP, chromaTrans, cb_row_length);
-  RowIterator<8> crIter(crP, chromaTrans, cr_row_length);
+  if (setjmp(state->err.setjmp_buffer)) {
+    jpeg_destroy_compress(&cinfo);
+    return;
+  }
+
+  jpeg_create_compress(&cinfo);
+
+  cinfo.client_data = state.get();
+
+  // Output always goes to a single caller-supplied buffer.
+  state->dest.init_destination = [](j_compress_ptr cinfo) {
+    State& s = *reinterpret_cast<State*>(cinfo->client_data);
+
+    cinfo->dest->next_output_byte = s.out_buf;
+    cinfo->dest->free_in_buffer = s.out_buf_capacity;
+  };
+
+  state->dest.empty_output_buffer = [](j_compress_ptr cinfo) -> boolean {
+    ERREXIT(cinfo, JERR_BUFFER_SIZE);
+    return false;
+  };
+
+  state->dest.term_destination = [](j_compress_ptr cinfo __unused) {
+    // do nothing to terminate the output buffer
+  };
+
+  cinfo.dest = &state->dest;
+
+  // The tables are computed here once.  jpeg_start_compress() writes them
+  // into every frame, but does not recompute them.
+  SetYuv420Parameters(&cinfo, quality, 0);
+
+  state_ = std::move(state);
+}
+
+jpegutil::EncoderSession::~EncoderSession() {
+  if (state_ != nullptr) {
+    jpeg_destroy_compress(&state_->cinfo);
+  }
+}
+
+int jpegutil::EncoderSession::Compress(
+    unsigned char* yBuf, int yPStride, int yRStride, unsigned char* cbBuf,
+    int cbPStride, int cbRStride, unsigned char* crBuf, int crPStride,
+    int crRStride, unsigned char* outBuf, size_t outBufCapacity,
+    int cropLeft, int cropTop, int cropRight, int cropBottom, int rot90) {
+  if (state_ == nullptr) {
+    return -1;
+  }
+  State& s = *state_;
+  jpeg_compress_struct& cinfo = s.cinfo;
+
+  FrameLayout f(width_, height_, yBuf, yPStride, yRStride, cbBuf, cbPStride,
+                cbRStride, crBuf, crPStride, crRStride, cropLeft, cropTop,
+                cropRight, cropBottom, rot90);
+  s.yIter.Reset(f.yP, f.yTrans, f.y_row_length);
+  s.cbIter.Reset(f.cbP, f.chromaTrans, f.chroma_row_length);
+  s.crIter.Reset(f.crP, f.chromaTrans, f.chroma_row_length);
+
+  s.out_buf = outBuf;
+  s.out_buf_capacity = outBufCapacity;
+
+  if (setjmp(s.err.setjmp_buffer)) {
+    // Keep the compressor and its tables for the next frame.
+    jpeg_abort_compress(&cinfo);
+    return -1;
+  }
+
+  cinfo.image_width = f.width;
+  cinfo.image_height = f.height;
+
+  jpeg_start_compress(&cinfo, true);
+
+  WriteRawRows(&cinfo, f.height, 0, s.yIter, s.cbIter, s.crIter,
+               s.yArr.data(), s.cbArr.data(), s.crArr.data());
+
+  jpeg_finish_compress(&cinfo);
 
-  return Compress(finalWidth, finalHeight, yIter, cbIter, crIter, outBuf,
-                  outBufCapacity, flush, quality);
+  return static_cast<int>(cinfo.dest->next_output_byte - outBuf);
 }
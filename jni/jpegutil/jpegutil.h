@@ -21,8 +21,15 @@
 #include <functional>
 #include <memory>
 #include <stdlib.h>
+#include <string.h>
 #include <vector>
 
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#elif defined(__SSE2__)
+#include <emmintrin.h>
+#endif
+
 /*
  * Provides a wrapper around libjpeg.
  */
@@ -69,10 +76,10 @@ class Transform {
   int output_height_;
 
   // The coordinates of the point to map the origin to.
-  const int orig_x_, orig_y_;
+  int orig_x_, orig_y_;
   // The coordinates of the point to map the point (output_width(),
   // output_height()) to.
-  const int one_x_, one_y_;
+  int one_x_, one_y_;
 
   // A matrix for the rotational component.
   int mat00_, mat01_;
@@ -127,6 +134,13 @@ class RowIterator {
    */
   inline const std::array<unsigned char*, ROWS> LoadAt(int y_base);
 
+  /**
+   * Points this iterator at another plane and transform, e.g. the next frame
+   * of a burst.  The row buffer is only reallocated if row_length exceeds the
+   * length this iterator was created with.
+   */
+  inline void Reset(Plane plane, Transform transform, int row_length);
+
  private:
   Plane plane_;
   Transform transform_;
@@ -135,20 +149,112 @@ class RowIterator {
   std::vector<unsigned char> buf_;
 };
 
+/**
+ * Encodes a series of YUV 420p images of the same size and quality.
+ *
+ * The libjpeg compressor, its quantization and Huffman tables, the row
+ * buffers and the row pointer arrays are created once and kept for the
+ * lifetime of the session, so encoding a burst of frames skips the per-call
+ * setup of Compress().  A session is not thread-safe.
+ */
+class EncoderSession {
+ public:
+  EncoderSession(int width, int height, int quality);
+  ~EncoderSession();
+
+  EncoderSession(const EncoderSession&) = delete;
+  EncoderSession& operator=(const EncoderSession&) = delete;
+
+  /** Returns false if the libjpeg compressor could not be created. */
+  bool IsValid() const { return state_ != nullptr; }
+
+  inline int width() const { return width_; }
+
+  inline int height() const { return height_; }
+
+  inline int quality() const { return quality_; }
+
+  /**
+   * Compresses one width x height image, with the same semantics as the
+   * plane-based Compress() below.  Returns the number of bytes written, or -1
+   * in case of an error, including when outBuf is too small.
+   */
+  int Compress(unsigned char* yBuf, int yPStride, int yRStride,
+               unsigned char* cbBuf, int cbPStride, int cbRStride,
+               unsigned char* crBuf, int crPStride, int crRStride,
+               unsigned char* outBuf, size_t outBufCapacity, int cropLeft,
+               int cropTop, int cropRight, int cropBottom, int rot90);
+
+ private:
+  struct State;
+
+  const int width_;
+  const int height_;
+  const int quality_;
+  std::unique_ptr<State> state_;
+};
+
+/**
+ * Optional entropy coding modes of Compress(), combined as bit flags.  They
+ * make files smaller at the cost of encode time, and all but
+ * kEncodeOptimizeCoding need a decoder that supports them.
+ */
+enum EncodeFlags {
+  /** Computes optimal Huffman tables for the image, in a second pass. */
+  kEncodeOptimizeCoding = 1 << 0,
+  /**
+   * Writes a progressive jpeg with libjpeg's default scan script.  Huffman
+   * tables are then always optimized.
+   */
+  kEncodeProgressive = 1 << 1,
+  /**
+   * Uses arithmetic instead of Huffman coding, which makes
+   * kEncodeOptimizeCoding moot.  Many decoders do not support it.
+   */
+  kEncodeArithmetic = 1 << 2,
+};
+
+/**
+ * Receives every 16-row band of an image while Compress() encodes it: the
+ * index of the first row of the band, and the rows of the luma and chroma
+ * planes, which are padded to the row length by repeating the last sample.
+ * Bands which extend past the bottom of the image repeat its last row.
+ */
+typedef std::function<void(int first_row,
+                           const std::array<unsigned char*, 16>& y_rows,
+                           const std::array<unsigned char*, 8>& cb_rows,
+                           const std::array<unsigned char*, 8>& cr_rows)>
+    BandObserver;
+
 /**
  * Compresses an image from YUV 420p to JPEG. Output is buffered in outBuf until
  * capacity is reached, at which point flush(size_t) is called to write
- * out the specified number of bytes from outBuf.  Returns the number of bytes
- * written, or -1 in case of an error.
+ * out the specified number of bytes from outBuf.  If flush is empty, outBuf
+ * must hold the entire output and running out of capacity is an error.  If
+ * flush returns false, compression is aborted.
+ * Returns the number of bytes written, or -1 in case of an error.
+ *
+ * The row generators are read from first_row onwards (a multiple of 16), which
+ * allows encoding one band of a larger image.  A non-zero restart_interval, in
+ * MCUs, is signalled with a DRI marker.  flags is a combination of
+ * EncodeFlags.  If band_observer is set, it sees every band as it is encoded.
  */
 int Compress(int img_width, int img_height, RowIterator<16>& y_row_generator,
              RowIterator<8>& cb_row_generator, RowIterator<8>& cr_row_generator,
              unsigned char* out_buf, size_t out_buf_capacity,
-             std::function<void(size_t)> flush, int quality);
+             std::function<bool(size_t)> flush, int quality,
+             int first_row = 0, unsigned int restart_interval = 0,
+             int flags = 0, const BandObserver& band_observer = nullptr);
 
 /**
  * Compresses an image from YUV 420p to JPEG.  Output is written into outBuf.
- * Returns the number of bytes written, or -1 in case of an error.
+ * Returns the number of bytes written, or -1 in case of an error, including
+ * when outBuf is too small to hold the result.
+ *
+ * With numThreads > 1 the image is split into bands of whole 16-row MCU rows
+ * which are encoded concurrently and joined with restart markers.  Bands can
+ * only be joined with the standard Huffman tables, so any EncodeFlags in
+ * flags make the image encode serially.
  */
 int Compress(
     /** Input image dimensions */
@@ -166,7 +272,106 @@ int Compress(
     /** Crop */
     int cropLeft, int cropTop, int cropRight, int cropBottom,
     /** Rotation */
-    int rot90);
+    int rot90,
+    /** Number of encoder threads */
+    int numThreads = 1,
+    /** A combination of EncodeFlags */
+    int flags = 0);
+
+/**
+ * Compresses an image from YUV 420p to JPEG like the plane-based Compress()
+ * above, but streams the output through outBuf: whenever it fills, and once
+ * at the end, flush(size_t) is called to write out the specified number of
+ * bytes from outBuf, so that outBuf can be much smaller than the result.  If
+ * flush returns false, compression is aborted.  Returns the total number of
+ * bytes written, or -1 in case of an error.  Encodes on the calling thread.
+ */
+int Compress(int width, int height, unsigned char* yBuf, int yPStride,
+             int yRStride, unsigned char* cbBuf, int cbPStride, int cbRStride,
+             unsigned char* crBuf, int crPStride, int crRStride,
+             unsigned char* outBuf, size_t outBufCapacity,
+             std::function<bool(size_t)> flush, int quality, int cropLeft,
+             int cropTop, int cropRight, int cropBottom, int rot90,
+             int flags = 0);
+
+/**
+ * Compresses an image like the plane-based Compress() above, at the highest
+ * quality up to maxQuality whose jpeg fits into outBufCapacity bytes.
+ *
+ * The quality is estimated from a sample of the MCU rows of the image, which is
+ * gathered once and encoded at the qualities an interpolated search visits,
+ * aiming a little below outBufCapacity.  The image is then encoded at that
+ * quality, and, if it exceeds outBufCapacity after all, once more at a
+ * quality corrected by how far the estimate was off.  From the highest quality
+ * found to fit, the higher qualities are tried one at a time until the next
+ * one overflows.  If no quality fit yet, or the fitting encode left more than
+ * 10% of outBufCapacity unused, the remaining qualities are bisected with
+ * full encodes instead.  Encodes on the calling thread.
+ *
+ * Returns the number of bytes written, or -1 if the image does not fit into
+ * outBufCapacity bytes even at quality 1 or in case of an error.  The chosen
+ * quality is stored in qualityOut unless it is null.
+ */
+int CompressToSize(int width, int height, unsigned char* yBuf, int yPStride,
+                   int yRStride, unsigned char* cbBuf, int cbPStride,
+                   int cbRStride, unsigned char* crBuf, int crPStride,
+                   int crRStride, unsigned char* outBuf, size_t outBufCapacity,
+                   int maxQuality, int cropLeft, int cropTop, int cropRight,
+                   int cropBottom, int rot90, int flags = 0,
+                   int* qualityOut = nullptr);
+
+/**
+ * Compresses a YCbCr image whose chroma planes are subsampled chromaHFactor
+ * times horizontally and chromaVFactor times vertically, e.g. 2 and 1 for
+ * 4:2:2 or 1 and 1 for 4:4:4, straight from its planes.  Otherwise like the
+ * plane-based Compress() above, which is the faster choice for 4:2:0 since
+ * it can use several threads.  libjpeg limits the factors to 1 to 4, with at
+ * most 8 luma blocks per MCU.  Encodes on the calling thread.
+ *
+ * Returns the number of bytes written, or -1 in case of an error, including
+ * when outBuf is too small.
+ */
+int CompressYCbCr(int width, int height, int chromaHFactor, int chromaVFactor,
+                  unsigned char* yBuf, int yPStride, int yRStride,
+                  unsigned char* cbBuf, int cbPStride, int cbRStride,
+                  unsigned char* crBuf, int crPStride, int crRStride,
+                  unsigned char* outBuf, size_t outBufCapacity, int quality,
+                  int cropLeft, int cropTop, int cropRight, int cropBottom,
+                  int rot90, int flags = 0);
+
+/**
+ * Compresses a single-plane image, e.g. the luma plane alone or a depth or IR
+ * frame, to a grayscale jpeg.  Otherwise like CompressYCbCr().
+ */
+int CompressGrayscale(int width, int height, unsigned char* yBuf, int yPStride,
+                      int yRStride, unsigned char* outBuf,
+                      size_t outBufCapacity, int quality, int cropLeft,
+                      int cropTop, int cropRight, int cropBottom, int rot90,
+                      int flags = 0);
+
+/**
+ * Compresses an image like the plane-based Compress() above into an EXIF file:
+ * instead of a JFIF header, the jpeg starts with an EXIF APP1 segment holding
+ * the orientation tag (1 to 8) and, unless thumbnailMaxWidth or
+ * thumbnailMaxHeight is 0, a thumbnail of the output image that fits into
+ * those bounds.
+ *
+ * The thumbnail is box-filtered from the bands the encoder reads anyway, so
+ * the planes are only read once.  Since the segment must precede the image
+ * data but is only complete after it, it is spliced in after encoding, which
+ * moves the compressed data once.  Encodes on the calling thread.
+ *
+ * Returns the number of bytes written, or -1 in case of an error, including
+ * when outBuf is too small.
+ */
+int CompressWithExif(int width, int height, unsigned char* yBuf, int yPStride,
+                     int yRStride, unsigned char* cbBuf, int cbPStride,
+                     int cbRStride, unsigned char* crBuf, int crPStride,
+                     int crRStride, unsigned char* outBuf,
+                     size_t outBufCapacity, int quality, int cropLeft,
+                     int cropTop, int cropRight, int cropBottom, int rot90,
+                     int orientation, int thumbnailMaxWidth,
+                     int thumbnailMaxHeight, int flags = 0);
 }
 
 template <unsigned int ROWS>
@@ -177,6 +382,52 @@ jpegutil::RowIterator<ROWS>::RowIterator(Plane plane, Transform transform,
   buf_ = std::vector<unsigned char>(row_length * ROWS);
 }
 
+template <unsigned int ROWS>
+void jpegutil::RowIterator<ROWS>::Reset(Plane plane, Transform transform,
+                                        int row_length) {
+  plane_ = plane;
+  transform_ = transform;
+  padded_row_length_ = row_length;
+  if (buf_.size() < static_cast<size_t>(row_length * ROWS)) {
+    buf_.resize(row_length * ROWS);
+  }
+}
+
+namespace jpegutil {
+
+/**
+ * Copies count samples which are 2 bytes apart in src into contiguous dst, e.g.
+ * one channel of a semi-planar chroma plane.  Reads no further than the last
+ * sample, src[2 * (count - 1)].
+ */
+inline void Deinterleave2(const unsigned char* src, unsigned char* dst,
+                          int count) {
+  int x = 0;
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+  // Stop one block early so that the paired loads stay within the samples.
+  for (; x + 16 < count; x += 16) {
+    uint8x16x2_t pairs = vld2q_u8(src + 2 * x);
+    vst1q_u8(dst + x, pairs.val[0]);
+  }
+#elif defined(__SSE2__)
+  const __m128i low_bytes = _mm_set1_epi16(0x00FF);
+  for (; x + 16 < count; x += 16) {
+    __m128i a = _mm_loadu_si128(reinterpret_cast<const __m128i*>(src + 2 * x));
+    __m128i b =
+        _mm_loadu_si128(reinterpret_cast<const __m128i*>(src + 2 * x + 16));
+    a = _mm_and_si128(a, low_bytes);
+    b = _mm_and_si128(b, low_bytes);
+    _mm_storeu_si128(reinterpret_cast<__m128i*>(dst + x),
+                     _mm_packus_epi16(a, b));
+  }
+#endif
+  for (; x < count; x++) {
+    dst[x] = src[2 * x];
+  }
+}
+
+}  // namespace jpegutil
+
 template <unsigned int ROWS>
 const std::array<unsigned char*, ROWS> jpegutil::RowIterator<ROWS>::LoadAt(
     int y_base) {
@@ -189,13 +440,25 @@ const std::array<unsigned char*, ROWS> jpegutil::RowIterator<ROWS>::LoadAt(
     return buf_ptrs;
   }
 
+  // The index into plane_.data of the first sample of each output row.
+  std::array<int, ROWS> plane_starts;
+  // The stride, in terms of indices in plane_.data, between the samples of a
+  // row.  It is the same for every row, since all rows are mapped through the
+  // same transform.
+  int stride = 1;
+  // The number of samples gathered for each row, which is also the same for
+  // every row.
+  int count = 1;
+  // Whether rows are gathered along columns of the plane (90 and 270-degree
+  // rotations).
+  bool vertical = false;
+
   for (unsigned int i = 0; i < ROWS; i++) {
     int y = i + y_base;
     y = min(y, transform_.output_height() - 1);
 
     int output_width = padded_row_length_;
     output_width = min(output_width, transform_.output_width());
-    output_width = min(output_width, plane_.width);
 
     // Each row in the output image will be copied into buf_ by gathering pixels
     // along an axis-aligned line in the plane.
@@ -219,9 +482,9 @@ const std::array<unsigned char*, ROWS> jpegutil::RowIterator<ROWS>::LoadAt(
     endX = max(endX, 0);
     endY = max(endY, 0);
 
-    // To reduce work inside the copy-loop, precompute the start, end, and
-    // stride relating the values to be gathered from plane_ into buf
-    // for this particular scan-line.
+    // To reduce work inside the copy-loops, precompute the start, stride and
+    // number of values to be gathered from plane_ into buf for this
+    // particular scan-line.
     int dx = sgn(endX - startX);
     int dy = sgn(endY - startY);
     assert(dx == 0 || dy == 0);
@@ -229,30 +492,51 @@ const std::array<unsigned char*, ROWS> jpegutil::RowIterator<ROWS>::LoadAt(
     int plane_start = startX * plane_.pixel_stride + startY * plane_.row_stride;
     // The index into plane_.data of (endX, endY)
     int plane_end = endX * plane_.pixel_stride + endY * plane_.row_stride;
-    // The stride, in terms of indices in plane_data, required to enumerate the
-    // samples between the start and end points.
-    int stride = dx * plane_.pixel_stride + dy * plane_.row_stride;
+    stride = dx * plane_.pixel_stride + dy * plane_.row_stride;
     // In the degenerate-case of a 1x1 plane, startX and endX are equal, so
     // stride would be 0, resulting in an infinite-loop.  To avoid this case,
     // use a stride of at-least 1.
     if (stride == 0) {
       stride = 1;
     }
+    count = abs(plane_end - plane_start) / abs(stride) + 1;
+    vertical = dy != 0;
+    plane_starts[i] = plane_start;
+  }
 
-    int outX = 0;
-    for (int idx = plane_start; idx >= min(plane_start, plane_end) &&
-                                    idx <= max(plane_start, plane_end);
-         idx += stride) {
-      buf_ptrs[i][outX] = plane_.data[idx];
-      outX++;
+  const unsigned char* data = plane_.data;
+  if (vertical) {
+    // Walking down a column touches a new cache line for every sample, so
+    // gather a tile of ROWS adjacent columns per source row instead.  Each
+    // source row is then read once for all output rows.
+    for (int x = 0; x < count; x++) {
+      int offset = x * stride;
+      for (unsigned int i = 0; i < ROWS; i++) {
+        buf_ptrs[i][x] = data[plane_starts[i] + offset];
+      }
     }
+  } else {
+    for (unsigned int i = 0; i < ROWS; i++) {
+      const unsigned char* src = data + plane_starts[i];
+      unsigned char* dst = buf_ptrs[i];
+      if (stride == 1) {
+        memcpy(dst, src, count);
+      } else if (stride == 2) {
+        Deinterleave2(src, dst, count);
+      } else {
+        for (int x = 0; x < count; x++) {
+          dst[x] = src[x * stride];
+        }
+      }
+    }
+  }
 
-    // Fill the remaining right-edge of the buffer by extending the last
-    // value.
-    unsigned char right_padding_value = buf_ptrs[i][outX - 1];
-    // TODO OPTIMIZE Use memset instead.
-    for (; outX < padded_row_length_; outX++) {
-      buf_ptrs[i][outX] = right_padding_value;
+  // Fill the remaining right-edge of the buffer by extending the last
+  // value.
+  if (count < padded_row_length_) {
+    for (unsigned int i = 0; i < ROWS; i++) {
+      memset(buf_ptrs[i] + count, buf_ptrs[i][count - 1],
+             padded_row_length_ - count);
     }
   }
 
@@ -17,7 +17,10 @@
 #include <jni.h>
 #include <math.h>
 #include <android/bitmap.h>
+#include <new>
 
+#include "jpegexif.h"
+#include "jpegtransform.h"
 #include "jpegutil.h"
 
 using namespace jpegutil;
@@ -64,6 +67,9 @@ using namespace jpegutil;
  * @param crop[Left|Top|Right|Bottom] the bounds of the image to crop to before
  * rotation
  * @param rot90 the multiple of 90 to rotate by
+ * @param numThreads the number of threads to encode with, 1 encodes serially
+ * @param flags a combination of jpegutil::EncodeFlags, which also make the
+ * image encode serially
  */
 extern "C" JNIEXPORT jint JNICALL
 Java_com_android_camera_util_JpegUtilNative_compressJpegFromYUV420pNative(
@@ -84,7 +90,11 @@ Java_com_android_camera_util_JpegUtilNative_compressJpegFromYUV420pNative(
     jint cropLeft, jint cropTop, jint cropRight, jint cropBottom,
     /** Rotation (multiple of 90).  For example, rot90 = 1 implies a 90 degree
      * rotation. */
-    jint rot90) {
+    jint rot90,
+    /** Number of encoder threads */
+    jint numThreads,
+    /** Entropy coding modes */
+    jint flags) {
   jbyte* y = (jbyte*)env->GetDirectBufferAddress(yBuf);
   jbyte* cb = (jbyte*)env->GetDirectBufferAddress(cbBuf);
   jbyte* cr = (jbyte*)env->GetDirectBufferAddress(crBuf);
@@ -97,7 +107,251 @@ Java_com_android_camera_util_JpegUtilNative_compressJpegFromYUV420pNative(
                   (unsigned char*)out, (size_t)outBufCapacity,  //
                   quality,                                      //
                   cropLeft, cropTop, cropRight, cropBottom,     //
-                  rot90);
+                  rot90, numThreads, flags);
+}
+
+/**
+ * Compresses a YCbCr image to jpeg like compressJpegFromYUV420pNative(), but
+ * streams the result to a java.nio.channels.WritableByteChannel through a small
+ * chunk buffer instead of requiring an output buffer for the whole jpeg.  Each
+ * filled chunk is handed to JpegUtilNative.writeChunk(), and encoding stops at
+ * the first exception it throws, which is left pending.
+ *
+ * @param chunkBuf a direct java.nio.ByteBuffer to stage the output in
+ * @param chunkCapacity the capacity of chunkBuf
+ * @param channel the java.nio.channels.WritableByteChannel to write to
+ * @param flags a combination of jpegutil::EncodeFlags
+ * @return the total number of bytes written to channel, or -1 on error
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_android_camera_util_JpegUtilNative_compressJpegFromYUV420pToChannelNative(
+    JNIEnv* env, jclass clazz,
+    /** Input image dimensions */
+    jint width, jint height,
+    /** Y Plane */
+    jobject yBuf, jint yPStride, jint yRStride,
+    /** Cb Plane */
+    jobject cbBuf, jint cbPStride, jint cbRStride,
+    /** Cr Plane */
+    jobject crBuf, jint crPStride, jint crRStride,
+    /** Output */
+    jobject chunkBuf, jint chunkCapacity, jobject channel,
+    /** Jpeg compression parameters */
+    jint quality,
+    /** Crop */
+    jint cropLeft, jint cropTop, jint cropRight, jint cropBottom,
+    /** Rotation (multiple of 90) */
+    jint rot90,
+    /** Entropy coding modes */
+    jint flags) {
+  jmethodID writeChunk = env->GetStaticMethodID(
+      clazz, "writeChunk",
+      "(Ljava/nio/channels/WritableByteChannel;Ljava/nio/ByteBuffer;I)V");
+  if (writeChunk == nullptr) {
+    return -1;
+  }
+
+  jbyte* y = (jbyte*)env->GetDirectBufferAddress(yBuf);
+  jbyte* cb = (jbyte*)env->GetDirectBufferAddress(cbBuf);
+  jbyte* cr = (jbyte*)env->GetDirectBufferAddress(crBuf);
+  jbyte* chunk = (jbyte*)env->GetDirectBufferAddress(chunkBuf);
+
+  auto flush = [&](size_t numBytes) {
+    env->CallStaticVoidMethod(clazz, writeChunk, channel, chunkBuf,
+                              static_cast<jint>(numBytes));
+    return !env->ExceptionCheck();
+  };
+
+  return Compress(width, height,                                   //
+                  (unsigned char*)y, yPStride, yRStride,           //
+                  (unsigned char*)cb, cbPStride, cbRStride,        //
+                  (unsigned char*)cr, crPStride, crRStride,        //
+                  (unsigned char*)chunk, (size_t)chunkCapacity,    //
+                  flush, quality,                                  //
+                  cropLeft, cropTop, cropRight, cropBottom, rot90,  //
+                  flags);
+}
+
+/**
+ * Compresses a YCbCr image to jpeg like compressJpegFromYUV420pNative(), at the
+ * highest quality up to maxQuality whose jpeg fits into maxBytes.
+ *
+ * @param maxBytes the byte budget, at most outBufCapacity
+ * @param maxQuality the highest jpeg-quality (1-100) to use
+ * @param flags a combination of jpegutil::EncodeFlags
+ * @return the number of bytes written to outBuf, or -1 if the image does not
+ * fit into maxBytes even at quality 1, or on error
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_android_camera_util_JpegUtilNative_compressJpegFromYUV420pToSizeNative(
+    JNIEnv* env, jclass clazz __unused,
+    /** Input image dimensions */
+    jint width, jint height,
+    /** Y Plane */
+    jobject yBuf, jint yPStride, jint yRStride,
+    /** Cb Plane */
+    jobject cbBuf, jint cbPStride, jint cbRStride,
+    /** Cr Plane */
+    jobject crBuf, jint crPStride, jint crRStride,
+    /** Output */
+    jobject outBuf, jint maxBytes,
+    /** Jpeg compression parameters */
+    jint maxQuality,
+    /** Crop */
+    jint cropLeft, jint cropTop, jint cropRight, jint cropBottom,
+    /** Rotation (multiple of 90) */
+    jint rot90,
+    /** Entropy coding modes */
+    jint flags) {
+  jbyte* y = (jbyte*)env->GetDirectBufferAddress(yBuf);
+  jbyte* cb = (jbyte*)env->GetDirectBufferAddress(cbBuf);
+  jbyte* cr = (jbyte*)env->GetDirectBufferAddress(crBuf);
+  jbyte* out = (jbyte*)env->GetDirectBufferAddress(outBuf);
+
+  return CompressToSize(width, height,                             //
+                        (unsigned char*)y, yPStride, yRStride,     //
+                        (unsigned char*)cb, cbPStride, cbRStride,  //
+                        (unsigned char*)cr, crPStride, crRStride,  //
+                        (unsigned char*)out, (size_t)maxBytes,     //
+                        maxQuality,                                //
+                        cropLeft, cropTop, cropRight, cropBottom,  //
+                        rot90, flags);
+}
+
+/**
+ * Compresses a YCbCr image of any chroma subsampling to jpeg like
+ * compressJpegFromYUV420pNative(), straight from its planes.
+ *
+ * @param chromaHFactor the horizontal subsampling of the chroma planes, e.g. 2
+ * for 4:2:2 and 1 for 4:4:4
+ * @param chromaVFactor the vertical subsampling of the chroma planes
+ * @param flags a combination of jpegutil::EncodeFlags
+ * @return the number of bytes written to outBuf, or -1 on error
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_android_camera_util_JpegUtilNative_compressJpegFromYCbCrNative(
+    JNIEnv* env, jclass clazz __unused,
+    /** Input image dimensions */
+    jint width, jint height,
+    /** Chroma subsampling */
+    jint chromaHFactor, jint chromaVFactor,
+    /** Y Plane */
+    jobject yBuf, jint yPStride, jint yRStride,
+    /** Cb Plane */
+    jobject cbBuf, jint cbPStride, jint cbRStride,
+    /** Cr Plane */
+    jobject crBuf, jint crPStride, jint crRStride,
+    /** Output */
+    jobject outBuf, jint outBufCapacity,
+    /** Jpeg compression parameters */
+    jint quality,
+    /** Crop */
+    jint cropLeft, jint cropTop, jint cropRight, jint cropBottom,
+    /** Rotation (multiple of 90) */
+    jint rot90,
+    /** Entropy coding modes */
+    jint flags) {
+  jbyte* y = (jbyte*)env->GetDirectBufferAddress(yBuf);
+  jbyte* cb = (jbyte*)env->GetDirectBufferAddress(cbBuf);
+  jbyte* cr = (jbyte*)env->GetDirectBufferAddress(crBuf);
+  jbyte* out = (jbyte*)env->GetDirectBufferAddress(outBuf);
+
+  return CompressYCbCr(width, height, chromaHFactor, chromaVFactor,  //
+                       (unsigned char*)y, yPStride, yRStride,        //
+                       (unsigned char*)cb, cbPStride, cbRStride,     //
+                       (unsigned char*)cr, crPStride, crRStride,     //
+                       (unsigned char*)out, (size_t)outBufCapacity,  //
+                       quality,                                      //
+                       cropLeft, cropTop, cropRight, cropBottom,     //
+                       rot90, flags);
+}
+
+/**
+ * Compresses a single plane, e.g. a depth or IR frame, to a grayscale jpeg
+ * like compressJpegFromYUV420pNative().
+ *
+ * @param flags a combination of jpegutil::EncodeFlags
+ * @return the number of bytes written to outBuf, or -1 on error
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_android_camera_util_JpegUtilNative_compressJpegFromGrayscaleNative(
+    JNIEnv* env, jclass clazz __unused,
+    /** Input image dimensions */
+    jint width, jint height,
+    /** Y Plane */
+    jobject yBuf, jint yPStride, jint yRStride,
+    /** Output */
+    jobject outBuf, jint outBufCapacity,
+    /** Jpeg compression parameters */
+    jint quality,
+    /** Crop */
+    jint cropLeft, jint cropTop, jint cropRight, jint cropBottom,
+    /** Rotation (multiple of 90) */
+    jint rot90,
+    /** Entropy coding modes */
+    jint flags) {
+  jbyte* y = (jbyte*)env->GetDirectBufferAddress(yBuf);
+  jbyte* out = (jbyte*)env->GetDirectBufferAddress(outBuf);
+
+  return CompressGrayscale(width, height,                                //
+                           (unsigned char*)y, yPStride, yRStride,        //
+                           (unsigned char*)out, (size_t)outBufCapacity,  //
+                           quality,                                      //
+                           cropLeft, cropTop, cropRight, cropBottom,     //
+                           rot90, flags);
+}
+
+/**
+ * Compresses a YCbCr image to jpeg like compressJpegFromYUV420pNative(), with
+ * an EXIF segment holding the orientation and a thumbnail, which is
+ * downscaled while the image is encoded.
+ *
+ * @param orientationDegrees the clockwise rotation viewers should apply, a
+ * multiple of 90, which is written as the EXIF orientation
+ * @param thumbMaxWidth the largest width of the thumbnail, or 0 for none
+ * @param thumbMaxHeight the largest height of the thumbnail, or 0 for none
+ * @param flags a combination of jpegutil::EncodeFlags
+ * @return the number of bytes written to outBuf, or -1 on error
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_android_camera_util_JpegUtilNative_compressJpegFromYUV420pWithExifNative(
+    JNIEnv* env, jclass clazz __unused,
+    /** Input image dimensions */
+    jint width, jint height,
+    /** Y Plane */
+    jobject yBuf, jint yPStride, jint yRStride,
+    /** Cb Plane */
+    jobject cbBuf, jint cbPStride, jint cbRStride,
+    /** Cr Plane */
+    jobject crBuf, jint crPStride, jint crRStride,
+    /** Output */
+    jobject outBuf, jint outBufCapacity,
+    /** Jpeg compression parameters */
+    jint quality,
+    /** Crop */
+    jint cropLeft, jint cropTop, jint cropRight, jint cropBottom,
+    /** Rotation (multiple of 90) */
+    jint rot90,
+    /** EXIF */
+    jint orientationDegrees, jint thumbMaxWidth, jint thumbMaxHeight,
+    /** Entropy coding modes */
+    jint flags) {
+  jbyte* y = (jbyte*)env->GetDirectBufferAddress(yBuf);
+  jbyte* cb = (jbyte*)env->GetDirectBufferAddress(cbBuf);
+  jbyte* cr = (jbyte*)env->GetDirectBufferAddress(crBuf);
+  jbyte* out = (jbyte*)env->GetDirectBufferAddress(outBuf);
+
+  const int orientation = ExifOrientationForRotation(orientationDegrees);
+
+  return CompressWithExif(width, height,                                      //
+                          (unsigned char*)y, yPStride, yRStride,              //
+                          (unsigned char*)cb, cbPStride, cbRStride,           //
+                          (unsigned char*)cr, crPStride, crRStride,           //
+                          (unsigned char*)out, (size_t)outBufCapacity,        //
+                          quality,                                            //
+                          cropLeft, cropTop, cropRight, cropBottom,           //
+                          rot90, orientation, thumbMaxWidth, thumbMaxHeight,  //
+                          flags);
 }
 
 /**
@@ -165,3 +419,132 @@ Java_com_android_camera_util_JpegUtilNative_copyImagePlaneToBitmap(
 
   AndroidBitmap_unlockPixels(env, outBitmap);
 }
+
+/**
+ * Creates the native context of a JpegEncoderSession.
+ *
+ * @param env the JNI environment
+ * @param width the width of the images to compress
+ * @param height the height of the images to compress
+ * @param quality the jpeg-quality (1-100) to use
+ * @return a handle to the context, or 0 if it could not be created
+ */
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_android_camera_util_JpegEncoderSession_nativeCreate(
+    JNIEnv* env __unused, jclass clazz __unused, jint width, jint height,
+    jint quality) {
+  EncoderSession* session =
+      new (std::nothrow) EncoderSession(width, height, quality);
+  if (session != nullptr && !session->IsValid()) {
+    delete session;
+    session = nullptr;
+  }
+  return reinterpret_cast<jlong>(session);
+}
+
+/**
+ * Compresses one YCbCr image with the context created by nativeCreate().  The
+ * planes, crop and rotation are interpreted as for
+ * compressJpegFromYUV420pNative().
+ *
+ * @return the number of bytes written to outBuf, or -1 on error
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_android_camera_util_JpegEncoderSession_nativeCompress(
+    JNIEnv* env, jclass clazz __unused, jlong handle,
+    /** Y Plane */
+    jobject yBuf, jint yPStride, jint yRStride,
+    /** Cb Plane */
+    jobject cbBuf, jint cbPStride, jint cbRStride,
+    /** Cr Plane */
+    jobject crBuf, jint crPStride, jint crRStride,
+    /** Output */
+    jobject outBuf, jint outBufCapacity,
+    /** Crop */
+    jint cropLeft, jint cropTop, jint cropRight, jint cropBottom,
+    /** Rotation (multiple of 90) */
+    jint rot90) {
+  EncoderSession* session = reinterpret_cast<EncoderSession*>(handle);
+  jbyte* y = (jbyte*)env->GetDirectBufferAddress(yBuf);
+  jbyte* cb = (jbyte*)env->GetDirectBufferAddress(cbBuf);
+  jbyte* cr = (jbyte*)env->GetDirectBufferAddress(crBuf);
+  jbyte* out = (jbyte*)env->GetDirectBufferAddress(outBuf);
+
+  return session->Compress((unsigned char*)y, yPStride, yRStride,        //
+                           (unsigned char*)cb, cbPStride, cbRStride,     //
+                           (unsigned char*)cr, crPStride, crRStride,     //
+                           (unsigned char*)out, (size_t)outBufCapacity,  //
+                           cropLeft, cropTop, cropRight, cropBottom,     //
+                           rot90);
+}
+
+/**
+ * Frees the context created by nativeCreate().
+ */
+extern "C" JNIEXPORT void JNICALL
+Java_com_android_camera_util_JpegEncoderSession_nativeDestroy(
+    JNIEnv* env __unused, jclass clazz __unused, jlong handle) {
+  delete reinterpret_cast<EncoderSession*>(handle);
+}
+
+/**
+ * Losslessly transforms a jpeg without decoding it to pixels.
+ *
+ * @param env the JNI environment
+ * @param inBuf a direct java.nio.ByteBuffer holding the input jpeg
+ * @param inOffset the offset of the jpeg in inBuf
+ * @param inSize the size of the jpeg
+ * @param outBuf a direct java.nio.ByteBuffer to hold the output jpeg
+ * @param outBufCapacity the capacity of outBuf
+ * @param transform the jpegutil::TransformType to apply
+ * @param applyExifOrientation if true, the transform is taken from the EXIF
+ * orientation of the jpeg instead, and the orientation is reset to normal
+ * @param trim whether to drop the partial iMCUs a transform cannot move,
+ * rather than fail
+ * @param crop whether to crop the transformed image
+ * @param crop[Left|Top|Right|Bottom] the bounds of the image to crop to.  The
+ * top-left corner is moved onto the iMCU grid.
+ * @param outCrop if not null, a 4-element array which receives the bounds the
+ * image was actually cropped to
+ * @return the number of bytes written to outBuf, -1 if outBuf is too small, or
+ * -2 if the jpeg could not be transformed
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_android_camera_util_JpegUtilNative_transformJpegNative(
+    JNIEnv* env, jclass clazz __unused,
+    /** Input */
+    jobject inBuf, jint inOffset, jint inSize,
+    /** Output */
+    jobject outBuf, jint outBufCapacity,
+    /** Transform */
+    jint transform, jboolean applyExifOrientation, jboolean trim,
+    /** Crop */
+    jboolean crop, jint cropLeft, jint cropTop, jint cropRight, jint cropBottom,
+    jintArray outCrop) {
+  jbyte* in = (jbyte*)env->GetDirectBufferAddress(inBuf);
+  jbyte* out = (jbyte*)env->GetDirectBufferAddress(outBuf);
+  if (in == nullptr || out == nullptr) {
+    return kTransformErrorFailed;
+  }
+
+  TransformOptions options;
+  options.transform = (TransformType)transform;
+  options.apply_exif_orientation = applyExifOrientation;
+  options.trim = trim;
+  options.crop = crop;
+  options.crop_left = cropLeft;
+  options.crop_top = cropTop;
+  options.crop_right = cropRight;
+  options.crop_bottom = cropBottom;
+
+  TransformResult result;
+  int numBytes = TransformJpeg((const unsigned char*)in + inOffset,
+                               (size_t)inSize, (unsigned char*)out,
+                               (size_t)outBufCapacity, options, &result);
+  if (numBytes >= 0 && outCrop != nullptr) {
+    jint bounds[4] = {result.crop_left, result.crop_top, result.crop_right,
+                      result.crop_bottom};
+    env->SetIntArrayRegion(outCrop, 0, 4, bounds);
+  }
+  return numBytes;
+}
@@ -73,7 +73,8 @@ LOCAL_SRC_FILES := \
     jpeg_nbits_table.c \
     jquant1.c \
     jquant2.c \
-    jutils.c
+    jutils.c \
+    transupp.c
 
 # If we are certain that the ARM v7 device has NEON (and there is no need for
 # a runtime check), we can indicate that with a flag.
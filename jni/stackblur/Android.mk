@@ -16,6 +16,8 @@ LOCAL_CFLAGS := -ffast-math \
 LOCAL_LDLIBS := -llog \
                 -ljnigraphics \
 
+LOCAL_SHARED_LIBRARIES := libyuv
+
 LOCAL_SRC_FILES := stackblur.cpp
 
 LOCAL_SDK_VERSION := 17
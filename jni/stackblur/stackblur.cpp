@@ -1,8 +1,12 @@
 #include <jni.h>
 #include <string.h>
 #include <stdio.h>
+#include <android/bitmap.h>
 #include <android/log.h>
 
+#include "libyuv/scale.h"
+#include "libyuv/scale_argb.h"
+
 #define LOG_TAG "stackblur_jni"
 #define LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
 #define LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
@@ -55,15 +59,16 @@ static unsigned char const stackblur_shr[255] =
         24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24
 };
 
-/// Stackblur algorithm body
-void stackblur(unsigned char* src,                ///< input image data
-               unsigned int w,                    ///< image width
-               unsigned int h,                    ///< image height
-               unsigned int radius,               ///< blur intensity (should be in 2..254 range)
-               int step                           ///< step of processing (1,2)
-               )
+/// Blurs |n| samples spaced |inc| bytes apart in place, using |stack| (2 * radius + 1 bytes)
+/// as scratch
+static void stackblur_line(unsigned char* src,    ///< first sample of the line
+                           unsigned int n,        ///< number of samples
+                           unsigned int inc,      ///< distance between samples, in bytes
+                           unsigned int radius,   ///< blur intensity (should be in 2..254 range)
+                           unsigned char* stack   ///< scratch for the stack
+                           )
 {
-    unsigned int x, y, xp, yp, i;
+    unsigned int xp, i;
     unsigned int sp;
     unsigned int stack_start;
     unsigned char* stack_ptr;
@@ -71,147 +76,120 @@ void stackblur(unsigned char* src,                ///< input image data
     unsigned char* src_ptr;
     unsigned char* dst_ptr;
 
-    unsigned long sum;
-    unsigned long sum_in;
-    unsigned long sum_out;
+    unsigned long sum = 0;
+    unsigned long sum_in = 0;
+    unsigned long sum_out = 0;
 
-    unsigned int wm = w - 1;
-    unsigned int hm = h - 1;
+    unsigned int nm = n - 1;
     unsigned int div = (radius * 2) + 1;
     unsigned int mul_sum = stackblur_mul[radius];
     unsigned char shr_sum = stackblur_shr[radius];
-    unsigned char stack[div];
 
-    if (step == 1)
+    src_ptr = src;
+    for(i = 0; i <= radius; i++)
     {
-        for(y = 0; y < h; y++)
-        {
-            sum = sum_in = sum_out = 0;
+        stack_ptr    = &stack[i];
+        stack_ptr[0] = src_ptr[0];
+        sum         += src_ptr[0] * (i + 1);
+        sum_out     += src_ptr[0];
+    }
+    for(i = 1; i <= radius; i++)
+    {
+        if (i <= nm) src_ptr += inc;
+        stack_ptr = &stack[(i + radius)];
+        stack_ptr[0] = src_ptr[0];
+        sum += src_ptr[0] * (radius + 1 - i);
+        sum_in += src_ptr[0];
+    }
 
-            src_ptr = src + y * w; // start of line (0,y)
+    sp = radius;
+    xp = radius;
+    if (xp > nm) xp = nm;
+    src_ptr = src + xp * inc;
+    dst_ptr = src;
+    for(i = 0; i < n; i++)
+    {
+        dst_ptr[0] = clamp((sum * mul_sum) >> shr_sum, 0ul, 255ul);
+        dst_ptr += inc;
 
-            for(i = 0; i <= radius; i++)
-            {
-                stack_ptr    = &stack[i];
-                stack_ptr[0] = src_ptr[0];
-                sum += src_ptr[0] * (i + 1);
-                sum_out += src_ptr[0];
-            }
+        sum -= sum_out;
 
+        stack_start = sp + div - radius;
+        if (stack_start >= div) stack_start -= div;
+        stack_ptr = &stack[stack_start];
 
-            for(i = 1; i <= radius; i++)
-            {
-                if (i <= wm) src_ptr += 1;
-                stack_ptr = &stack[ (i + radius) ];
-                stack_ptr[0] = src_ptr[0];
-                sum += src_ptr[0] * (radius + 1 - i);
-                sum_in += src_ptr[0];
-            }
+        sum_out -= stack_ptr[0];
 
-            sp = radius;
-            xp = radius;
-            if (xp > wm) xp = wm;
-            src_ptr = src + xp + y * w; // img.pix_ptr(xp, y);
-            dst_ptr = src + y * w;      // img.pix_ptr(0, y);
-            for(x = 0; x < w; x++)
-            {
-                dst_ptr[0] = clamp((sum * mul_sum) >> shr_sum, 0, 255);
-                dst_ptr += 1;
-
-                sum -= sum_out;
-
-                stack_start = sp + div - radius;
-                if (stack_start >= div) stack_start -= div;
-                stack_ptr = &stack[stack_start];
+        if(xp < nm)
+        {
+            src_ptr += inc;
+            ++xp;
+        }
 
-                sum_out -= stack_ptr[0];
+        stack_ptr[0] = src_ptr[0];
 
-                if(xp < wm)
-                {
-                    src_ptr += 1;
-                    ++xp;
-                }
+        sum_in += src_ptr[0];
+        sum    += sum_in;
 
-                stack_ptr[0] = src_ptr[0];
+        ++sp;
+        if (sp >= div) sp = 0;
+        stack_ptr = &stack[sp];
 
-                sum_in += src_ptr[0];
-                sum    += sum_in;
+        sum_out += stack_ptr[0];
+        sum_in  -= stack_ptr[0];
+    }
+}
 
-                ++sp;
-                if (sp >= div) sp = 0;
-                stack_ptr = &stack[sp];
+/// Runs one pass of the blur over a band of an image with interleaved 8-bit channels, so that
+/// the bands of a pass can be blurred concurrently
+void stackblur_band(unsigned char* src,           ///< input image data
+                    unsigned int w,               ///< image width
+                    unsigned int h,               ///< image height
+                    unsigned int stride,          ///< bytes per row
+                    unsigned int channels,        ///< interleaved channels per pixel, all blurred
+                    unsigned int radius,          ///< blur intensity (should be in 2..254 range)
+                    int step,                     ///< step of processing (1,2)
+                    unsigned int start,           ///< first row (step 1) or column (step 2)
+                    unsigned int end              ///< end of the rows or columns of the band
+                    )
+{
+    unsigned char stack[(radius * 2) + 1];
+    unsigned int c;
 
-                sum_out += stack_ptr[0];
-                sum_in  -= stack_ptr[0];
+    if (step == 1)
+    {
+        for (unsigned int y = start; y < end; y++)
+        {
+            for (c = 0; c < channels; c++)
+            {
+                stackblur_line(src + y * stride + c, w, channels, radius, stack);
             }
         }
     }
 
-    // step 2
     if (step == 2)
     {
-        for(x = 0; x < w; x++)
+        for (unsigned int x = start; x < end; x++)
         {
-            sum = sum_in = sum_out = 0;
-
-            src_ptr = src + x; // x,0
-            for(i = 0; i <= radius; i++)
+            for (c = 0; c < channels; c++)
             {
-                stack_ptr    = &stack[i];
-                stack_ptr[0] = src_ptr[0];
-                sum         += src_ptr[0] * (i + 1);
-                sum_out     += src_ptr[0];
-            }
-            for(i = 1; i <= radius; i++)
-            {
-                if(i <= hm) src_ptr += w; // +stride
-
-                stack_ptr = &stack[(i + radius)];
-                stack_ptr[0] = src_ptr[0];
-                sum += src_ptr[0] * (radius + 1 - i);
-                sum_in += src_ptr[0];
-            }
-
-            sp = radius;
-            yp = radius;
-            if (yp > hm) yp = hm;
-            src_ptr = src + x + yp * w; // img.pix_ptr(x, yp);
-            dst_ptr = src + x;          // img.pix_ptr(x, 0);
-            for(y = 0; y < h; y++)
-            {
-                dst_ptr[0] = clamp((sum * mul_sum) >> shr_sum, 0, 255);
-                dst_ptr += w;
-
-                sum -= sum_out;
-
-                stack_start = sp + div - radius;
-                if(stack_start >= div) stack_start -= div;
-                stack_ptr = &stack[stack_start];
-
-                sum_out -= stack_ptr[0];
-
-                if(yp < hm)
-                {
-                    src_ptr += w; // stride
-                    ++yp;
-                }
-
-                stack_ptr[0] = src_ptr[0];
-
-                sum_in += src_ptr[0];
-                sum    += sum_in;
-
-                ++sp;
-                if (sp >= div) sp = 0;
-                stack_ptr = &stack[sp];
-
-                sum_out += stack_ptr[0];
-                sum_in  -= stack_ptr[0];
+                stackblur_line(src + x * channels + c, h, stride, radius, stack);
             }
         }
     }
 }
 
+/// Stackblur algorithm body
+void stackblur(unsigned char* src,                ///< input image data
+               unsigned int w,                    ///< image width
+               unsigned int h,                    ///< image height
+               unsigned int radius,               ///< blur intensity (should be in 2..254 range)
+               int step                           ///< step of processing (1,2)
+               )
+{
+    stackblur_band(src, w, h, w, 1, radius, step, 0, step == 1 ? h : w);
+}
+
 extern "C" {
 JNIEXPORT void JNICALL
 Java_com_jxtras_android_utils_ImageUtils_stackblur(JNIEnv *env, jclass clazz, jobject src,
@@ -220,4 +198,57 @@ Java_com_jxtras_android_utils_ImageUtils_stackblur(JNIEnv *env, jclass clazz, jo
     stackblur(pixels, width, height, radius, 1);
     stackblur(pixels, width, height, radius, 2);
 }
+
+JNIEXPORT jlong JNICALL
+Java_com_android_camera_util_StackBlur_nativeGetBufferAddress(JNIEnv *env,
+                                                              jclass clazz __unused,
+                                                              jobject buffer) {
+    return reinterpret_cast<jlong>(env->GetDirectBufferAddress(buffer));
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_android_camera_util_StackBlur_nativeLockPixels(JNIEnv *env, jclass clazz __unused,
+                                                        jobject bitmap) {
+    void* pixels = NULL;
+    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        LOGE("AndroidBitmap_lockPixels failed");
+        return 0;
+    }
+    return reinterpret_cast<jlong>(pixels);
+}
+
+JNIEXPORT void JNICALL
+Java_com_android_camera_util_StackBlur_nativeUnlockPixels(JNIEnv *env, jclass clazz __unused,
+                                                          jobject bitmap) {
+    AndroidBitmap_unlockPixels(env, bitmap);
+}
+
+JNIEXPORT void JNICALL
+Java_com_android_camera_util_StackBlur_nativeBlurBand(JNIEnv *env __unused,
+                                                      jclass clazz __unused, jlong pixels,
+                                                      jint width, jint height, jint stride,
+                                                      jint channels, jint radius, jint step,
+                                                      jint start, jint end) {
+    stackblur_band(reinterpret_cast<unsigned char*>(pixels), width, height, stride, channels,
+                   radius, step, start, end);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_android_camera_util_StackBlur_nativeScale(JNIEnv *env __unused,
+                                                   jclass clazz __unused, jlong src,
+                                                   jint src_width, jint src_height,
+                                                   jint src_stride, jlong dst, jint dst_width,
+                                                   jint dst_height, jint dst_stride,
+                                                   jint channels) {
+    // Box filtering is used when shrinking and degrades to bilinear when enlarging.
+    if (channels == 4) {
+        return libyuv::ARGBScale(reinterpret_cast<const uint8_t*>(src), src_stride, src_width,
+                                 src_height, reinterpret_cast<uint8_t*>(dst), dst_stride,
+                                 dst_width, dst_height, libyuv::kFilterBox);
+    }
+    libyuv::ScalePlane(reinterpret_cast<const uint8_t*>(src), src_stride, src_width, src_height,
+                       reinterpret_cast<uint8_t*>(dst), dst_stride, dst_width, dst_height,
+                       libyuv::kFilterBox);
+    return 0;
+}
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-keyed pool of reusable, mutable {@link Bitmap.Config#ARGB_8888} bitmaps, meant to be
+ * paired with {@link ImageProcessingUtil#convertYUVToBitmap(android.media.Image, Bitmap)}.
+ *
+ * <p>Bitmaps are handed out by {@link #acquireBitmap(int, int)} and handed back by
+ * {@link #releaseBitmap(Bitmap)}. A released bitmap is kept only if its size bucket holds fewer
+ * than {@code maxBitmapsPerSize} bitmaps; when the retained bytes exceed
+ * {@code maxRetainedBytes}, the bitmaps of the least recently used sizes are recycled first. In
+ * steady state (same frame size every time) acquiring a bitmap does not allocate.
+ *
+ * <p>This class is thread safe.
+ */
+public final class BitmapPool {
+
+    private final Object mLock = new Object();
+    private final int mMaxBitmapsPerSize;
+    private final long mMaxRetainedBytes;
+
+    /** Buckets of equally sized bitmaps, ordered from least to most recently used size. */
+    @GuardedBy("mLock")
+    private final LinkedHashMap<Long, ArrayDeque<Bitmap>> mBuckets =
+            new LinkedHashMap<>(8, 0.75f, /* accessOrder = */true);
+    @GuardedBy("mLock")
+    private long mRetainedBytes;
+
+    /**
+     * Creates a pool.
+     *
+     * @param maxBitmapsPerSize the maximum number of released bitmaps kept for any one size.
+     * @param maxRetainedBytes  the maximum number of pixel bytes kept by the pool.
+     */
+    public BitmapPool(@IntRange(from = 1) int maxBitmapsPerSize,
+                      @IntRange(from = 0) long maxRetainedBytes) {
+        if (maxBitmapsPerSize < 1) {
+            throw new IllegalArgumentException(
+                    "maxBitmapsPerSize must be positive, was " + maxBitmapsPerSize);
+        }
+        if (maxRetainedBytes < 0) {
+            throw new IllegalArgumentException(
+                    "maxRetainedBytes must not be negative, was " + maxRetainedBytes);
+        }
+        mMaxBitmapsPerSize = maxBitmapsPerSize;
+        mMaxRetainedBytes = maxRetainedBytes;
+    }
+
+    /**
+     * Returns a mutable ARGB_8888 bitmap of {@code width} x {@code height} pixels. The content
+     * is undefined. The caller should hand it back with {@link #releaseBitmap(Bitmap)} once it
+     * is no longer used.
+     */
+    @NonNull
+    public Bitmap acquireBitmap(@IntRange(from = 1) int width, @IntRange(from = 1) int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+        }
+        synchronized (mLock) {
+            ArrayDeque<Bitmap> bucket = mBuckets.get(key(width, height));
+            if (bucket != null && !bucket.isEmpty()) {
+                Bitmap bitmap = bucket.pollLast();
+                mRetainedBytes -= bitmap.getAllocationByteCount();
+                return bitmap;
+            }
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Returns a bitmap previously obtained from {@link #acquireBitmap(int, int)}. Bitmaps the
+     * pool does not keep are recycled, so the caller must not use the bitmap afterwards.
+     */
+    public void releaseBitmap(@NonNull Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            throw new IllegalArgumentException("Only mutable ARGB_8888 bitmaps can be released");
+        }
+        int size = bitmap.getAllocationByteCount();
+        synchronized (mLock) {
+            if (size > mMaxRetainedBytes) {
+                bitmap.recycle();
+                return;
+            }
+            long key = key(bitmap.getWidth(), bitmap.getHeight());
+            ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayDeque<>(mMaxBitmapsPerSize);
+                mBuckets.put(key, bucket);
+            }
+            if (bucket.size() >= mMaxBitmapsPerSize) {
+                bitmap.recycle();
+                return;
+            }
+            bucket.addLast(bitmap);
+            mRetainedBytes += size;
+
+            // Evict the least recently used sizes first. The bucket that was just touched is the
+            // most recent entry, so it is only trimmed when nothing else is left.
+            Iterator<Map.Entry<Long, ArrayDeque<Bitmap>>> it = mBuckets.entrySet().iterator();
+            while (mRetainedBytes > mMaxRetainedBytes && it.hasNext()) {
+                ArrayDeque<Bitmap> victim = it.next().getValue();
+                while (mRetainedBytes > mMaxRetainedBytes && !victim.isEmpty()) {
+                    Bitmap evicted = victim.pollFirst();
+                    mRetainedBytes -= evicted.getAllocationByteCount();
+                    evicted.recycle();
+                }
+                if (victim.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /** Recycles and drops every retained bitmap. */
+    public void clear() {
+        synchronized (mLock) {
+            for (ArrayDeque<Bitmap> bucket : mBuckets.values()) {
+                for (Bitmap bitmap : bucket) {
+                    bitmap.recycle();
+                }
+            }
+            mBuckets.clear();
+            mRetainedBytes = 0;
+        }
+    }
+
+    /** Returns the number of pixel bytes currently retained by the pool. */
+    public long getRetainedBytes() {
+        synchronized (mLock) {
+            return mRetainedBytes;
+        }
+    }
+
+    private static long key(int width, int height) {
+        return ((long) width << 32) | (height & 0xffffffffL);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-keyed pool of reusable byte arrays and direct {@link ByteBuffer}s.
+ *
+ * <p>Buffers are handed out by {@code acquire*()} and handed back by {@code release*()}. A
+ * released buffer is kept only if its size bucket holds fewer than {@code maxBuffersPerSize}
+ * buffers; when the retained bytes of a buffer kind exceed {@code maxRetainedBytes}, the least
+ * recently used sizes are dropped first. In steady state (same frame size every time) acquiring
+ * a buffer does not allocate.
+ *
+ * <p>This class is thread safe.
+ */
+public final class BufferPool {
+
+    private static final int DEFAULT_MAX_BUFFERS_PER_SIZE = 3;
+    private static final long DEFAULT_MAX_RETAINED_BYTES = 64L * 1024 * 1024;
+
+    private static final BufferPool sDefaultPool =
+            new BufferPool(DEFAULT_MAX_BUFFERS_PER_SIZE, DEFAULT_MAX_RETAINED_BYTES);
+
+    private final Object mLock = new Object();
+    private final int mMaxBuffersPerSize;
+    private final long mMaxRetainedBytes;
+
+    @GuardedBy("mLock")
+    private final SizedPool<byte[]> mArrays = new SizedPool<>();
+    @GuardedBy("mLock")
+    private final SizedPool<ByteBuffer> mDirectBuffers = new SizedPool<>();
+
+    /**
+     * Creates a pool.
+     *
+     * @param maxBuffersPerSize the maximum number of released buffers kept for any one size.
+     * @param maxRetainedBytes  the maximum number of bytes kept for each kind of buffer (arrays
+     *                          and direct buffers are accounted separately).
+     */
+    public BufferPool(@IntRange(from = 1) int maxBuffersPerSize,
+                      @IntRange(from = 0) long maxRetainedBytes) {
+        if (maxBuffersPerSize < 1) {
+            throw new IllegalArgumentException(
+                    "maxBuffersPerSize must be positive, was " + maxBuffersPerSize);
+        }
+        if (maxRetainedBytes < 0) {
+            throw new IllegalArgumentException(
+                    "maxRetainedBytes must not be negative, was " + maxRetainedBytes);
+        }
+        mMaxBuffersPerSize = maxBuffersPerSize;
+        mMaxRetainedBytes = maxRetainedBytes;
+    }
+
+    /** Returns the process-wide pool shared by the image utilities in this package. */
+    @NonNull
+    public static BufferPool getDefault() {
+        return sDefaultPool;
+    }
+
+    /**
+     * Returns a byte array of exactly {@code size} bytes. The content is undefined. The caller
+     * should hand it back with {@link #releaseByteArray(byte[])} once it is no longer used.
+     */
+    @NonNull
+    public byte[] acquireByteArray(@IntRange(from = 0) int size) {
+        checkSize(size);
+        synchronized (mLock) {
+            byte[] array = mArrays.poll(size);
+            if (array != null) {
+                return array;
+            }
+        }
+        return new byte[size];
+    }
+
+    /** Returns a byte array previously obtained from {@link #acquireByteArray(int)}. */
+    public void releaseByteArray(@NonNull byte[] array) {
+        synchronized (mLock) {
+            mArrays.offer(array.length, array, mMaxBuffersPerSize, mMaxRetainedBytes);
+        }
+    }
+
+    /**
+     * Returns a cleared direct {@link ByteBuffer} with a capacity of exactly {@code capacity}
+     * bytes. The content is undefined. The caller should hand it back with
+     * {@link #releaseDirectBuffer(ByteBuffer)} once it is no longer used.
+     */
+    @NonNull
+    public ByteBuffer acquireDirectBuffer(@IntRange(from = 0) int capacity) {
+        checkSize(capacity);
+        synchronized (mLock) {
+            ByteBuffer buffer = mDirectBuffers.poll(capacity);
+            if (buffer != null) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /** Returns a buffer previously obtained from {@link #acquireDirectBuffer(int)}. */
+    public void releaseDirectBuffer(@NonNull ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Only direct buffers can be released");
+        }
+        synchronized (mLock) {
+            mDirectBuffers.offer(buffer.capacity(), buffer, mMaxBuffersPerSize,
+                    mMaxRetainedBytes);
+        }
+    }
+
+    /** Drops every retained buffer. */
+    public void clear() {
+        synchronized (mLock) {
+            mArrays.clear();
+            mDirectBuffers.clear();
+        }
+    }
+
+    /** Returns the number of bytes currently retained by the pool, for both buffer kinds. */
+    public long getRetainedBytes() {
+        synchronized (mLock) {
+            return mArrays.mRetainedBytes + mDirectBuffers.mRetainedBytes;
+        }
+    }
+
+    private static void checkSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Buffer size must not be negative, was " + size);
+        }
+    }
+
+    /** Buckets of equally sized buffers, ordered from least to most recently used size. */
+    private static final class SizedPool<T> {
+        private final LinkedHashMap<Integer, ArrayDeque<T>> mBuckets =
+                new LinkedHashMap<>(8, 0.75f, /* accessOrder = */true);
+        long mRetainedBytes;
+
+        T poll(int size) {
+            ArrayDeque<T> bucket = mBuckets.get(size);
+            if (bucket == null || bucket.isEmpty()) {
+                return null;
+            }
+            mRetainedBytes -= size;
+            return bucket.pollLast();
+        }
+
+        void offer(int size, T buffer, int maxBuffersPerSize, long maxRetainedBytes) {
+            if (size > maxRetainedBytes) {
+                return;
+            }
+            ArrayDeque<T> bucket = mBuckets.get(size);
+            if (bucket == null) {
+                bucket = new ArrayDeque<>(maxBuffersPerSize);
+                mBuckets.put(size, bucket);
+            }
+            if (bucket.size() >= maxBuffersPerSize) {
+                return;
+            }
+            bucket.addLast(buffer);
+            mRetainedBytes += size;
+
+            // Evict the least recently used sizes first. The bucket that was just touched is the
+            // most recent entry, so it is only trimmed when nothing else is left.
+            Iterator<Map.Entry<Integer, ArrayDeque<T>>> it = mBuckets.entrySet().iterator();
+            while (mRetainedBytes > maxRetainedBytes && it.hasNext()) {
+                Map.Entry<Integer, ArrayDeque<T>> entry = it.next();
+                ArrayDeque<T> victim = entry.getValue();
+                while (mRetainedBytes > maxRetainedBytes && !victim.isEmpty()) {
+                    victim.pollFirst();
+                    mRetainedBytes -= entry.getKey();
+                }
+                if (victim.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+
+        void clear() {
+            mBuckets.clear();
+            mRetainedBytes = 0;
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.android.camera.util;
 
 import android.graphics.Bitmap;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.media.Image;
 import android.media.ImageReader;
 import android.media.ImageWriter;
@@ -25,11 +26,14 @@ import android.os.Build;
 import android.util.Log;
 import android.view.Surface;
 
+import androidx.annotation.IntDef;
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
 import java.util.Locale;
 import java.util.Objects;
@@ -41,10 +45,32 @@ import java.util.Objects;
 public final class ImageProcessingUtil {
 
     private static final String TAG = "ImageProcessingUtil";
+
+    /** Nearest-neighbor sampling, the fastest scaling filter. */
+    public static final int SCALE_FILTER_NEAREST = 0;
+    /** Bilinear interpolation. Cheap, but aliases when downscaling by more than 2x. */
+    public static final int SCALE_FILTER_BILINEAR = 1;
+    /** Box filtering, which averages every source pixel. The best quality for downscaling. */
+    public static final int SCALE_FILTER_BOX = 2;
+
+    /** The filters supported by the scaling conversions. */
+    @IntDef({SCALE_FILTER_NEAREST, SCALE_FILTER_BILINEAR, SCALE_FILTER_BOX})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface ScaleFilter {
+    }
+
     private static int sImageCount = 0;
+    private static final boolean sNativeLibraryLoaded;
 
     static {
-        System.loadLibrary("image_processing_util_jni");
+        boolean loaded = false;
+        try {
+            System.loadLibrary("image_processing_util_jni");
+            loaded = true;
+        } catch (UnsatisfiedLinkError e) {
+            Log.e(TAG, "Failed to load image_processing_util_jni", e);
+        }
+        sNativeLibraryLoaded = loaded;
     }
 
     enum Result {
@@ -56,6 +82,14 @@ public final class ImageProcessingUtil {
     private ImageProcessingUtil() {
     }
 
+    /**
+     * Returns true if the native library backing this class has been loaded. Callers with a
+     * pure-Java fallback should check this before calling into the native conversions.
+     */
+    static boolean isNativeLibraryLoaded() {
+        return sNativeLibraryLoaded;
+    }
+
     /**
      * Wraps a JPEG byte array with an {@link Image}.
      *
@@ -80,7 +114,43 @@ public final class ImageProcessingUtil {
             throw new IllegalStateException("Could not acquire surface from jpegImageReader");
         }
 
-        if (nativeWriteJpegToSurface(jpegBytes, surface) != 0) {
+        if (nativeWriteJpegToSurface(jpegBytes, 0, jpegBytes.length, surface) != 0) {
+            Log.e(TAG, "Failed to enqueue JPEG image.");
+            return null;
+        }
+
+        final Image image = jpegImageReader.acquireLatestImage();
+        if (image == null) {
+            Log.e(TAG, "Failed to get acquire JPEG image.");
+        }
+        return image;
+    }
+
+    /**
+     * Wraps the JPEG bytes between the position and the limit of a {@link ByteBuffer} with an
+     * {@link Image}, the same way as {@link #convertJpegBytesToImage(ImageReader, byte[])}.
+     *
+     * <p>A direct buffer, such as the output of {@link JpegUtilNative}, is copied into the
+     * image with a single memcpy. The position of the buffer is not changed.
+     */
+    @Nullable
+    public static Image convertJpegBytesToImage(
+            @NonNull ImageReader jpegImageReader,
+            @NonNull ByteBuffer jpegBuffer) {
+        if (jpegImageReader.getImageFormat() != ImageFormat.JPEG) {
+            throw new IllegalArgumentException("Only " +
+                    "ImageFormat.JPEG is supported, found " + jpegImageReader.getImageFormat());
+        }
+        if (jpegBuffer == null) {
+            throw new IllegalArgumentException("Jpeg buffer must not be null");
+        }
+
+        Surface surface = jpegImageReader.getSurface();
+        if (surface == null) {
+            throw new IllegalStateException("Could not acquire surface from jpegImageReader");
+        }
+
+        if (writeJpegToSurface(jpegBuffer, surface) != 0) {
             Log.e(TAG, "Failed to enqueue JPEG image.");
             return null;
         }
@@ -136,13 +206,48 @@ public final class ImageProcessingUtil {
         Objects.requireNonNull(jpegBytes);
         Objects.requireNonNull(surface);
 
-        if (nativeWriteJpegToSurface(jpegBytes, surface) != 0) {
+        if (nativeWriteJpegToSurface(jpegBytes, 0, jpegBytes.length, surface) != 0) {
             Log.e(TAG, "Failed to enqueue JPEG image.");
             return false;
         }
         return true;
     }
 
+    /**
+     * Writes the JPEG bytes between the position and the limit of a {@link ByteBuffer} as an
+     * Image into the Surface. A direct buffer is copied with a single memcpy. The position of
+     * the buffer is not changed. Returns true if it succeeds and false otherwise.
+     */
+    public static boolean writeJpegBytesToSurface(
+            @NonNull Surface surface,
+            @NonNull ByteBuffer jpegBuffer) {
+        Objects.requireNonNull(jpegBuffer);
+        Objects.requireNonNull(surface);
+
+        if (writeJpegToSurface(jpegBuffer, surface) != 0) {
+            Log.e(TAG, "Failed to enqueue JPEG image.");
+            return false;
+        }
+        return true;
+    }
+
+    private static int writeJpegToSurface(@NonNull ByteBuffer jpegBuffer,
+                                          @NonNull Surface surface) {
+        if (jpegBuffer.isDirect()) {
+            return nativeWriteJpegBufferToSurface(jpegBuffer, jpegBuffer.position(),
+                    jpegBuffer.remaining(), surface);
+        }
+        if (jpegBuffer.hasArray()) {
+            return nativeWriteJpegToSurface(jpegBuffer.array(),
+                    jpegBuffer.arrayOffset() + jpegBuffer.position(), jpegBuffer.remaining(),
+                    surface);
+        }
+        // A read-only heap buffer exposes no array, so copy it out.
+        byte[] jpegBytes = new byte[jpegBuffer.remaining()];
+        jpegBuffer.duplicate().get(jpegBytes);
+        return nativeWriteJpegToSurface(jpegBytes, 0, jpegBytes.length, surface);
+    }
+
     /**
      * Convert a YUV_420_888 Image to a JPEG bytes data as an Image into the Surface.
      *
@@ -154,6 +259,18 @@ public final class ImageProcessingUtil {
             int rotationDegrees,
             @NonNull Surface outputSurface) {
         try {
+            if (JpegUtilNative.isNativeLibraryLoaded()) {
+                // Hand the encoder's direct output buffer straight to the surface.
+                BufferPool pool = BufferPool.getDefault();
+                ByteBuffer jpegBuffer = ImageUtils.yuvImageToJpegByteBuffer(image,
+                        new Rect(0, 0, image.getWidth(), image.getHeight()), jpegQuality,
+                        rotationDegrees, false, pool);
+                try {
+                    return writeJpegBytesToSurface(outputSurface, jpegBuffer);
+                } finally {
+                    pool.releaseDirectBuffer(jpegBuffer);
+                }
+            }
             byte[] jpegBytes =
                     ImageUtils.yuvImageToJpegByteArray(
                             image, null, jpegQuality, rotationDegrees);
@@ -172,9 +289,11 @@ public final class ImageProcessingUtil {
      * otherwise the input YUV layout will be converted to NV12 first and then to RGBA_8888 as a
      * fallback.
      *
+     * A rotated image is converted and rotated tile by tile straight into the output surface,
+     * so no intermediate frame buffer is needed.
+     *
      * @param image                input image in YUV.
      * @param rgbImageReader       output image reader in RGB.
-     * @param rgbConvertedBuffer   intermediate image buffer for format conversion.
      * @param rotationDegrees      output image rotation degrees.
      * @param onePixelShiftEnabled true if one pixel shift should be applied, otherwise false.
      * @return output image in RGB.
@@ -183,9 +302,31 @@ public final class ImageProcessingUtil {
     public static Image convertYUVToRGB(
             @NonNull Image image,
             @NonNull ImageReader rgbImageReader,
-            @Nullable ByteBuffer rgbConvertedBuffer,
             @IntRange(from = 0, to = 359) int rotationDegrees,
             boolean onePixelShiftEnabled) {
+        return convertYUVToRGB(image, rgbImageReader, rotationDegrees, onePixelShiftEnabled,
+                ImageUtils.COLOR_MATRIX_BT601_FULL_RANGE);
+    }
+
+    /**
+     * Converts image in YUV to RGB, like
+     * {@link #convertYUVToRGB(Image, ImageReader, int, boolean)}, with the given color matrix
+     * instead of full range BT.601.
+     *
+     * @param image                input image in YUV.
+     * @param rgbImageReader       output image reader in RGB.
+     * @param rotationDegrees      output image rotation degrees.
+     * @param onePixelShiftEnabled true if one pixel shift should be applied, otherwise false.
+     * @param colorMatrix          the matrix and range the YUV data is encoded with.
+     * @return output image in RGB.
+     */
+    @Nullable
+    public static Image convertYUVToRGB(
+            @NonNull Image image,
+            @NonNull ImageReader rgbImageReader,
+            @IntRange(from = 0, to = 359) int rotationDegrees,
+            boolean onePixelShiftEnabled,
+            @ImageUtils.ColorMatrix int colorMatrix) {
         if (!isSupportedYUVFormat(image)) {
             Log.e(TAG, "Unsupported format for YUV to RGB");
             return null;
@@ -201,9 +342,9 @@ public final class ImageProcessingUtil {
         Result result = convertYUVToRGBInternal(
                 image,
                 rgbImageReader.getSurface(),
-                rgbConvertedBuffer,
                 rotationDegrees,
-                onePixelShiftEnabled);
+                onePixelShiftEnabled,
+                colorMatrix);
 
         if (result == Result.ERROR_CONVERSION) {
             Log.e(TAG, "YUV to RGB conversion failure");
@@ -228,11 +369,28 @@ public final class ImageProcessingUtil {
         return rgbImage;
     }
 
+    /**
+     * Converts image in YUV to RGB.
+     *
+     * @deprecated The intermediate buffer is no longer used, use
+     * {@link #convertYUVToRGB(Image, ImageReader, int, boolean)} instead.
+     */
+    @Deprecated
+    @Nullable
+    public static Image convertYUVToRGB(
+            @NonNull Image image,
+            @NonNull ImageReader rgbImageReader,
+            @Nullable ByteBuffer rgbConvertedBuffer,
+            @IntRange(from = 0, to = 359) int rotationDegrees,
+            boolean onePixelShiftEnabled) {
+        return convertYUVToRGB(image, rgbImageReader, rotationDegrees, onePixelShiftEnabled);
+    }
+
     /**
      * Converts image in YUV to {@link Bitmap}.
      *
      * <p> Different from {@link ImageProcessingUtil#convertYUVToRGB(
-     * Image, ImageReader, ByteBuffer, int, boolean)}, this function converts to
+     * Image, ImageReader, int, boolean)}, this function converts to
      * {@link Bitmap} in RGBA directly. If input format is invalid,
      * {@link IllegalArgumentException} will be thrown. If the conversion to bitmap failed,
      * {@link UnsupportedOperationException} will be thrown.
@@ -242,9 +400,66 @@ public final class ImageProcessingUtil {
      */
     @NonNull
     public static Bitmap convertYUVToBitmap(@NonNull Image image) {
+        return convertYUVToBitmap(image, ImageUtils.COLOR_MATRIX_BT601_FULL_RANGE);
+    }
+
+    /**
+     * Converts image in YUV to {@link Bitmap}, like {@link #convertYUVToBitmap(Image)}, with the
+     * given color matrix instead of full range BT.601.
+     *
+     * @param image       input image in YUV.
+     * @param colorMatrix the matrix and range the YUV data is encoded with.
+     * @return bitmap output bitmap in RGBA.
+     */
+    @NonNull
+    public static Bitmap convertYUVToBitmap(@NonNull Image image,
+            @ImageUtils.ColorMatrix int colorMatrix) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("Input image format must be YUV_420_888");
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(image.getWidth(),
+                image.getHeight(), Bitmap.Config.ARGB_8888);
+        convertYUVToBitmap(image, bitmap, colorMatrix);
+        return bitmap;
+    }
+
+    /**
+     * Converts image in YUV to {@link Bitmap} in RGBA, writing into the given bitmap.
+     *
+     * <p> Unlike {@link #convertYUVToBitmap(Image)}, this does not allocate, so a continuous
+     * stream of images can be converted into bitmaps recycled through a {@link BitmapPool}.
+     * If input format is invalid or the bitmap is not a mutable ARGB_8888 bitmap of the image
+     * size, {@link IllegalArgumentException} will be thrown. If the conversion to bitmap failed,
+     * {@link UnsupportedOperationException} will be thrown.
+     *
+     * @param image  input image in YUV.
+     * @param bitmap output bitmap, with the same size as the image.
+     */
+    public static void convertYUVToBitmap(@NonNull Image image, @NonNull Bitmap bitmap) {
+        convertYUVToBitmap(image, bitmap, ImageUtils.COLOR_MATRIX_BT601_FULL_RANGE);
+    }
+
+    /**
+     * Converts image in YUV to {@link Bitmap} in RGBA, like
+     * {@link #convertYUVToBitmap(Image, Bitmap)}, with the given color matrix instead of full
+     * range BT.601.
+     *
+     * @param image       input image in YUV.
+     * @param bitmap      output bitmap, with the same size as the image.
+     * @param colorMatrix the matrix and range the YUV data is encoded with.
+     */
+    public static void convertYUVToBitmap(@NonNull Image image, @NonNull Bitmap bitmap,
+            @ImageUtils.ColorMatrix int colorMatrix) {
         if (image.getFormat() != ImageFormat.YUV_420_888) {
             throw new IllegalArgumentException("Input image format must be YUV_420_888");
         }
+        checkOutputBitmap(bitmap);
+        if (bitmap.getWidth() != image.getWidth() || bitmap.getHeight() != image.getHeight()) {
+            throw new IllegalArgumentException("Output bitmap size " + bitmap.getWidth() + "x"
+                    + bitmap.getHeight() + " does not match image size " + image.getWidth()
+                    + "x" + image.getHeight());
+        }
 
         int imageWidth = image.getWidth();
         int imageHeight = image.getHeight();
@@ -254,8 +469,6 @@ public final class ImageProcessingUtil {
         int srcPixelStrideY = image.getPlanes()[0].getPixelStride();
         int srcPixelStrideUV = image.getPlanes()[1].getPixelStride();
 
-        Bitmap bitmap = Bitmap.createBitmap(image.getWidth(),
-                image.getHeight(), Bitmap.Config.ARGB_8888);
         int bitmapStride = bitmap.getRowBytes();
 
         int result = nativeConvertAndroid420ToBitmap(
@@ -270,11 +483,207 @@ public final class ImageProcessingUtil {
                 bitmap,
                 bitmapStride,
                 imageWidth,
-                imageHeight);
+                imageHeight,
+                colorMatrix);
         if (result != 0) {
             throw new UnsupportedOperationException("YUV to RGB conversion failed");
         }
-        return bitmap;
+    }
+
+    /**
+     * Returns the largest rectangle centered in a {@code srcWidth} x {@code srcHeight} image with
+     * the aspect ratio of {@code dstWidth} x {@code dstHeight}, for use as the crop rectangle of
+     * the scaling conversions.
+     */
+    @NonNull
+    public static Rect getCenterCropRect(@IntRange(from = 1) int srcWidth,
+            @IntRange(from = 1) int srcHeight, @IntRange(from = 1) int dstWidth,
+            @IntRange(from = 1) int dstHeight) {
+        int width = srcWidth;
+        int height = srcHeight;
+        if ((long) srcWidth * dstHeight > (long) srcHeight * dstWidth) {
+            width = (int) ((long) srcHeight * dstWidth / dstHeight);
+        } else {
+            height = (int) ((long) srcWidth * dstHeight / dstWidth);
+        }
+        int left = (srcWidth - width) / 2;
+        int top = (srcHeight - height) / 2;
+        return new Rect(left, top, left + width, top + height);
+    }
+
+    /**
+     * Crops image in YUV, scales it to the size of the given {@link Bitmap} and converts it to
+     * RGBA into the bitmap.
+     *
+     * <p>The image is scaled before it is converted, so the cost of the conversion depends on
+     * the output size instead of the image size. This is meant for analysis streams which only
+     * need a small frame. The left and top of the crop rectangle are rounded down to even
+     * coordinates, so that the crop starts on a chroma sample.
+     *
+     * @param image       input image in YUV.
+     * @param cropRect    the region of the image to convert, or null for the whole image. See
+     *                    {@link #getCenterCropRect(int, int, int, int)}.
+     * @param bitmap      output bitmap, which must be a mutable ARGB_8888 bitmap.
+     * @param filter      the scaling filter.
+     * @param colorMatrix the matrix and range the YUV data is encoded with.
+     */
+    public static void convertYUVToBitmap(@NonNull Image image, @Nullable Rect cropRect,
+            @NonNull Bitmap bitmap, @ScaleFilter int filter,
+            @ImageUtils.ColorMatrix int colorMatrix) {
+        if (!isSupportedYUVFormat(image)) {
+            throw new IllegalArgumentException("Input image format must be YUV_420_888");
+        }
+        checkOutputBitmap(bitmap);
+        Rect crop = getScaleCropRect(image, cropRect);
+
+        int result = nativeConvertAndroid420ToScaledBitmap(
+                image.getPlanes()[0].getBuffer(),
+                image.getPlanes()[0].getRowStride(),
+                image.getPlanes()[1].getBuffer(),
+                image.getPlanes()[1].getRowStride(),
+                image.getPlanes()[2].getBuffer(),
+                image.getPlanes()[2].getRowStride(),
+                image.getPlanes()[1].getPixelStride(),
+                crop.left,
+                crop.top,
+                crop.width(),
+                crop.height(),
+                bitmap,
+                bitmap.getRowBytes(),
+                bitmap.getWidth(),
+                bitmap.getHeight(),
+                filter,
+                colorMatrix);
+        if (result != 0) {
+            throw new UnsupportedOperationException("YUV to RGB conversion failed");
+        }
+    }
+
+    /**
+     * Crops image in YUV, scales it to the size of the given {@link ImageReader} and converts it
+     * to RGB. See {@link #convertYUVToBitmap(Image, Rect, Bitmap, int, int)} for the scaling and
+     * cropping semantics.
+     *
+     * @param image          input image in YUV.
+     * @param cropRect       the region of the image to convert, or null for the whole image.
+     * @param rgbImageReader output image reader in RGB, with the output size.
+     * @param filter         the scaling filter.
+     * @param colorMatrix    the matrix and range the YUV data is encoded with.
+     * @return output image in RGB.
+     */
+    @Nullable
+    public static Image convertYUVToRGB(
+            @NonNull Image image,
+            @Nullable Rect cropRect,
+            @NonNull ImageReader rgbImageReader,
+            @ScaleFilter int filter,
+            @ImageUtils.ColorMatrix int colorMatrix) {
+        if (!isSupportedYUVFormat(image)) {
+            Log.e(TAG, "Unsupported format for YUV to RGB");
+            return null;
+        }
+        Rect crop = getScaleCropRect(image, cropRect);
+
+        int result = nativeConvertAndroid420ToScaledABGR(
+                image.getPlanes()[0].getBuffer(),
+                image.getPlanes()[0].getRowStride(),
+                image.getPlanes()[1].getBuffer(),
+                image.getPlanes()[1].getRowStride(),
+                image.getPlanes()[2].getBuffer(),
+                image.getPlanes()[2].getRowStride(),
+                image.getPlanes()[1].getPixelStride(),
+                crop.left,
+                crop.top,
+                crop.width(),
+                crop.height(),
+                rgbImageReader.getSurface(),
+                filter,
+                colorMatrix);
+        if (result != 0) {
+            Log.e(TAG, "YUV to RGB conversion failure");
+            return null;
+        }
+
+        final Image rgbImage = rgbImageReader.acquireLatestImage();
+        if (rgbImage == null) {
+            Log.e(TAG, "YUV to RGB acquireLatestImage failure");
+            return null;
+        }
+
+        return rgbImage;
+    }
+
+    /**
+     * Converts image in YUV to NV21 into the given byte array.
+     *
+     * <p>I420, NV12 and NV21 input layouts are copied plane by plane with libyuv; other layouts
+     * fall back to a per-pixel weave of the chroma planes.
+     *
+     * @param image input image in YUV.
+     * @param nv21  output array, at least {@link ImageUtils#getNv21ByteCount(Image)} bytes long.
+     * @return true if the conversion succeeds, otherwise false.
+     */
+    public static boolean convertYUVToNV21(@NonNull Image image, @NonNull byte[] nv21) {
+        if (!isSupportedYUVFormat(image)) {
+            Log.e(TAG, "Unsupported format for YUV to NV21");
+            return false;
+        }
+        if (nv21.length < ImageUtils.getNv21ByteCount(image)) {
+            Log.e(TAG, "NV21 array is too small");
+            return false;
+        }
+
+        int result = nativeConvertAndroid420ToNV21Array(
+                image.getPlanes()[0].getBuffer(),
+                image.getPlanes()[0].getRowStride(),
+                image.getPlanes()[1].getBuffer(),
+                image.getPlanes()[1].getRowStride(),
+                image.getPlanes()[2].getBuffer(),
+                image.getPlanes()[2].getRowStride(),
+                image.getPlanes()[0].getPixelStride(),
+                image.getPlanes()[1].getPixelStride(),
+                nv21,
+                image.getWidth(),
+                image.getHeight());
+        return result == 0;
+    }
+
+    /**
+     * Converts image in YUV to NV21 into the given direct {@link ByteBuffer}, starting at
+     * index 0. The buffer position and limit are not changed.
+     *
+     * @param image input image in YUV.
+     * @param nv21  direct output buffer with a capacity of at least
+     *              {@link ImageUtils#getNv21ByteCount(Image)} bytes.
+     * @return true if the conversion succeeds, otherwise false.
+     * @see #convertYUVToNV21(Image, byte[])
+     */
+    public static boolean convertYUVToNV21(@NonNull Image image, @NonNull ByteBuffer nv21) {
+        if (!isSupportedYUVFormat(image)) {
+            Log.e(TAG, "Unsupported format for YUV to NV21");
+            return false;
+        }
+        if (!nv21.isDirect()) {
+            throw new IllegalArgumentException("NV21 buffer must be direct");
+        }
+        if (nv21.capacity() < ImageUtils.getNv21ByteCount(image)) {
+            Log.e(TAG, "NV21 buffer is too small");
+            return false;
+        }
+
+        int result = nativeConvertAndroid420ToNV21Buffer(
+                image.getPlanes()[0].getBuffer(),
+                image.getPlanes()[0].getRowStride(),
+                image.getPlanes()[1].getBuffer(),
+                image.getPlanes()[1].getRowStride(),
+                image.getPlanes()[2].getBuffer(),
+                image.getPlanes()[2].getRowStride(),
+                image.getPlanes()[0].getPixelStride(),
+                image.getPlanes()[1].getPixelStride(),
+                nv21,
+                image.getWidth(),
+                image.getHeight());
+        return result == 0;
     }
 
     /**
@@ -301,6 +710,33 @@ public final class ImageProcessingUtil {
     /**
      * Rotates YUV image.
      *
+     * <p>When both the input image and the image dequeued from {@code rotatedImageWriter} have
+     * an I420, NV12 or NV21 layout, the planes are rotated straight into the output image.
+     * Other layouts are rotated into I420 intermediate planes first, which are allocated for
+     * each call.
+     *
+     * @param image                   input image.
+     * @param rotatedImageReader      input image reader.
+     * @param rotatedImageWriter      output image writer.
+     * @param rotationDegrees         output image rotation degrees.
+     * @return rotated image or null if rotation fails or format is not supported.
+     */
+    @Nullable
+    public static Image rotateYUV(
+            @NonNull Image image,
+            @NonNull ImageReader rotatedImageReader,
+            @NonNull ImageWriter rotatedImageWriter,
+            @IntRange(from = 0, to = 359) int rotationDegrees) {
+        return rotateYUV(image, rotatedImageReader, rotatedImageWriter, null, null, null,
+                rotationDegrees);
+    }
+
+    /**
+     * Rotates YUV image.
+     *
+     * <p>The intermediate buffers are only used when the input or output layout is not I420,
+     * NV12 or NV21, see {@link #rotateYUV(Image, ImageReader, ImageWriter, int)}.
+     *
      * @param image                   input image.
      * @param rotatedImageReader      input image reader.
      * @param rotatedImageWriter      output image writer.
@@ -315,9 +751,9 @@ public final class ImageProcessingUtil {
             @NonNull Image image,
             @NonNull ImageReader rotatedImageReader,
             @NonNull ImageWriter rotatedImageWriter,
-            @NonNull ByteBuffer yRotatedBuffer,
-            @NonNull ByteBuffer uRotatedBuffer,
-            @NonNull ByteBuffer vRotatedBuffer,
+            @Nullable ByteBuffer yRotatedBuffer,
+            @Nullable ByteBuffer uRotatedBuffer,
+            @Nullable ByteBuffer vRotatedBuffer,
             @IntRange(from = 0, to = 359) int rotationDegrees) {
         if (!isSupportedYUVFormat(image)) {
             Log.e(TAG, "Unsupported format for rotate YUV");
@@ -363,6 +799,30 @@ public final class ImageProcessingUtil {
                 && image.getPlanes().length == 3;
     }
 
+    private static void checkOutputBitmap(@NonNull Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            throw new IllegalArgumentException("Output bitmap must be a mutable ARGB_8888 bitmap");
+        }
+    }
+
+    /**
+     * Returns the crop rectangle of a scaling conversion, with its left and top rounded down to
+     * even coordinates.
+     */
+    @NonNull
+    private static Rect getScaleCropRect(@NonNull Image image, @Nullable Rect cropRect) {
+        if (cropRect == null) {
+            return new Rect(0, 0, image.getWidth(), image.getHeight());
+        }
+        if (cropRect.left < 0 || cropRect.top < 0 || cropRect.right > image.getWidth()
+                || cropRect.bottom > image.getHeight() || cropRect.isEmpty()) {
+            throw new IllegalArgumentException("Invalid crop rectangle " + cropRect
+                    + " for image size " + image.getWidth() + "x" + image.getHeight());
+        }
+        return new Rect(cropRect.left & ~1, cropRect.top & ~1, cropRect.right, cropRect.bottom);
+    }
+
     private static boolean isSupportedRotationDegrees(
             @IntRange(from = 0, to = 359) int rotationDegrees) {
         return rotationDegrees == 0
@@ -375,9 +835,9 @@ public final class ImageProcessingUtil {
     private static Result convertYUVToRGBInternal(
             @NonNull Image image,
             @NonNull Surface surface,
-            @Nullable ByteBuffer rgbConvertedBuffer,
             int rotation,
-            boolean onePixelShiftEnabled) {
+            boolean onePixelShiftEnabled,
+            @ImageUtils.ColorMatrix int colorMatrix) {
         int imageWidth = image.getWidth();
         int imageHeight = image.getHeight();
         int srcStrideY = image.getPlanes()[0].getRowStride();
@@ -400,13 +860,13 @@ public final class ImageProcessingUtil {
                 srcPixelStrideY,
                 srcPixelStrideUV,
                 surface,
-                rgbConvertedBuffer,
                 imageWidth,
                 imageHeight,
                 startOffsetY,
                 startOffsetU,
                 startOffsetV,
-                rotation);
+                rotation,
+                colorMatrix);
         if (result != 0) {
             return Result.ERROR_CONVERSION;
         }
@@ -452,9 +912,9 @@ public final class ImageProcessingUtil {
     private static Result rotateYUVInternal(
             @NonNull Image image,
             @NonNull ImageWriter rotatedImageWriter,
-            @NonNull ByteBuffer yRotatedBuffer,
-            @NonNull ByteBuffer uRotatedBuffer,
-            @NonNull ByteBuffer vRotatedBuffer,
+            @Nullable ByteBuffer yRotatedBuffer,
+            @Nullable ByteBuffer uRotatedBuffer,
+            @Nullable ByteBuffer vRotatedBuffer,
             int rotationDegrees) {
         int imageWidth = image.getWidth();
         int imageHeight = image.getHeight();
@@ -508,8 +968,15 @@ public final class ImageProcessingUtil {
 
 
     private static native int nativeWriteJpegToSurface(@NonNull byte[] jpegArray,
+                                                       int jpegOffset,
+                                                       int jpegSize,
                                                        @NonNull Surface surface);
 
+    private static native int nativeWriteJpegBufferToSurface(@NonNull ByteBuffer jpegBuffer,
+                                                             int jpegOffset,
+                                                             int jpegSize,
+                                                             @NonNull Surface surface);
+
     private static native int nativeConvertAndroid420ToABGR(
             @NonNull ByteBuffer srcByteBufferY,
             int srcStrideY,
@@ -520,13 +987,13 @@ public final class ImageProcessingUtil {
             int srcPixelStrideY,
             int srcPixelStrideUV,
             @Nullable Surface surface,
-            @Nullable ByteBuffer convertedByteBufferRGB,
             int width,
             int height,
             int startOffsetY,
             int startOffsetU,
             int startOffsetV,
-            int rotationDegrees);
+            int rotationDegrees,
+            int colorMatrix);
 
     private static native int nativeConvertAndroid420ToBitmap(
             @NonNull ByteBuffer srcByteBufferY,
@@ -540,6 +1007,68 @@ public final class ImageProcessingUtil {
             @NonNull Bitmap bitmap,
             int bitmapStride,
             int width,
+            int height,
+            int colorMatrix);
+
+    private static native int nativeConvertAndroid420ToScaledABGR(
+            @NonNull ByteBuffer srcByteBufferY,
+            int srcStrideY,
+            @NonNull ByteBuffer srcByteBufferU,
+            int srcStrideU,
+            @NonNull ByteBuffer srcByteBufferV,
+            int srcStrideV,
+            int srcPixelStrideUV,
+            int cropLeft,
+            int cropTop,
+            int cropWidth,
+            int cropHeight,
+            @NonNull Surface surface,
+            int filter,
+            int colorMatrix);
+
+    private static native int nativeConvertAndroid420ToScaledBitmap(
+            @NonNull ByteBuffer srcByteBufferY,
+            int srcStrideY,
+            @NonNull ByteBuffer srcByteBufferU,
+            int srcStrideU,
+            @NonNull ByteBuffer srcByteBufferV,
+            int srcStrideV,
+            int srcPixelStrideUV,
+            int cropLeft,
+            int cropTop,
+            int cropWidth,
+            int cropHeight,
+            @NonNull Bitmap bitmap,
+            int bitmapStride,
+            int width,
+            int height,
+            int filter,
+            int colorMatrix);
+
+    private static native int nativeConvertAndroid420ToNV21Array(
+            @NonNull ByteBuffer srcByteBufferY,
+            int srcStrideY,
+            @NonNull ByteBuffer srcByteBufferU,
+            int srcStrideU,
+            @NonNull ByteBuffer srcByteBufferV,
+            int srcStrideV,
+            int srcPixelStrideY,
+            int srcPixelStrideUV,
+            @NonNull byte[] nv21,
+            int width,
+            int height);
+
+    private static native int nativeConvertAndroid420ToNV21Buffer(
+            @NonNull ByteBuffer srcByteBufferY,
+            int srcStrideY,
+            @NonNull ByteBuffer srcByteBufferU,
+            int srcStrideU,
+            @NonNull ByteBuffer srcByteBufferV,
+            int srcStrideV,
+            int srcPixelStrideY,
+            int srcPixelStrideUV,
+            @NonNull ByteBuffer nv21,
+            int width,
             int height);
 
     private static native int nativeShiftPixel(
@@ -574,9 +1103,9 @@ public final class ImageProcessingUtil {
             @NonNull ByteBuffer dstByteBufferV,
             int dstStrideV,
             int dstPixelStrideV,
-            @NonNull ByteBuffer rotatedByteBufferY,
-            @NonNull ByteBuffer rotatedByteBufferU,
-            @NonNull ByteBuffer rotatedByteBufferV,
+            @Nullable ByteBuffer rotatedByteBufferY,
+            @Nullable ByteBuffer rotatedByteBufferU,
+            @Nullable ByteBuffer rotatedByteBufferV,
             int width,
             int height,
             int rotationDegrees);
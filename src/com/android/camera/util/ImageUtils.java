@@ -26,13 +26,17 @@ import android.graphics.Rect;
 import android.graphics.YuvImage;
 import android.media.Image;
 
+import androidx.annotation.IntDef;
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * @hide
@@ -40,23 +44,105 @@ import java.nio.ByteBuffer;
 public class ImageUtils {
     private static final String TAG = "ImageUtils";
 
+    // Room for the headers, the EXIF thumbnail and the quantization/Huffman tables of an
+    // encoded JPEG.
+    private static final int JPEG_HEADER_BYTES = 64 * 1024;
+    // Bounds of the EXIF thumbnail, the size gallery apps look for.
+    private static final int EXIF_THUMBNAIL_MAX_WIDTH = 160;
+    private static final int EXIF_THUMBNAIL_MAX_HEIGHT = 120;
+    // EXIF orientation tags for clockwise rotations by 0, 90, 180 and 270 degrees.
+    private static final int[] EXIF_ORIENTATIONS = {1, 6, 3, 8};
+    // Upper bound for 4:2:0 input, which has 1.5 bytes of samples per pixel.
+    private static final int MAX_JPEG_BYTES_PER_PIXEL = 3;
+
+    /** Full range BT.601 YUV, as used by JFIF and by most camera YUV output. */
+    public static final int COLOR_MATRIX_BT601_FULL_RANGE = 0;
+    /** Limited (video) range BT.601 YUV. */
+    public static final int COLOR_MATRIX_BT601_LIMITED_RANGE = 1;
+    /** Full range BT.709 YUV. */
+    public static final int COLOR_MATRIX_BT709_FULL_RANGE = 2;
+    /** Limited (video) range BT.709 YUV, as used by HD video. */
+    public static final int COLOR_MATRIX_BT709_LIMITED_RANGE = 3;
+    /** Full range BT.2020 YUV. */
+    public static final int COLOR_MATRIX_BT2020_FULL_RANGE = 4;
+    /** Limited (video) range BT.2020 YUV, as used by HDR video. */
+    public static final int COLOR_MATRIX_BT2020_LIMITED_RANGE = 5;
+
     /**
-     * Converts JPEG {@link Image} to JPEG byte array.
+     * The YUV to RGB conversions supported by {@link #yuv_420_888toRgb} and by the conversions in
+     * {@link ImageProcessingUtil}.
+     */
+    @IntDef({COLOR_MATRIX_BT601_FULL_RANGE, COLOR_MATRIX_BT601_LIMITED_RANGE,
+            COLOR_MATRIX_BT709_FULL_RANGE, COLOR_MATRIX_BT709_LIMITED_RANGE,
+            COLOR_MATRIX_BT2020_FULL_RANGE, COLOR_MATRIX_BT2020_LIMITED_RANGE})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface ColorMatrix {
+    }
+
+    // The camera3_jpeg_blob transport header the HAL writes at the very end of a JPEG buffer:
+    // a 16-bit id followed, after padding, by the 32-bit size of the JPEG.
+    private static final int JPEG_BLOB_HEADER_BYTES = 8;
+    private static final int JPEG_BLOB_SIZE_OFFSET = 4;
+    private static final short JPEG_BLOB_ID = 0x00FF;
+
+    /**
+     * Converts JPEG {@link Image} to JPEG byte array. Only the encoded JPEG is copied, not the
+     * unused tail of the buffer the camera allocated for it.
      */
     @NonNull
     public static byte[] jpegImageToJpegByteArray(@NonNull Image image) {
+        ByteBuffer buffer = jpegImageToJpegByteBuffer(image);
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+
+        return data;
+    }
+
+    /**
+     * Returns a view of the encoded JPEG in a JPEG {@link Image}, without copying. The view
+     * starts at position 0 and its limit is the size of the JPEG. It is only valid until the
+     * image is closed.
+     */
+    @NonNull
+    public static ByteBuffer jpegImageToJpegByteBuffer(@NonNull Image image) {
         if (image.getFormat() != ImageFormat.JPEG) {
             throw new IllegalArgumentException(
                     "Incorrect image format of the input image proxy: " + image.getFormat());
         }
 
-        Image.Plane[] planes = image.getPlanes();
-        ByteBuffer buffer = planes[0].getBuffer();
-        byte[] data = new byte[buffer.capacity()];
-        buffer.rewind();
-        buffer.get(data);
+        ByteBuffer buffer = image.getPlanes()[0].getBuffer().duplicate();
+        buffer.clear();
+        buffer.limit(getJpegSize(buffer));
+        return buffer.slice();
+    }
 
-        return data;
+    /**
+     * Returns the size of the JPEG at the start of a buffer which may be much larger than it,
+     * from the camera3_jpeg_blob header at the end of the buffer or, if there is none, from the
+     * last EOI marker. Returns the capacity of the buffer if neither is found.
+     */
+    private static int getJpegSize(@NonNull ByteBuffer buffer) {
+        final int capacity = buffer.capacity();
+        if (capacity >= JPEG_BLOB_HEADER_BYTES) {
+            // The header is written by the HAL in native byte order.
+            ByteBuffer header = buffer.duplicate().order(ByteOrder.nativeOrder());
+            int headerOffset = capacity - JPEG_BLOB_HEADER_BYTES;
+            if (header.getShort(headerOffset) == JPEG_BLOB_ID) {
+                int size = header.getInt(headerOffset + JPEG_BLOB_SIZE_OFFSET);
+                if (size > 0 && size <= headerOffset) {
+                    return size;
+                }
+            }
+        }
+
+        // Scan backwards, so that the EOI of an embedded thumbnail is never mistaken for the end
+        // of the JPEG.
+        for (int i = capacity - 2; i >= 2; i--) {
+            if (buffer.get(i) == (byte) 0xFF && buffer.get(i + 1) == (byte) 0xD9) {
+                return i + 2;
+            }
+        }
+        return capacity;
     }
 
     /**
@@ -69,56 +155,113 @@ public class ImageUtils {
                     "Incorrect image format of the input image proxy: " + image.getFormat());
         }
         final Image.Plane[] planes = image.getPlanes();
-        final ByteBuffer buffer = planes[0].getBuffer();
-        final int width = image.getWidth();
-        final int height = image.getHeight();
-        final int pixelStride = planes[0].getPixelStride();
-        final int rowStride = planes[0].getRowStride();
-        final int rowPadding = rowStride - pixelStride * width;
-
-        final byte[] imageBuffer = new byte[buffer.remaining()];
-        buffer.get(imageBuffer);
-        if (rowPadding == 0) {
-            return imageBuffer;
-        }
-
-        final int actualSize = width * height * pixelStride;
-        final byte[] result = new byte[actualSize];
-
-        int srcPos = 0;
-        int dstPos = 0;
-        for (int i = 0; i < height ; ++i) {
-            System.arraycopy(imageBuffer, srcPos, result, dstPos, width * pixelStride);
-            srcPos += rowStride;
-            dstPos += width * pixelStride;
-        }
-        return result;
+        return PlaneConversions.rgbaToByteArray(planes[0].getBuffer(),
+                planes[0].getPixelStride(), planes[0].getRowStride(), image.getWidth(),
+                image.getHeight());
     }
 
     /**
      * Converts JPEG {@link Image} to JPEG byte array. The input JPEG image will be cropped
-     * by the specified crop rectangle and compressed by the specified quality value.
+     * by exactly the specified crop rectangle, and compressed by the specified quality value
+     * unless the crop is aligned to the MCU grid. See
+     * {@link #jpegImageToJpegByteArray(Image, Rect, int, boolean, Rect)} with an exact crop, and
+     * for a lossless crop that keeps the EXIF.
      */
     @NonNull
     public static byte[] jpegImageToJpegByteArray(@NonNull Image image,
                                                   @NonNull Rect cropRect, @IntRange(from = 1, to = 100) int jpegQuality)
             throws CodecFailedException {
+        return jpegImageToJpegByteArray(image, cropRect, jpegQuality, true, null);
+    }
+
+    /**
+     * Converts JPEG {@link Image} to JPEG byte array. The input JPEG image will be cropped
+     * by the specified crop rectangle.
+     *
+     * <p>With {@link JpegUtilNative}, the crop is done losslessly in the DCT domain and the
+     * EXIF and other markers are kept. Since blocks cannot be split, the top-left corner of the
+     * crop rectangle is moved up and left onto the MCU grid, e.g. to a multiple of 16 for a
+     * 4:2:0 JPEG, unless exactCrop is set. Then an unaligned crop rectangle is trimmed by
+     * decoding the MCU-aligned JPEG and re-encoding it at the specified quality, which loses
+     * quality and drops the EXIF. Without the JNI library, the crop is always exact and
+     * re-encoded.
+     *
+     * @param exactCrop whether to re-encode the JPEG if the crop rectangle is not aligned to
+     *                  its MCU grid, rather than keep the pixels above and left of it
+     * @param outCrop   if not null, receives the crop rectangle that was applied
+     */
+    @NonNull
+    public static byte[] jpegImageToJpegByteArray(@NonNull Image image,
+                                                  @NonNull Rect cropRect, @IntRange(from = 1, to = 100) int jpegQuality,
+                                                  boolean exactCrop, @Nullable Rect outCrop)
+            throws CodecFailedException {
         if (image.getFormat() != ImageFormat.JPEG) {
             throw new IllegalArgumentException(
                     "Incorrect image format of the input image proxy: " + image.getFormat());
         }
 
+        if (JpegUtilNative.isNativeLibraryLoaded()) {
+            Rect actualCrop = new Rect();
+            byte[] data = cropJpegImageLossless(image, cropRect, actualCrop);
+            if (data != null) {
+                if (!exactCrop || actualCrop.equals(cropRect)) {
+                    if (outCrop != null) {
+                        outCrop.set(actualCrop);
+                    }
+                    return data;
+                }
+                Rect trim = new Rect(cropRect);
+                trim.offset(-actualCrop.left, -actualCrop.top);
+                data = cropJpegByteArray(data, trim, jpegQuality);
+                if (outCrop != null) {
+                    outCrop.set(cropRect);
+                }
+                return data;
+            }
+        }
+
         byte[] data = jpegImageToJpegByteArray(image);
         data = cropJpegByteArray(data, cropRect, jpegQuality);
+        if (outCrop != null) {
+            outCrop.set(cropRect);
+        }
 
         return data;
     }
 
+    /**
+     * Crops a JPEG {@link Image} losslessly with {@link JpegUtilNative#cropJpegLossless} to the
+     * MCU-aligned rectangle around the crop rectangle, which is stored in actualCrop. Returns
+     * null if the lossless crop failed.
+     */
+    @Nullable
+    private static byte[] cropJpegImageLossless(@NonNull Image image, @NonNull Rect cropRect,
+                                                @NonNull Rect actualCrop) {
+        ByteBuffer jpeg = jpegImageToJpegByteBuffer(image);
+        if (!jpeg.isDirect()) {
+            return null;
+        }
+
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer cropped = pool.acquireDirectBuffer(jpeg.remaining() + JPEG_HEADER_BYTES);
+        try {
+            if (JpegUtilNative.cropJpegLossless(jpeg, cropped, cropRect, actualCrop) < 0) {
+                return null;
+            }
+            byte[] data = new byte[cropped.remaining()];
+            cropped.get(data);
+            return data;
+        } finally {
+            pool.releaseDirectBuffer(cropped);
+        }
+    }
+
     /**
      * Converts YUV_420_888 {@link Image} to JPEG byte array. The input YUV_420_888 image
      * will be cropped if a non-null crop rectangle is specified. The output JPEG byte array will
-     * be compressed by the specified quality value. The rotationDegrees is set to the EXIF of
-     * the JPEG if it is not 0.
+     * be compressed by the specified quality value. It has no EXIF segment; see
+     * {@link #yuvImageToJpegByteArray(Image, Rect, int, int, boolean)} to write one with the
+     * rotationDegrees.
      */
     @NonNull
     public static byte[] yuvImageToJpegByteArray(@NonNull Image image,
@@ -126,19 +269,150 @@ public class ImageUtils {
                                                  @IntRange(from = 1, to = 100)
                                                  int jpegQuality,
                                                  int rotationDegrees) throws CodecFailedException {
+        return yuvImageToJpegByteArray(image, cropRect, jpegQuality, rotationDegrees, false);
+    }
+
+    /**
+     * Converts YUV_420_888 {@link Image} to JPEG byte array. The input YUV_420_888 image
+     * will be cropped if a non-null crop rectangle is specified. The output JPEG byte array will
+     * be compressed by the specified quality value.
+     *
+     * <p>The pixels are never rotated. With withExif, the JPEG instead starts with an EXIF
+     * segment whose orientation tag is rotationDegrees, a multiple of 90, whether or not the JNI
+     * library is loaded. With the library, the segment also holds a thumbnail of at most
+     * 160x120. The {@link YuvImage} fallback writes the orientation only. Without withExif,
+     * rotationDegrees is not used.
+     *
+     * @throws IllegalArgumentException if withExif is set and rotationDegrees is not a multiple
+     *                                  of 90
+     */
+    @NonNull
+    public static byte[] yuvImageToJpegByteArray(@NonNull Image image,
+                                                 @Nullable Rect cropRect,
+                                                 @IntRange(from = 1, to = 100)
+                                                 int jpegQuality,
+                                                 int rotationDegrees,
+                                                 boolean withExif) throws CodecFailedException {
         if (image.getFormat() != ImageFormat.YUV_420_888) {
             throw new IllegalArgumentException(
                     "Incorrect image format of the input image proxy: " + image.getFormat());
         }
+        if (withExif && (rotationDegrees % 90) != 0) {
+            throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees, was "
+                    + rotationDegrees);
+        }
+
+        if (cropRect == null) {
+            cropRect = new Rect(0, 0, image.getWidth(), image.getHeight());
+        }
+
+        if (!JpegUtilNative.isNativeLibraryLoaded()) {
+            byte[] jpeg = yuvImageToJpegByteArrayViaYuvImage(image, cropRect, jpegQuality);
+            return withExif ? withExifOrientation(jpeg, rotationDegrees) : jpeg;
+        }
+
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer jpegBuffer = yuvImageToJpegByteBuffer(image, cropRect, jpegQuality,
+                rotationDegrees, withExif, pool);
+        try {
+            byte[] jpegBytes = new byte[jpegBuffer.remaining()];
+            jpegBuffer.get(jpegBytes);
+            return jpegBytes;
+        } finally {
+            pool.releaseDirectBuffer(jpegBuffer);
+        }
+    }
+
+    /**
+     * Encodes a YUV_420_888 {@link Image} straight from its planes with {@link JpegUtilNative},
+     * without an intermediate NV21 copy.
+     *
+     * <p>With withExif, the JPEG carries an EXIF segment with rotationDegrees as its orientation
+     * and a thumbnail, which is downscaled from the rows the encoder reads, without a second pass
+     * over the image.
+     *
+     * <p>The returned direct buffer is acquired from {@code pool}, holds the JPEG between its
+     * position and limit, and must be released back to {@code pool} by the caller.
+     */
+    @NonNull
+    static ByteBuffer yuvImageToJpegByteBuffer(@NonNull Image image, @NonNull Rect cropRect,
+                                               @IntRange(from = 1, to = 100) int jpegQuality,
+                                               int rotationDegrees, boolean withExif,
+                                               @NonNull BufferPool pool)
+            throws CodecFailedException {
+        // One byte per pixel holds all but the noisiest high-quality frames; grow on overflow.
+        final int pixels = Math.max(1, cropRect.width()) * Math.max(1, cropRect.height());
+        final int maxCapacity = pixels * MAX_JPEG_BYTES_PER_PIXEL + JPEG_HEADER_BYTES;
+        int capacity = pixels + JPEG_HEADER_BYTES;
+        while (true) {
+            ByteBuffer jpegBuffer = pool.acquireDirectBuffer(capacity);
+            int size;
+            try {
+                if (withExif) {
+                    size = JpegUtilNative.compressJpegFromYUV420ImageWithExif(image, jpegBuffer,
+                            jpegQuality, cropRect, 0, rotationDegrees, EXIF_THUMBNAIL_MAX_WIDTH,
+                            EXIF_THUMBNAIL_MAX_HEIGHT, JpegUtilNative.ENCODE_DEFAULT);
+                } else {
+                    size = JpegUtilNative.compressJpegFromYUV420Image(image, jpegBuffer,
+                            jpegQuality, cropRect, 0);
+                }
+            } catch (RuntimeException e) {
+                pool.releaseDirectBuffer(jpegBuffer);
+                throw e;
+            }
+            if (size >= 0) {
+                return jpegBuffer;
+            }
+            pool.releaseDirectBuffer(jpegBuffer);
+            if (size != JpegUtilNative.ERROR_OUT_BUF_TOO_SMALL || capacity >= maxCapacity) {
+                throw new CodecFailedException("JpegUtilNative failed to encode jpeg.",
+                        CodecFailedException.FailureType.ENCODE_FAILED);
+            }
+            capacity = (int) Math.min((long) capacity * 2, maxCapacity);
+        }
+    }
+
+    /**
+     * Replaces the JFIF APP0 segment after the SOI marker of a JPEG, if there is one, with an
+     * EXIF APP1 segment that holds only the orientation tag for rotationDegrees, a multiple of
+     * 90.
+     */
+    @NonNull
+    private static byte[] withExifOrientation(@NonNull byte[] jpeg, int rotationDegrees) {
+        if (jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) {
+            return jpeg;
+        }
+        final int orientation = EXIF_ORIENTATIONS[((rotationDegrees % 360) + 360) % 360 / 90];
+        // A big-endian TIFF header followed by IFD0 with the orientation as its only entry.
+        final byte[] segment = {
+                (byte) 0xFF, (byte) 0xE1, 0, 34,
+                'E', 'x', 'i', 'f', 0, 0,
+                'M', 'M', 0, 42, 0, 0, 0, 8,
+                0, 1,
+                0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+                0, 0, 0, 0};
+        int rest = 2;
+        if (jpeg.length >= 6 && (jpeg[2] & 0xFF) == 0xFF && (jpeg[3] & 0xFF) == 0xE0) {
+            rest += 2 + (((jpeg[4] & 0xFF) << 8) | (jpeg[5] & 0xFF));
+        }
+        byte[] result = new byte[2 + segment.length + jpeg.length - rest];
+        System.arraycopy(jpeg, 0, result, 0, 2);
+        System.arraycopy(segment, 0, result, 2, segment.length);
+        System.arraycopy(jpeg, rest, result, 2 + segment.length, jpeg.length - rest);
+        return result;
+    }
 
+    /** Encodes through an NV21 copy and {@link YuvImage}, for when the JNI library is absent. */
+    @NonNull
+    private static byte[] yuvImageToJpegByteArrayViaYuvImage(@NonNull Image image,
+                                                             @NonNull Rect cropRect,
+                                                             int jpegQuality)
+            throws CodecFailedException {
         byte[] yuvBytes = yuv_420_888toNv21(image);
         YuvImage yuv = new YuvImage(yuvBytes, ImageFormat.NV21, image.getWidth(), image.getHeight(),
                 null);
 
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        if (cropRect == null) {
-            cropRect = new Rect(0, 0, image.getWidth(), image.getHeight());
-        }
         boolean success =
                 yuv.compressToJpeg(cropRect, jpegQuality, byteArrayOutputStream);
         if (!success) {
@@ -153,56 +427,123 @@ public class ImageUtils {
      */
     @NonNull
     public static byte[] yuv_420_888toNv21(@NonNull Image image) {
-        Image.Plane yPlane = image.getPlanes()[0];
-        Image.Plane uPlane = image.getPlanes()[1];
-        Image.Plane vPlane = image.getPlanes()[2];
-
-        ByteBuffer yBuffer = yPlane.getBuffer();
-        ByteBuffer uBuffer = uPlane.getBuffer();
-        ByteBuffer vBuffer = vPlane.getBuffer();
-        yBuffer.rewind();
-        uBuffer.rewind();
-        vBuffer.rewind();
-
-        int ySize = yBuffer.remaining();
-
-        int position = 0;
-        // TODO(b/115743986): Pull these bytes from a pool instead of allocating for every image.
+        // Keeps the historical array size, which includes the y plane row padding.
+        int ySize = image.getPlanes()[0].getBuffer().limit();
         byte[] nv21 = new byte[ySize + (image.getWidth() * image.getHeight() / 2)];
+        yuv_420_888toNv21(image, nv21);
+        return nv21;
+    }
 
-        // Add the full y buffer to the array. If rowStride > 1, some padding may be skipped.
-        for (int row = 0; row < image.getHeight(); row++) {
-            yBuffer.get(nv21, position, image.getWidth());
-            position += image.getWidth();
-            yBuffer.position(
-                    Math.min(ySize, yBuffer.position() - image.getWidth() + yPlane.getRowStride()));
+    /**
+     * Returns the number of bytes {@link #yuv_420_888toNv21(Image, byte[])} writes for the
+     * given YUV420_888 {@link Image}.
+     */
+    public static int getNv21ByteCount(@NonNull Image image) {
+        return image.getWidth() * image.getHeight()
+                + (image.getWidth() / 2) * (image.getHeight() / 2) * 2;
+    }
+
+    /**
+     * Converts a YUV420_888 {@link Image} to NV21 into a caller-supplied byte array, e.g. one
+     * obtained from {@link BufferPool#acquireByteArray(int)}. The native conversion in
+     * {@link ImageProcessingUtil} is used when its library is available.
+     *
+     * @param image input image in YUV420_888.
+     * @param nv21  output array, at least {@link #getNv21ByteCount(Image)} bytes long.
+     * @return the number of bytes written to {@code nv21}.
+     */
+    public static int yuv_420_888toNv21(@NonNull Image image, @NonNull byte[] nv21) {
+        final int size = getNv21ByteCount(image);
+        if (nv21.length < size) {
+            throw new IllegalArgumentException(
+                    "NV21 array too small: " + nv21.length + " < " + size);
         }
+        if (!ImageProcessingUtil.isNativeLibraryLoaded()
+                || !ImageProcessingUtil.convertYUVToNV21(image, nv21)) {
+            final Image.Plane[] planes = image.getPlanes();
+            PlaneConversions.yuv420ToNv21(
+                    planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[1].getPixelStride(), planes[1].getRowStride(),
+                    planes[2].getBuffer(), planes[2].getPixelStride(), planes[2].getRowStride(),
+                    image.getWidth(), image.getHeight(), nv21);
+        }
+        return size;
+    }
 
-        int chromaHeight = image.getHeight() / 2;
-        int chromaWidth = image.getWidth() / 2;
-        int vRowStride = vPlane.getRowStride();
-        int uRowStride = uPlane.getRowStride();
-        int vPixelStride = vPlane.getPixelStride();
-        int uPixelStride = uPlane.getPixelStride();
-
-        // Interleave the u and v frames, filling up the rest of the buffer. Use two line buffers to
-        // perform faster bulk gets from the byte buffers.
-        byte[] vLineBuffer = new byte[vRowStride];
-        byte[] uLineBuffer = new byte[uRowStride];
-        for (int row = 0; row < chromaHeight; row++) {
-            vBuffer.get(vLineBuffer, 0, Math.min(vRowStride, vBuffer.remaining()));
-            uBuffer.get(uLineBuffer, 0, Math.min(uRowStride, uBuffer.remaining()));
-            int vLineBufferPosition = 0;
-            int uLineBufferPosition = 0;
-            for (int col = 0; col < chromaWidth; col++) {
-                nv21[position++] = vLineBuffer[vLineBufferPosition];
-                nv21[position++] = uLineBuffer[uLineBufferPosition];
-                vLineBufferPosition += vPixelStride;
-                uLineBufferPosition += uPixelStride;
-            }
+    /**
+     * Converts a YUV420_888 {@link Image} to NV21 into a caller-supplied {@link ByteBuffer}, e.g.
+     * one obtained from {@link BufferPool#acquireDirectBuffer(int)}. The buffer is cleared first,
+     * and on return its limit is set to the number of bytes written. Direct buffers use the
+     * native conversion in {@link ImageProcessingUtil} when its library is available.
+     *
+     * @param image input image in YUV420_888.
+     * @param nv21  output buffer with a capacity of at least {@link #getNv21ByteCount(Image)}.
+     * @return the number of bytes written to {@code nv21}.
+     */
+    public static int yuv_420_888toNv21(@NonNull Image image, @NonNull ByteBuffer nv21) {
+        final int size = getNv21ByteCount(image);
+        if (nv21.capacity() < size) {
+            throw new IllegalArgumentException(
+                    "NV21 buffer too small: " + nv21.capacity() + " < " + size);
+        }
+        nv21.clear();
+        if (nv21.isDirect() && ImageProcessingUtil.isNativeLibraryLoaded()
+                && ImageProcessingUtil.convertYUVToNV21(image, nv21)) {
+            nv21.limit(size);
+            return size;
         }
+        final Image.Plane[] planes = image.getPlanes();
+        PlaneConversions.yuv420ToNv21(
+                planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[1].getPixelStride(), planes[1].getRowStride(),
+                planes[2].getBuffer(), planes[2].getPixelStride(), planes[2].getRowStride(),
+                image.getWidth(), image.getHeight(), nv21);
+        nv21.flip();
+        return size;
+    }
 
-        return nv21;
+    /**
+     * Returns the number of bytes {@link #yuv_420_888toRgb(Image, ByteBuffer, int)} writes for
+     * the given YUV420_888 {@link Image}.
+     */
+    public static int getRgbByteCount(@NonNull Image image) {
+        return image.getWidth() * image.getHeight() * PlaneConversions.BYTES_PER_RGB_PIX;
+    }
+
+    /**
+     * Converts a YUV420_888 {@link Image} to packed 8-bit RGB into a caller-supplied
+     * {@link ByteBuffer}, e.g. one obtained from {@link BufferPool#acquireDirectBuffer(int)}. The
+     * buffer is cleared first, and on return its limit is set to the number of bytes written.
+     *
+     * <p>This is a pure Java conversion with integer lookup tables, which works whether or not
+     * the native libraries are available, and does not allocate in steady state.
+     *
+     * @param image       input image in YUV420_888.
+     * @param rgb         output buffer with a capacity of at least
+     *                    {@link #getRgbByteCount(Image)}.
+     * @param colorMatrix the matrix and range the YUV data is encoded with.
+     * @return the number of bytes written to {@code rgb}.
+     */
+    public static int yuv_420_888toRgb(@NonNull Image image, @NonNull ByteBuffer rgb,
+                                       @ColorMatrix int colorMatrix) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException(
+                    "Incorrect image format of the input image proxy: " + image.getFormat());
+        }
+        final int size = getRgbByteCount(image);
+        if (rgb.capacity() < size) {
+            throw new IllegalArgumentException(
+                    "RGB buffer too small: " + rgb.capacity() + " < " + size);
+        }
+        final Image.Plane[] planes = image.getPlanes();
+        rgb.clear();
+        PlaneConversions.yuv420ToRgb(
+                planes[0].getBuffer(), planes[0].getPixelStride(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[1].getPixelStride(), planes[1].getRowStride(),
+                planes[2].getBuffer(), planes[2].getPixelStride(), planes[2].getRowStride(),
+                image.getWidth(), image.getHeight(), colorMatrix, rgb);
+        rgb.flip();
+        return size;
     }
 
     /** Crops JPEG byte array with given {@link Rect}. */
@@ -240,29 +581,6 @@ public class ImageUtils {
         return out.toByteArray();
     }
 
-    private static final int BYTES_PER_RGB_PIX = 3; // bytes per pixel
-
-    /**
-     * Convert a single YUV pixel to RGB.
-     */
-    private static void yuvToRgb(byte[] yuvData, int outOffset, /*out*/byte[] rgbOut) {
-        final int COLOR_MAX = 255;
-
-        float y = yuvData[0] & 0xFF;  // Y channel
-        float cb = yuvData[1] & 0xFF; // U channel
-        float cr = yuvData[2] & 0xFF; // V channel
-
-        // convert YUV -> RGB (from JFIF's "Conversion to and from RGB" section)
-        float r = y + 1.402f * (cr - 128);
-        float g = y - 0.34414f * (cb - 128) - 0.71414f * (cr - 128);
-        float b = y + 1.772f * (cb - 128);
-
-        // clamp to [0,255]
-        rgbOut[outOffset] = (byte) Math.max(0, Math.min(COLOR_MAX, r));
-        rgbOut[outOffset + 1] = (byte) Math.max(0, Math.min(COLOR_MAX, g));
-        rgbOut[outOffset + 2] = (byte) Math.max(0, Math.min(COLOR_MAX, b));
-    }
-
     /**
      * Convert a single {@link Color} pixel to RGB.
      */
@@ -273,64 +591,6 @@ public class ImageUtils {
         // Discards Alpha
     }
 
-    /**
-     * Generate a direct RGB {@link ByteBuffer} from a YUV420_888 {@link Image}.
-     */
-    private static ByteBuffer convertToRGB(Image yuvImage) {
-        int width = yuvImage.getWidth();
-        int height = yuvImage.getHeight();
-        ByteBuffer buf = ByteBuffer.allocateDirect(BYTES_PER_RGB_PIX * width * height);
-
-        Image.Plane yPlane = yuvImage.getPlanes()[0];
-        Image.Plane uPlane = yuvImage.getPlanes()[1];
-        Image.Plane vPlane = yuvImage.getPlanes()[2];
-
-        ByteBuffer yBuf = yPlane.getBuffer();
-        ByteBuffer uBuf = uPlane.getBuffer();
-        ByteBuffer vBuf = vPlane.getBuffer();
-
-        yBuf.rewind();
-        uBuf.rewind();
-        vBuf.rewind();
-
-        int yRowStride = yPlane.getRowStride();
-        int vRowStride = vPlane.getRowStride();
-        int uRowStride = uPlane.getRowStride();
-
-        int yPixStride = yPlane.getPixelStride();
-        int vPixStride = vPlane.getPixelStride();
-        int uPixStride = uPlane.getPixelStride();
-
-        byte[] yuvPixel = { 0, 0, 0 };
-        byte[] yFullRow = new byte[yPixStride * (width - 1) + 1];
-        byte[] uFullRow = new byte[uPixStride * (width / 2 - 1) + 1];
-        byte[] vFullRow = new byte[vPixStride * (width / 2 - 1) + 1];
-        byte[] finalRow = new byte[BYTES_PER_RGB_PIX * width];
-        for (int i = 0; i < height; i++) {
-            int halfH = i / 2;
-            yBuf.position(yRowStride * i);
-            yBuf.get(yFullRow);
-            uBuf.position(uRowStride * halfH);
-            uBuf.get(uFullRow);
-            vBuf.position(vRowStride * halfH);
-            vBuf.get(vFullRow);
-            for (int j = 0; j < width; j++) {
-                int halfW = j / 2;
-                yuvPixel[0] = yFullRow[yPixStride * j];
-                yuvPixel[1] = uFullRow[uPixStride * halfW];
-                yuvPixel[2] = vFullRow[vPixStride * halfW];
-                yuvToRgb(yuvPixel, j * BYTES_PER_RGB_PIX, /*out*/finalRow);
-            }
-            buf.put(finalRow);
-        }
-
-        yBuf.rewind();
-        uBuf.rewind();
-        vBuf.rewind();
-        buf.rewind();
-        return buf;
-    }
-
     /** Exception for error during transcoding image. */
     public static final class CodecFailedException extends Exception {
         public enum FailureType {
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An {@link JpegUtilNative.EncodeListener} that aggregates encode counters and histograms.
+ *
+ * <p>Histograms use power-of-two buckets: bucket {@code i} counts the samples in
+ * {@code [2^(i-1), 2^i)}, bucket 0 counts zero, and the last bucket also holds everything above
+ * its lower bound. Latency is bucketed in microseconds, output size in bytes and the compression
+ * ratio (raw input size divided by jpeg size) in whole units.
+ *
+ * <p>Recording a sample does not allocate and takes no lock, so an instance can be installed with
+ * {@link JpegUtilNative#setEncodeListener} and shared by every encoding thread.
+ */
+public final class JpegEncodeMetrics implements JpegUtilNative.EncodeListener {
+
+    /** The number of buckets in each histogram. */
+    public static final int NUM_BUCKETS = 32;
+
+    private final AtomicLong mEncodeCount = new AtomicLong();
+    private final AtomicLong mFailureCount = new AtomicLong();
+    private final AtomicLong mTotalOutputBytes = new AtomicLong();
+    private final AtomicLong mTotalInputBytes = new AtomicLong();
+    private final AtomicLong mTotalEncodeNanos = new AtomicLong();
+    private final AtomicLong mMaxEncodeNanos = new AtomicLong();
+
+    private final AtomicLongArray mLatencyMicrosHistogram = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLongArray mOutputBytesHistogram = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLongArray mCompressionRatioHistogram = new AtomicLongArray(NUM_BUCKETS);
+
+    @Override
+    public void onJpegEncoded(int width, int height, long inputBytes, int outputBytes,
+            long encodeNanos) {
+        mEncodeCount.incrementAndGet();
+        mTotalOutputBytes.addAndGet(outputBytes);
+        mTotalInputBytes.addAndGet(inputBytes);
+        recordLatency(encodeNanos);
+
+        mOutputBytesHistogram.incrementAndGet(bucketOf(outputBytes));
+        if (outputBytes > 0) {
+            mCompressionRatioHistogram.incrementAndGet(bucketOf(inputBytes / outputBytes));
+        }
+    }
+
+    @Override
+    public void onJpegEncodeFailed(int errorCode, long encodeNanos) {
+        mFailureCount.incrementAndGet();
+        recordLatency(encodeNanos);
+    }
+
+    /** Returns the number of successful encodes. */
+    public long getEncodeCount() {
+        return mEncodeCount.get();
+    }
+
+    /** Returns the number of failed encodes. */
+    public long getFailureCount() {
+        return mFailureCount.get();
+    }
+
+    /** Returns the total size of every jpeg produced. */
+    public long getTotalOutputBytes() {
+        return mTotalOutputBytes.get();
+    }
+
+    /** Returns the total size of the raw input of every successful encode. */
+    public long getTotalInputBytes() {
+        return mTotalInputBytes.get();
+    }
+
+    /** Returns the time spent in the native encoder, including failed encodes. */
+    public long getTotalEncodeNanos() {
+        return mTotalEncodeNanos.get();
+    }
+
+    /** Returns the longest single encode, including failed encodes. */
+    public long getMaxEncodeNanos() {
+        return mMaxEncodeNanos.get();
+    }
+
+    /** Returns a copy of the encode latency histogram, in microseconds. */
+    @NonNull
+    public long[] getLatencyMicrosHistogram() {
+        return snapshot(mLatencyMicrosHistogram);
+    }
+
+    /** Returns a copy of the output size histogram, in bytes. */
+    @NonNull
+    public long[] getOutputBytesHistogram() {
+        return snapshot(mOutputBytesHistogram);
+    }
+
+    /** Returns a copy of the compression ratio histogram. */
+    @NonNull
+    public long[] getCompressionRatioHistogram() {
+        return snapshot(mCompressionRatioHistogram);
+    }
+
+    /**
+     * Returns the smallest value counted by histogram bucket {@code bucket}, in the unit of the
+     * histogram.
+     */
+    public static long getBucketLowerBound(int bucket) {
+        if (bucket < 0 || bucket >= NUM_BUCKETS) {
+            throw new IndexOutOfBoundsException("Invalid bucket: " + bucket);
+        }
+        return bucket == 0 ? 0 : 1L << (bucket - 1);
+    }
+
+    /**
+     * Resets every counter and histogram. Samples recorded concurrently with a reset may be
+     * partially kept.
+     */
+    public void reset() {
+        mEncodeCount.set(0);
+        mFailureCount.set(0);
+        mTotalOutputBytes.set(0);
+        mTotalInputBytes.set(0);
+        mTotalEncodeNanos.set(0);
+        mMaxEncodeNanos.set(0);
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            mLatencyMicrosHistogram.set(i, 0);
+            mOutputBytesHistogram.set(i, 0);
+            mCompressionRatioHistogram.set(i, 0);
+        }
+    }
+
+    private void recordLatency(long encodeNanos) {
+        mTotalEncodeNanos.addAndGet(encodeNanos);
+        long max = mMaxEncodeNanos.get();
+        while (encodeNanos > max && !mMaxEncodeNanos.compareAndSet(max, encodeNanos)) {
+            max = mMaxEncodeNanos.get();
+        }
+        mLatencyMicrosHistogram.incrementAndGet(bucketOf(encodeNanos / 1000));
+    }
+
+    private static int bucketOf(long value) {
+        if (value <= 0) {
+            return 0;
+        }
+        return Math.min(64 - Long.numberOfLeadingZeros(value), NUM_BUCKETS - 1);
+    }
+
+    private static long[] snapshot(AtomicLongArray histogram) {
+        long[] copy = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            copy[i] = histogram.get(i);
+        }
+        return copy;
+    }
+}
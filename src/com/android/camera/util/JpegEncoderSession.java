@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.media.Image;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses a series of YUV_420_888 images of the same size to jpeg.
+ * <p>
+ * Unlike {@link JpegUtilNative#compressJpegFromYUV420Image}, which builds and
+ * tears down a libjpeg compressor for every call, a session keeps the
+ * compressor, its quantization and Huffman tables and its row buffers alive
+ * for a fixed width, height and quality. This removes the per-frame setup
+ * and native allocations for burst capture.
+ * <p>
+ * A session is not thread safe, and must be closed to free its native
+ * context.
+ * <p>
+ * Sessions use libjni_jpegutil, which {@link JpegUtilNative} loads. Callers
+ * which can fall back to another encoder should check
+ * {@link JpegUtilNative#isNativeLibraryLoaded()} before creating one.
+ */
+public final class JpegEncoderSession implements Closeable {
+    private final int mWidth;
+    private final int mHeight;
+    private final int mQuality;
+    private long mNativeContext;
+
+    /**
+     * Creates a session.
+     *
+     * @param width the width of the images to compress
+     * @param height the height of the images to compress
+     * @param quality the jpeg encoder quality (1 to 100)
+     * @throws UnsupportedOperationException if libjni_jpegutil could not be
+     *             loaded
+     */
+    public JpegEncoderSession(int width, int height, int quality) {
+        if (!JpegUtilNative.isNativeLibraryLoaded()) {
+            throw new UnsupportedOperationException("jni_jpegutil is not loaded");
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+        mQuality = quality;
+        mNativeContext = nativeCreate(width, height, quality);
+        if (mNativeContext == 0) {
+            throw new IllegalStateException("Failed to create native jpeg encoder");
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Compresses the given image to jpeg.
+     *
+     * @param img the image to compress, which must match the size of the
+     *            session
+     * @param outBuf a direct byte buffer to hold the output jpeg.
+     * @return The number of bytes written to outBuf, or
+     *         {@link JpegUtilNative#ERROR_OUT_BUF_TOO_SMALL} if outBuf cannot
+     *         hold the result
+     */
+    public int compress(Image img, ByteBuffer outBuf) {
+        return compress(img, outBuf, new Rect(0, 0, mWidth, mHeight), 0);
+    }
+
+    /**
+     * Compresses the given image to jpeg, with the same crop and rotation
+     * semantics as
+     * {@link JpegUtilNative#compressJpegFromYUV420Image(Image, ByteBuffer, int, Rect, int)}.
+     *
+     * @param img the image to compress, which must match the size of the
+     *            session
+     * @param outBuf a direct byte buffer to hold the output jpeg.
+     * @param crop The crop rectangle to apply *before* rotation.
+     * @param degrees The number of degrees to rotate the image *after*
+     *            cropping. This must be a multiple of 90.
+     * @return The number of bytes written to outBuf, or
+     *         {@link JpegUtilNative#ERROR_OUT_BUF_TOO_SMALL} if outBuf cannot
+     *         hold the result
+     */
+    public int compress(Image img, ByteBuffer outBuf, Rect crop, int degrees) {
+        if (mNativeContext == 0) {
+            throw new IllegalStateException("Session is closed");
+        }
+        if (img.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("Only " +
+                "ImageFormat.YUV_420_888 is supported, found " + img.getFormat());
+        }
+        if (img.getWidth() != mWidth || img.getHeight() != mHeight) {
+            throw new IllegalArgumentException("Image size " + img.getWidth() + "x" +
+                    img.getHeight() + " does not match session size " + mWidth + "x" + mHeight);
+        }
+        if ((degrees % 90) != 0) {
+            throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees," +
+                " was " + degrees);
+        }
+        if (!outBuf.isDirect()) {
+            throw new IllegalArgumentException("Output buffer must be direct");
+        }
+        if (crop.left >= crop.right || crop.top >= crop.bottom) {
+            throw new IllegalArgumentException("Invalid crop rectangle: " + crop);
+        }
+        final Image.Plane[] planes = img.getPlanes();
+        if (planes.length != 3) {
+            throw new IllegalArgumentException("Only 3-plane image is supported");
+        }
+        for (Image.Plane plane : planes) {
+            if (!plane.getBuffer().isDirect()) {
+                throw new IllegalArgumentException("Plane buffer must be direct");
+            }
+        }
+
+        int cropLeft = Math.min(Math.max(crop.left, 0), mWidth - 1);
+        int cropRight = Math.min(Math.max(crop.right, 0), mWidth);
+        int cropTop = Math.min(Math.max(crop.top, 0), mHeight - 1);
+        int cropBot = Math.min(Math.max(crop.bottom, 0), mHeight);
+
+        // Handle negative angles by converting to positive, then convert from clockwise to
+        // counter-clockwise.
+        degrees = ((degrees % 360) + (360 * 2)) % 360;
+        int rot90 = (360 - degrees) / 90;
+
+        outBuf.clear();
+        final long startNanos = JpegUtilNative.startEncode();
+        int numBytesWritten = nativeCompress(mNativeContext,
+                planes[0].getBuffer(), planes[0].getPixelStride(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[1].getPixelStride(), planes[1].getRowStride(),
+                planes[2].getBuffer(), planes[2].getPixelStride(), planes[2].getRowStride(),
+                outBuf, outBuf.capacity(), cropLeft, cropTop, cropRight, cropBot, rot90);
+        JpegUtilNative.reportEncode(startNanos, cropRight - cropLeft, cropBot - cropTop,
+                JpegUtilNative.getYuvByteCount(cropRight - cropLeft, cropBot - cropTop, 2, 2),
+                numBytesWritten);
+        if (numBytesWritten >= 0) {
+            outBuf.limit(numBytesWritten);
+        }
+        return numBytesWritten;
+    }
+
+    /**
+     * Frees the native encoder. The session cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (mNativeContext != 0) {
+            nativeDestroy(mNativeContext);
+            mNativeContext = 0;
+        }
+    }
+
+    private static native long nativeCreate(int width, int height, int quality);
+
+    private static native int nativeCompress(long nativeContext,
+            Object yBuf, int yPStride, int yRStride,
+            Object cbBuf, int cbPStride, int cbRStride,
+            Object crBuf, int crPStride, int crRStride,
+            Object outBuf, int outBufCapacity,
+            int cropLeft, int cropTop, int cropRight, int cropBottom,
+            int rot90);
+
+    private static native void nativeDestroy(long nativeContext);
+}
@@ -22,18 +22,164 @@ import android.graphics.Rect;
 import android.util.Log;
 import android.media.Image;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Provides direct access to libjpeg-turbo via the NDK.
  */
 public class JpegUtilNative {
+    public static final int ERROR_OUT_BUF_TOO_SMALL = -1;
+    public static final int ERROR_TRANSFORM_FAILED = -2;
+
+    /** Lossless transforms, see {@link #transformJpegLossless}. Rotations are clockwise. */
+    public static final int TRANSFORM_NONE = 0;
+    public static final int TRANSFORM_FLIP_HORIZONTAL = 1;
+    public static final int TRANSFORM_FLIP_VERTICAL = 2;
+    public static final int TRANSFORM_TRANSPOSE = 3;
+    public static final int TRANSFORM_TRANSVERSE = 4;
+    public static final int TRANSFORM_ROTATE_90 = 5;
+    public static final int TRANSFORM_ROTATE_180 = 6;
+    public static final int TRANSFORM_ROTATE_270 = 7;
+
+    /**
+     * Entropy coding modes for the compress methods, combined as bit flags.
+     * They trade encode time for smaller files; see
+     * jni/benchmark/yuv_jpeg_benchmark.cpp for the numbers. With any of them
+     * set, an image always encodes on a single thread.
+     */
+    public static final int ENCODE_DEFAULT = 0;
+    /** Computes optimal Huffman tables for each image, in a second pass. */
+    public static final int ENCODE_OPTIMIZE_CODING = 1;
+    /**
+     * Writes a progressive jpeg, which also optimizes its Huffman tables.
+     */
+    public static final int ENCODE_PROGRESSIVE = 2;
+    /**
+     * Uses arithmetic instead of Huffman coding. Many decoders, including
+     * most browsers, cannot read the result.
+     */
+    public static final int ENCODE_ARITHMETIC = 4;
+    private static final int ENCODE_ALL_FLAGS =
+            ENCODE_OPTIMIZE_CODING | ENCODE_PROGRESSIVE | ENCODE_ARITHMETIC;
+
+    private static final String TAG = "JpegUtilNative";
+
+    /** The size of the buffer that streamed jpegs are staged in. */
+    private static final int STREAM_CHUNK_SIZE = 256 * 1024;
+    private static final boolean sNativeLibraryLoaded;
+
     static {
-        System.loadLibrary("jni_jpegutil");
+        boolean loaded = false;
+        try {
+            System.loadLibrary("jni_jpegutil");
+            loaded = true;
+        } catch (UnsatisfiedLinkError e) {
+            Log.e(TAG, "Failed to load jni_jpegutil", e);
+        }
+        sNativeLibraryLoaded = loaded;
     }
 
-    public static final int ERROR_OUT_BUF_TOO_SMALL = -1;
-    private static final String TAG = "JpegUtilNative";
+    /**
+     * Returns true if libjni_jpegutil has been loaded and the compress methods can be used.
+     */
+    public static boolean isNativeLibraryLoaded() {
+        return sNativeLibraryLoaded;
+    }
+
+    /**
+     * Receives a callback for every jpeg encoded by this class or by a
+     * {@link JpegEncoderSession}.
+     * <p>
+     * Callbacks run synchronously on the encoding thread, so implementations
+     * should be cheap and must be thread safe. {@link JpegEncodeMetrics} is an
+     * implementation that aggregates counters and histograms.
+     */
+    public interface EncodeListener {
+        /**
+         * Called after an image has been encoded.
+         *
+         * @param width the width of the encoded area, before rotation
+         * @param height the height of the encoded area, before rotation
+         * @param inputBytes the size of the raw samples of the encoded area: the
+         *            luma and chroma planes at their subsampling, or the single
+         *            plane of a grayscale encode
+         * @param outputBytes the size of the compressed jpeg
+         * @param encodeNanos the time spent in the native encoder
+         */
+        void onJpegEncoded(int width, int height, long inputBytes, int outputBytes,
+                long encodeNanos);
+
+        /**
+         * Called after an encode has failed.
+         *
+         * @param errorCode the error returned by the native encoder, e.g.
+         *            {@link #ERROR_OUT_BUF_TOO_SMALL}
+         * @param encodeNanos the time spent in the native encoder
+         */
+        void onJpegEncodeFailed(int errorCode, long encodeNanos);
+    }
+
+    private static volatile EncodeListener sEncodeListener;
+
+    /**
+     * Installs a listener for encode metrics, or removes it if {@code listener}
+     * is null. Without a listener, encoding does no timing and allocates
+     * nothing for metrics.
+     */
+    public static void setEncodeListener(EncodeListener listener) {
+        sEncodeListener = listener;
+    }
+
+    /** The start time of an encode which no listener is interested in. */
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
+    /**
+     * Returns the start time to pass to {@link #reportEncode} once the encode
+     * is done, or {@link #NOT_TIMED} without a listener.
+     */
+    static long startEncode() {
+        return sEncodeListener != null ? System.nanoTime() : NOT_TIMED;
+    }
+
+    /**
+     * Reports an encode started with {@link #startEncode} to the listener,
+     * if there was one at both ends of the encode.
+     *
+     * @param startNanos the value {@link #startEncode} returned
+     * @param width the width of the encoded area, before rotation
+     * @param height the height of the encoded area, before rotation
+     * @param inputBytes the size of the raw samples of the encoded area, e.g.
+     *            from {@link #getYuvByteCount}
+     * @param result the size of the jpeg, or the native error code
+     * @return result
+     */
+    static int reportEncode(long startNanos, int width, int height, long inputBytes,
+            int result) {
+        final EncodeListener listener = sEncodeListener;
+        if (listener == null || startNanos == NOT_TIMED) {
+            return result;
+        }
+        long encodeNanos = System.nanoTime() - startNanos;
+        if (result >= 0) {
+            listener.onJpegEncoded(width, height, inputBytes, result, encodeNanos);
+        } else {
+            listener.onJpegEncodeFailed(result, encodeNanos);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size of the samples of a width x height YCbCr area whose
+     * chroma planes are subsampled chromaHFactor times horizontally and
+     * chromaVFactor times vertically.
+     */
+    static long getYuvByteCount(int width, int height, int chromaHFactor, int chromaVFactor) {
+        long chromaWidth = (width + chromaHFactor - 1) / chromaHFactor;
+        long chromaHeight = (height + chromaVFactor - 1) / chromaVFactor;
+        return (long) width * height + 2 * chromaWidth * chromaHeight;
+    }
 
     /**
      * Compresses a YCbCr image to jpeg, applying a crop and rotation.
@@ -88,6 +234,12 @@ public class JpegUtilNative {
      * @param cropBottom bottom-edge of the bounds of the image to crop to
      *            before rotation
      * @param rot90 the multiple of 90 to rotate the image CCW (after cropping)
+     * @param numThreads the number of threads to encode with. With more than
+     *            one thread the image is split into bands of 16-row MCU rows
+     *            that are encoded concurrently and joined with restart
+     *            markers, which any baseline decoder accepts.
+     * @param flags a combination of the ENCODE_* flags. Any of them make the
+     *            image encode on a single thread.
      */
     private static native int compressJpegFromYUV420pNative(
             int width, int height,
@@ -97,7 +249,130 @@ public class JpegUtilNative {
             Object outBuf, int outBufCapacity,
             int quality,
             int cropLeft, int cropTop, int cropRight, int cropBottom,
-            int rot90);
+            int rot90, int numThreads, int flags);
+
+    /**
+     * Compresses a YCbCr image to jpeg like
+     * {@link #compressJpegFromYUV420pNative}, but streams the result to a
+     * channel through chunkBuf. Each filled chunk is passed to
+     * {@link #writeChunk}, and encoding stops at the first exception it
+     * throws.
+     *
+     * @param chunkBuf a direct java.nio.ByteBuffer to stage the output in
+     * @param chunkCapacity the capacity of chunkBuf
+     * @param channel the channel to write the jpeg to
+     * @param flags a combination of the ENCODE_* flags
+     * @return the number of bytes written to channel, or a negative value on
+     *         error
+     */
+    private static native int compressJpegFromYUV420pToChannelNative(
+            int width, int height,
+            Object yBuf, int yPStride, int yRStride,
+            Object cbBuf, int cbPStride, int cbRStride,
+            Object crBuf, int crPStride, int crRStride,
+            Object chunkBuf, int chunkCapacity, WritableByteChannel channel,
+            int quality,
+            int cropLeft, int cropTop, int cropRight, int cropBottom,
+            int rot90, int flags);
+
+    /**
+     * Compresses a YCbCr image to jpeg like
+     * {@link #compressJpegFromYUV420pNative}, at the highest quality up to
+     * maxQuality whose jpeg fits into maxBytes. The quality is estimated from
+     * a sample of the image, so the image is usually encoded once or twice.
+     * Only if both are too large are lower qualities bisected with full
+     * encodes.
+     *
+     * @param maxBytes the byte budget, at most the capacity of outBuf
+     * @param maxQuality the highest jpeg-quality (1-100) to use
+     * @param flags a combination of the ENCODE_* flags
+     * @return the number of bytes written to outBuf, or a negative value if
+     *         the image does not fit into maxBytes even at quality 1
+     */
+    private static native int compressJpegFromYUV420pToSizeNative(
+            int width, int height,
+            Object yBuf, int yPStride, int yRStride,
+            Object cbBuf, int cbPStride, int cbRStride,
+            Object crBuf, int crPStride, int crRStride,
+            Object outBuf, int maxBytes,
+            int maxQuality,
+            int cropLeft, int cropTop, int cropRight, int cropBottom,
+            int rot90, int flags);
+
+    /**
+     * Compresses a YCbCr image to jpeg like
+     * {@link #compressJpegFromYUV420pNative}, with an EXIF segment in place of
+     * the JFIF one. The segment holds the orientation and a thumbnail, which
+     * is downscaled from the image while it is encoded.
+     *
+     * @param orientationDegrees the clockwise rotation viewers should apply,
+     *            a multiple of 90
+     * @param thumbMaxWidth the largest width of the thumbnail, or 0 for none
+     * @param thumbMaxHeight the largest height of the thumbnail, or 0 for none
+     * @param flags a combination of the ENCODE_* flags
+     * @return the number of bytes written to outBuf, or a negative value on
+     *         error
+     */
+    private static native int compressJpegFromYUV420pWithExifNative(
+            int width, int height,
+            Object yBuf, int yPStride, int yRStride,
+            Object cbBuf, int cbPStride, int cbRStride,
+            Object crBuf, int crPStride, int crRStride,
+            Object outBuf, int outBufCapacity,
+            int quality,
+            int cropLeft, int cropTop, int cropRight, int cropBottom,
+            int rot90, int orientationDegrees, int thumbMaxWidth, int thumbMaxHeight,
+            int flags);
+
+    /**
+     * Compresses a YCbCr image of any chroma subsampling to jpeg like
+     * {@link #compressJpegFromYUV420pNative}, straight from its planes. It
+     * encodes on the calling thread.
+     *
+     * @param chromaHFactor the horizontal subsampling of the chroma planes,
+     *            e.g. 2 for 4:2:2 and 1 for 4:4:4
+     * @param chromaVFactor the vertical subsampling of the chroma planes
+     * @param flags a combination of the ENCODE_* flags
+     * @return the number of bytes written to outBuf, or a negative value on
+     *         error
+     */
+    private static native int compressJpegFromYCbCrNative(
+            int width, int height,
+            int chromaHFactor, int chromaVFactor,
+            Object yBuf, int yPStride, int yRStride,
+            Object cbBuf, int cbPStride, int cbRStride,
+            Object crBuf, int crPStride, int crRStride,
+            Object outBuf, int outBufCapacity,
+            int quality,
+            int cropLeft, int cropTop, int cropRight, int cropBottom,
+            int rot90, int flags);
+
+    /**
+     * Compresses a single plane to a grayscale jpeg like
+     * {@link #compressJpegFromYUV420pNative}. It encodes on the calling
+     * thread.
+     *
+     * @param flags a combination of the ENCODE_* flags
+     * @return the number of bytes written to outBuf, or a negative value on
+     *         error
+     */
+    private static native int compressJpegFromGrayscaleNative(
+            int width, int height,
+            Object yBuf, int yPStride, int yRStride,
+            Object outBuf, int outBufCapacity,
+            int quality,
+            int cropLeft, int cropTop, int cropRight, int cropBottom,
+            int rot90, int flags);
+
+    /** Writes the first length bytes of chunk to channel, called from native code. */
+    private static void writeChunk(WritableByteChannel channel, ByteBuffer chunk, int length)
+            throws IOException {
+        chunk.clear();
+        chunk.limit(length);
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+    }
 
     /**
      * Copies the Image.Plane specified by planeBuf, pStride, and rStride to the
@@ -131,7 +406,7 @@ public class JpegUtilNative {
     /**
      * @see JpegUtilNative#compressJpegFromYUV420pNative(int, int, Object, int,
      *      int, Object, int, int, Object, int, int, Object, int, int, int, int,
-     *      int, int, int)
+     *      int, int, int, int, int, int)
      */
     public static int compressJpegFromYUV420p(
             int width, int height,
@@ -140,21 +415,120 @@ public class JpegUtilNative {
             ByteBuffer crBuf, int crPStride, int crRStride,
             ByteBuffer outBuf, int quality,
             int cropLeft, int cropTop, int cropRight, int cropBottom, int rot90) {
-        Log.i(TAG, String.format(
-                "Compressing jpeg with size = (%d, %d); " +
-                        "y-channel pixel stride = %d; " +
-                        "y-channel row stride = %d; " +
-                        "cb-channel pixel stride = %d; " +
-                        "cb-channel row stride = %d; " +
-                        "cr-channel pixel stride = %d; " +
-                        "cr-channel row stride = %d; " +
-                        "crop = [(%d, %d) - (%d, %d)]; " +
-                        "rotation = %d * 90 deg ccw. ",
-                width, height, yPStride, yRStride, cbPStride, cbRStride, crPStride, crRStride,
-                cropLeft, cropTop, cropRight, cropBottom, rot90));
-        return compressJpegFromYUV420pNative(width, height, yBuf, yPStride, yRStride, cbBuf,
-                cbPStride, cbRStride, crBuf, crPStride, crRStride, outBuf, outBuf.capacity(),
-                quality, cropLeft, cropTop, cropRight, cropBottom, rot90);
+        return compressJpegFromYUV420p(width, height, yBuf, yPStride, yRStride, cbBuf,
+                cbPStride, cbRStride, crBuf, crPStride, crRStride, outBuf, quality,
+                cropLeft, cropTop, cropRight, cropBottom, rot90, 1);
+    }
+
+    /**
+     * @see JpegUtilNative#compressJpegFromYUV420pNative(int, int, Object, int,
+     *      int, Object, int, int, Object, int, int, Object, int, int, int, int,
+     *      int, int, int, int, int, int)
+     */
+    public static int compressJpegFromYUV420p(
+            int width, int height,
+            ByteBuffer yBuf, int yPStride, int yRStride,
+            ByteBuffer cbBuf, int cbPStride, int cbRStride,
+            ByteBuffer crBuf, int crPStride, int crRStride,
+            ByteBuffer outBuf, int quality,
+            int cropLeft, int cropTop, int cropRight, int cropBottom, int rot90,
+            int numThreads) {
+        return compressJpegFromYUV420p(width, height, yBuf, yPStride, yRStride, cbBuf,
+                cbPStride, cbRStride, crBuf, crPStride, crRStride, outBuf, quality,
+                cropLeft, cropTop, cropRight, cropBottom, rot90, numThreads, ENCODE_DEFAULT);
+    }
+
+    /**
+     * @see JpegUtilNative#compressJpegFromYUV420pNative(int, int, Object, int,
+     *      int, Object, int, int, Object, int, int, Object, int, int, int, int,
+     *      int, int, int, int, int, int)
+     */
+    public static int compressJpegFromYUV420p(
+            int width, int height,
+            ByteBuffer yBuf, int yPStride, int yRStride,
+            ByteBuffer cbBuf, int cbPStride, int cbRStride,
+            ByteBuffer crBuf, int crPStride, int crRStride,
+            ByteBuffer outBuf, int quality,
+            int cropLeft, int cropTop, int cropRight, int cropBottom, int rot90,
+            int numThreads, int flags) {
+        checkEncodeFlags(flags);
+        final long startNanos = startEncode();
+        int result = compressJpegFromYUV420pNative(width, height, yBuf, yPStride, yRStride,
+                cbBuf, cbPStride, cbRStride, crBuf, crPStride, crRStride, outBuf,
+                outBuf.capacity(), quality, cropLeft, cropTop, cropRight, cropBottom, rot90,
+                numThreads, flags);
+        return reportEncode(startNanos, cropRight - cropLeft, cropBottom - cropTop,
+                getYuvByteCount(cropRight - cropLeft, cropBottom - cropTop, 2, 2), result);
+    }
+
+    /**
+     * Compresses a YCbCr image whose chroma planes are subsampled
+     * chromaHFactor times horizontally and chromaVFactor times vertically,
+     * e.g. 2 and 1 for 4:2:2 or 1 and 1 for 4:4:4, without resampling its
+     * planes first. For 4:2:0, {@link #compressJpegFromYUV420p} is faster
+     * since it can use several threads.
+     *
+     * @see JpegUtilNative#compressJpegFromYCbCrNative(int, int, int, int,
+     *      Object, int, int, Object, int, int, Object, int, int, Object, int,
+     *      int, int, int, int, int, int, int)
+     */
+    public static int compressJpegFromYCbCr(
+            int width, int height,
+            int chromaHFactor, int chromaVFactor,
+            ByteBuffer yBuf, int yPStride, int yRStride,
+            ByteBuffer cbBuf, int cbPStride, int cbRStride,
+            ByteBuffer crBuf, int crPStride, int crRStride,
+            ByteBuffer outBuf, int quality,
+            int cropLeft, int cropTop, int cropRight, int cropBottom, int rot90,
+            int flags) {
+        checkChromaFactors(chromaHFactor, chromaVFactor);
+        checkEncodeFlags(flags);
+        final long startNanos = startEncode();
+        int result = compressJpegFromYCbCrNative(width, height, chromaHFactor, chromaVFactor,
+                yBuf, yPStride, yRStride, cbBuf, cbPStride, cbRStride, crBuf, crPStride,
+                crRStride, outBuf, outBuf.capacity(), quality, cropLeft, cropTop, cropRight,
+                cropBottom, rot90, flags);
+        return reportEncode(startNanos, cropRight - cropLeft, cropBottom - cropTop,
+                getYuvByteCount(cropRight - cropLeft, cropBottom - cropTop, chromaHFactor,
+                        chromaVFactor), result);
+    }
+
+    /**
+     * Compresses a single plane, e.g. a depth or IR frame or the luma plane
+     * alone, to a grayscale jpeg.
+     *
+     * @see JpegUtilNative#compressJpegFromGrayscaleNative(int, int, Object,
+     *      int, int, Object, int, int, int, int, int, int, int, int)
+     */
+    public static int compressJpegFromGrayscale(
+            int width, int height,
+            ByteBuffer yBuf, int yPStride, int yRStride,
+            ByteBuffer outBuf, int quality,
+            int cropLeft, int cropTop, int cropRight, int cropBottom, int rot90,
+            int flags) {
+        checkEncodeFlags(flags);
+        final long startNanos = startEncode();
+        int result = compressJpegFromGrayscaleNative(width, height, yBuf, yPStride, yRStride,
+                outBuf, outBuf.capacity(), quality, cropLeft, cropTop, cropRight, cropBottom,
+                rot90, flags);
+        return reportEncode(startNanos, cropRight - cropLeft, cropBottom - cropTop,
+                (long) (cropRight - cropLeft) * (cropBottom - cropTop), result);
+    }
+
+    /**
+     * Checks that the chroma subsampling factors are ones the encoder
+     * supports: 1, 2 or 4, with at most 8 luma blocks per MCU.
+     */
+    private static void checkChromaFactors(int chromaHFactor, int chromaVFactor) {
+        if (!isChromaFactor(chromaHFactor) || !isChromaFactor(chromaVFactor)
+                || chromaHFactor * chromaVFactor > 8) {
+            throw new IllegalArgumentException("Unsupported chroma subsampling: "
+                    + chromaHFactor + "x" + chromaVFactor);
+        }
+    }
+
+    private static boolean isChromaFactor(int factor) {
+        return factor == 1 || factor == 2 || factor == 4;
     }
 
     /**
@@ -202,53 +576,407 @@ public class JpegUtilNative {
      *            represents a clockwise rotation in the space of the image
      *            plane, which appears as a counter-clockwise rotation when the
      *            image is displayed in raster-order.
-     * @return The number of bytes written to outBuf
+     * @return The number of bytes written to outBuf, or
+     *         {@link #ERROR_OUT_BUF_TOO_SMALL} if outBuf cannot hold the result
      */
     public static int compressJpegFromYUV420Image(Image img, ByteBuffer outBuf, int quality,
             Rect crop, int degrees) {
-        if ((degrees % 90) != 0) {
-            throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees," +
-                " was " + degrees);
+        return compressJpegFromYUV420Image(img, outBuf, quality, crop, degrees, 1);
+    }
+
+    /**
+     * Compresses the given image to jpeg on several threads. Note that only
+     * ImageFormat.YUV_420_888 is currently supported. Furthermore, all planes
+     * must use direct byte buffers.
+     * <p>
+     * The image is split into horizontal bands of whole 16-row MCU rows that
+     * are encoded concurrently. The bands are joined with restart markers, so
+     * the result is a single baseline jpeg that any decoder accepts.
+     *
+     * @param img the image to compress
+     * @param outBuf a direct byte buffer to hold the output jpeg.
+     * @param quality the jpeg encoder quality (0 to 100)
+     * @param crop The crop rectangle to apply *before* rotation.
+     * @param degrees The number of degrees to rotate the image *after*
+     *            cropping. This must be a multiple of 90.
+     * @param numThreads the number of threads to encode with, 1 to encode on
+     *            the calling thread only.
+     * @return The number of bytes written to outBuf, or
+     *         {@link #ERROR_OUT_BUF_TOO_SMALL} if outBuf cannot hold the result
+     */
+    public static int compressJpegFromYUV420Image(Image img, ByteBuffer outBuf, int quality,
+            Rect crop, int degrees, int numThreads) {
+        return compressJpegFromYUV420Image(img, outBuf, quality, crop, degrees, numThreads,
+                ENCODE_DEFAULT);
+    }
+
+    /**
+     * Compresses the given image to jpeg with the given entropy coding modes.
+     * Note that only ImageFormat.YUV_420_888 is currently supported.
+     * Furthermore, all planes must use direct byte buffers.
+     * <p>
+     * Concurrently encoded bands can only be joined with the standard Huffman
+     * tables, so with any flag set the image is encoded on the calling thread
+     * regardless of numThreads.
+     *
+     * @param img the image to compress
+     * @param outBuf a direct byte buffer to hold the output jpeg.
+     * @param quality the jpeg encoder quality (0 to 100)
+     * @param crop The crop rectangle to apply *before* rotation.
+     * @param degrees The number of degrees to rotate the image *after*
+     *            cropping. This must be a multiple of 90.
+     * @param numThreads the number of threads to encode with when flags is
+     *            {@link #ENCODE_DEFAULT}.
+     * @param flags a combination of the ENCODE_* flags.
+     * @return The number of bytes written to outBuf, or
+     *         {@link #ERROR_OUT_BUF_TOO_SMALL} if outBuf cannot hold the result
+     */
+    public static int compressJpegFromYUV420Image(Image img, ByteBuffer outBuf, int quality,
+            Rect crop, int degrees, int numThreads, int flags) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be positive, was " + numThreads);
         }
-        // Handle negative angles by converting to positive.
-        degrees = ((degrees % 360) + (360 * 2)) % 360;
+        int rot90 = toRot90(degrees);
         if (!outBuf.isDirect()) {
             throw new IllegalArgumentException("Output buffer must be direct");
         }
-        if (crop.left >= crop.right) {
-            throw new IllegalArgumentException("Invalid crop rectangle: " + crop);
+        Rect clampedCrop = clampCrop(img, crop);
+        final Image.Plane[] planes = getYuv420Planes(img);
+
+        outBuf.clear();
+
+        int numBytesWritten = compressJpegFromYUV420p(
+                img.getWidth(), img.getHeight(),
+                planes[0].getBuffer(), planes[0].getPixelStride(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[1].getPixelStride(), planes[1].getRowStride(),
+                planes[2].getBuffer(), planes[2].getPixelStride(), planes[2].getRowStride(),
+                outBuf, quality, clampedCrop.left, clampedCrop.top, clampedCrop.right,
+                clampedCrop.bottom, rot90, numThreads, flags);
+
+        if (numBytesWritten >= 0) {
+            outBuf.limit(numBytesWritten);
         }
-        if (crop.top >= crop.bottom) {
-            throw new IllegalArgumentException("Invalid crop rectangle: " + crop);
+
+        return numBytesWritten;
+    }
+
+    /**
+     * Compresses the given image to jpeg and writes it to a channel while it
+     * is encoded. Note that only ImageFormat.YUV_420_888 is currently
+     * supported. Furthermore, all planes must use direct byte buffers.
+     * <p>
+     * The output is staged in a small pooled buffer which is written out
+     * whenever it fills, so unlike
+     * {@link #compressJpegFromYUV420Image(Image, ByteBuffer, int, Rect, int)}
+     * no buffer has to be sized for the whole jpeg, and a capture can be
+     * written to a {@link java.nio.channels.FileChannel} as it is encoded.
+     * The image is encoded on the calling thread.
+     *
+     * @param img the image to compress
+     * @param channel the channel to write the jpeg to. It is not closed.
+     * @param quality the jpeg encoder quality (0 to 100)
+     * @param crop The crop rectangle to apply *before* rotation.
+     * @param degrees The number of degrees to rotate the image *after*
+     *            cropping. This must be a multiple of 90.
+     * @return The number of bytes written to channel
+     * @throws IOException if writing to channel fails, or if the image could
+     *             not be compressed. Part of the jpeg may have been written
+     *             already.
+     */
+    public static int compressJpegFromYUV420Image(Image img, WritableByteChannel channel,
+            int quality, Rect crop, int degrees) throws IOException {
+        return compressJpegFromYUV420Image(img, channel, quality, crop, degrees,
+                ENCODE_DEFAULT);
+    }
+
+    /**
+     * Compresses the given image to jpeg like
+     * {@link #compressJpegFromYUV420Image(Image, WritableByteChannel, int, Rect, int)},
+     * with the given entropy coding modes.
+     *
+     * @param flags a combination of the ENCODE_* flags.
+     * @throws IOException if writing to channel fails, or if the image could
+     *             not be compressed.
+     */
+    public static int compressJpegFromYUV420Image(Image img, WritableByteChannel channel,
+            int quality, Rect crop, int degrees, int flags) throws IOException {
+        checkEncodeFlags(flags);
+        int rot90 = toRot90(degrees);
+        Rect clampedCrop = clampCrop(img, crop);
+        final Image.Plane[] planes = getYuv420Planes(img);
+
+        final long startNanos = startEncode();
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer chunk = pool.acquireDirectBuffer(STREAM_CHUNK_SIZE);
+        int result;
+        try {
+            result = compressJpegFromYUV420pToChannelNative(
+                    img.getWidth(), img.getHeight(),
+                    planes[0].getBuffer(), planes[0].getPixelStride(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[1].getPixelStride(), planes[1].getRowStride(),
+                    planes[2].getBuffer(), planes[2].getPixelStride(), planes[2].getRowStride(),
+                    chunk, chunk.capacity(), channel, quality, clampedCrop.left,
+                    clampedCrop.top, clampedCrop.right, clampedCrop.bottom, rot90, flags);
+        } finally {
+            pool.releaseDirectBuffer(chunk);
         }
-        final int NUM_PLANES = 3;
-        if (img.getFormat() != ImageFormat.YUV_420_888) {
-            throw new IllegalArgumentException("Only " +
-                "ImageFormat.YUV_420_888 is supported, found " + img.getFormat());
+        reportEncode(startNanos, clampedCrop.width(), clampedCrop.height(),
+                getYuvByteCount(clampedCrop.width(), clampedCrop.height(), 2, 2), result);
+        if (result < 0) {
+            throw new IOException("Failed to compress jpeg, error " + result);
         }
-        final Image.Plane[] planes = img.getPlanes();
-        if (planes.length != NUM_PLANES) {
-            throw new IllegalArgumentException("Only 3-plane image is supported");
+        return result;
+    }
+
+    private static void checkEncodeFlags(int flags) {
+        if ((flags & ~ENCODE_ALL_FLAGS) != 0) {
+            throw new IllegalArgumentException("Unknown encode flags: " + flags);
         }
+    }
 
-        ByteBuffer[] planeBuf = new ByteBuffer[NUM_PLANES];
-        int[] pixelStride = new int[NUM_PLANES];
-        int[] rowStride = new int[NUM_PLANES];
+    /**
+     * Compresses the given image to the highest quality jpeg that fits into a
+     * byte budget. Note that only ImageFormat.YUV_420_888 is currently
+     * supported. Furthermore, all planes must use direct byte buffers.
+     * <p>
+     * Instead of searching for the quality with full encodes, the quality is
+     * estimated by encoding a sample of the image's MCU rows at a few
+     * qualities, aiming a little below the budget. The image is then encoded
+     * once, and only if the estimate was too optimistic a second time, at a
+     * corrected quality. Higher qualities are then tried one at a time until
+     * the next one overflows the budget, or bisected with full encodes if no
+     * quality fit yet or the fitting encode left more than 10% of the budget
+     * unused. The result fits whenever quality 1 does. The image is encoded
+     * on the calling thread.
+     *
+     * @param img the image to compress
+     * @param outBuf a direct byte buffer to hold the output jpeg.
+     * @param maxBytes the byte budget. At most the capacity of outBuf is used.
+     * @param maxQuality the highest jpeg encoder quality to use (1 to 100)
+     * @param crop The crop rectangle to apply *before* rotation.
+     * @param degrees The number of degrees to rotate the image *after*
+     *            cropping. This must be a multiple of 90.
+     * @param flags a combination of the ENCODE_* flags.
+     * @return The number of bytes written to outBuf, or
+     *         {@link #ERROR_OUT_BUF_TOO_SMALL} if the image does not fit into
+     *         the budget even at quality 1
+     */
+    public static int compressJpegFromYUV420ImageToSize(Image img, ByteBuffer outBuf,
+            int maxBytes, int maxQuality, Rect crop, int degrees, int flags) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive, was " + maxBytes);
+        }
+        if (maxQuality < 1 || maxQuality > 100) {
+            throw new IllegalArgumentException("maxQuality must be in [1, 100], was "
+                    + maxQuality);
+        }
+        checkEncodeFlags(flags);
+        int rot90 = toRot90(degrees);
+        if (!outBuf.isDirect()) {
+            throw new IllegalArgumentException("Output buffer must be direct");
+        }
+        Rect clampedCrop = clampCrop(img, crop);
+        final Image.Plane[] planes = getYuv420Planes(img);
+
+        outBuf.clear();
 
-        for (int i = 0; i < NUM_PLANES; i++) {
-            Image.Plane plane = planes[i];
+        final long startNanos = startEncode();
+        int numBytesWritten = compressJpegFromYUV420pToSizeNative(
+                img.getWidth(), img.getHeight(),
+                planes[0].getBuffer(), planes[0].getPixelStride(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[1].getPixelStride(), planes[1].getRowStride(),
+                planes[2].getBuffer(), planes[2].getPixelStride(), planes[2].getRowStride(),
+                outBuf, Math.min(maxBytes, outBuf.capacity()), maxQuality, clampedCrop.left,
+                clampedCrop.top, clampedCrop.right, clampedCrop.bottom, rot90, flags);
+        reportEncode(startNanos, clampedCrop.width(), clampedCrop.height(),
+                getYuvByteCount(clampedCrop.width(), clampedCrop.height(), 2, 2),
+                numBytesWritten);
 
-            if (!plane.getBuffer().isDirect()) {
-                throw new IllegalArgumentException("Plane buffer must be direct");
-            }
+        if (numBytesWritten >= 0) {
+            outBuf.limit(numBytesWritten);
+        }
+
+        return numBytesWritten;
+    }
+
+    /**
+     * Compresses the given image to jpeg, with an EXIF segment holding the
+     * orientation and a thumbnail. Note that only ImageFormat.YUV_420_888 is
+     * currently supported. Furthermore, all planes must use direct byte
+     * buffers.
+     * <p>
+     * The thumbnail is box-filtered from the rows the encoder reads anyway,
+     * so the image is read once for both, and is not decoded again to make
+     * the thumbnail. The thumbnail keeps the aspect ratio of the output image
+     * and fits into thumbnailMaxWidth x thumbnailMaxHeight. The image is
+     * encoded on the calling thread.
+     *
+     * @param img the image to compress
+     * @param outBuf a direct byte buffer to hold the output jpeg.
+     * @param quality the jpeg encoder quality (0 to 100)
+     * @param crop The crop rectangle to apply *before* rotation.
+     * @param degrees The number of degrees to rotate the image *after*
+     *            cropping. This must be a multiple of 90.
+     * @param orientationDegrees The number of degrees viewers should rotate
+     *            the image clockwise, stored as its EXIF orientation. This
+     *            must be a multiple of 90.
+     * @param thumbnailMaxWidth the largest width of the thumbnail, or 0 for no
+     *            thumbnail
+     * @param thumbnailMaxHeight the largest height of the thumbnail, or 0 for
+     *            no thumbnail
+     * @param flags a combination of the ENCODE_* flags.
+     * @return The number of bytes written to outBuf, or
+     *         {@link #ERROR_OUT_BUF_TOO_SMALL} if it is too small
+     */
+    public static int compressJpegFromYUV420ImageWithExif(Image img, ByteBuffer outBuf,
+            int quality, Rect crop, int degrees, int orientationDegrees, int thumbnailMaxWidth,
+            int thumbnailMaxHeight, int flags) {
+        if ((orientationDegrees % 90) != 0) {
+            throw new IllegalArgumentException("Orientation must be a multiple of 90 degrees,"
+                    + " was " + orientationDegrees);
+        }
+        if (thumbnailMaxWidth < 0 || thumbnailMaxHeight < 0) {
+            throw new IllegalArgumentException("Invalid thumbnail bounds: " + thumbnailMaxWidth
+                    + "x" + thumbnailMaxHeight);
+        }
+        checkEncodeFlags(flags);
+        int rot90 = toRot90(degrees);
+        if (!outBuf.isDirect()) {
+            throw new IllegalArgumentException("Output buffer must be direct");
+        }
+        Rect clampedCrop = clampCrop(img, crop);
+        final Image.Plane[] planes = getYuv420Planes(img);
+
+        outBuf.clear();
+
+        final long startNanos = startEncode();
+        int numBytesWritten = compressJpegFromYUV420pWithExifNative(
+                img.getWidth(), img.getHeight(),
+                planes[0].getBuffer(), planes[0].getPixelStride(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[1].getPixelStride(), planes[1].getRowStride(),
+                planes[2].getBuffer(), planes[2].getPixelStride(), planes[2].getRowStride(),
+                outBuf, outBuf.capacity(), quality, clampedCrop.left, clampedCrop.top,
+                clampedCrop.right, clampedCrop.bottom, rot90, orientationDegrees,
+                thumbnailMaxWidth, thumbnailMaxHeight, flags);
+        reportEncode(startNanos, clampedCrop.width(), clampedCrop.height(),
+                getYuvByteCount(clampedCrop.width(), clampedCrop.height(), 2, 2),
+                numBytesWritten);
+
+        if (numBytesWritten >= 0) {
+            outBuf.limit(numBytesWritten);
+        }
+
+        return numBytesWritten;
+    }
 
-            planeBuf[i] = plane.getBuffer();
-            pixelStride[i] = plane.getPixelStride();
-            rowStride[i] = plane.getRowStride();
+    /**
+     * Compresses the given image to jpeg straight from its planes, without
+     * resampling them to 4:2:0 first. ImageFormat.YUV_420_888,
+     * ImageFormat.YUV_422_888 and ImageFormat.YUV_444_888 images are encoded
+     * at their own chroma subsampling, and ImageFormat.Y8 images, e.g. IR
+     * frames, as grayscale. All planes must use direct byte buffers. The
+     * image is encoded on the calling thread.
+     *
+     * @param img the image to compress
+     * @param outBuf a direct byte buffer to hold the output jpeg.
+     * @param quality the jpeg encoder quality (0 to 100)
+     * @param crop The crop rectangle to apply *before* rotation.
+     * @param degrees The number of degrees to rotate the image *after*
+     *            cropping. This must be a multiple of 90.
+     * @param flags a combination of the ENCODE_* flags.
+     * @return The number of bytes written to outBuf, or
+     *         {@link #ERROR_OUT_BUF_TOO_SMALL} if outBuf cannot hold the result
+     */
+    public static int compressJpegFromImage(Image img, ByteBuffer outBuf, int quality,
+            Rect crop, int degrees, int flags) {
+        boolean grayscale = false;
+        int chromaHFactor = 1;
+        int chromaVFactor = 1;
+        switch (img.getFormat()) {
+            case ImageFormat.YUV_420_888:
+                chromaHFactor = 2;
+                chromaVFactor = 2;
+                break;
+            case ImageFormat.YUV_422_888:
+                chromaHFactor = 2;
+                chromaVFactor = 1;
+                break;
+            case ImageFormat.YUV_444_888:
+                break;
+            case ImageFormat.Y8:
+                grayscale = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported image format: "
+                        + img.getFormat());
+        }
+        checkEncodeFlags(flags);
+        int rot90 = toRot90(degrees);
+        if (!outBuf.isDirect()) {
+            throw new IllegalArgumentException("Output buffer must be direct");
         }
+        Rect clampedCrop = clampCrop(img, crop);
+        final Image.Plane[] planes = getDirectPlanes(img, grayscale ? 1 : 3);
 
         outBuf.clear();
 
+        final long startNanos = startEncode();
+        int numBytesWritten;
+        if (grayscale) {
+            numBytesWritten = compressJpegFromGrayscaleNative(
+                    img.getWidth(), img.getHeight(),
+                    planes[0].getBuffer(), planes[0].getPixelStride(), planes[0].getRowStride(),
+                    outBuf, outBuf.capacity(), quality, clampedCrop.left, clampedCrop.top,
+                    clampedCrop.right, clampedCrop.bottom, rot90, flags);
+        } else {
+            numBytesWritten = compressJpegFromYCbCrNative(
+                    img.getWidth(), img.getHeight(), chromaHFactor, chromaVFactor,
+                    planes[0].getBuffer(), planes[0].getPixelStride(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[1].getPixelStride(), planes[1].getRowStride(),
+                    planes[2].getBuffer(), planes[2].getPixelStride(), planes[2].getRowStride(),
+                    outBuf, outBuf.capacity(), quality, clampedCrop.left, clampedCrop.top,
+                    clampedCrop.right, clampedCrop.bottom, rot90, flags);
+        }
+        long inputBytes = grayscale
+                ? (long) clampedCrop.width() * clampedCrop.height()
+                : getYuvByteCount(clampedCrop.width(), clampedCrop.height(), chromaHFactor,
+                        chromaVFactor);
+        reportEncode(startNanos, clampedCrop.width(), clampedCrop.height(), inputBytes,
+                numBytesWritten);
+
+        if (numBytesWritten >= 0) {
+            outBuf.limit(numBytesWritten);
+        }
+
+        return numBytesWritten;
+    }
+
+    /**
+     * Checks that degrees is a multiple of 90 and converts it from a
+     * clockwise rotation to the counter-clockwise multiple of 90 the native
+     * encoder takes.
+     */
+    private static int toRot90(int degrees) {
+        if ((degrees % 90) != 0) {
+            throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees," +
+                " was " + degrees);
+        }
+        // Handle negative angles by converting to positive.
+        degrees = ((degrees % 360) + (360 * 2)) % 360;
+        degrees = degrees % 360;
+        // Convert from clockwise to counter-clockwise.
+        return (360 - degrees) / 90;
+    }
+
+    /** Checks crop and clamps it to the bounds of img. */
+    private static Rect clampCrop(Image img, Rect crop) {
+        if (crop.left >= crop.right) {
+            throw new IllegalArgumentException("Invalid crop rectangle: " + crop);
+        }
+        if (crop.top >= crop.bottom) {
+            throw new IllegalArgumentException("Invalid crop rectangle: " + crop);
+        }
+
         int cropLeft = crop.left;
         cropLeft = Math.max(cropLeft, 0);
         cropLeft = Math.min(cropLeft, img.getWidth() - 1);
@@ -265,21 +993,138 @@ public class JpegUtilNative {
         cropBot = Math.max(cropBot, 0);
         cropBot = Math.min(cropBot, img.getHeight());
 
-        degrees = degrees % 360;
-        // Convert from clockwise to counter-clockwise.
-        int rot90 = (360 - degrees) / 90;
+        return new Rect(cropLeft, cropTop, cropRight, cropBot);
+    }
 
-        int numBytesWritten = compressJpegFromYUV420p(
-                img.getWidth(), img.getHeight(),
-                planeBuf[0], pixelStride[0], rowStride[0],
-                planeBuf[1], pixelStride[1], rowStride[1],
-                planeBuf[2], pixelStride[2], rowStride[2],
-                outBuf, quality, cropLeft, cropTop, cropRight, cropBot,
-                rot90);
+    /** Returns the planes of img, which must be a YUV_420_888 image with direct buffers. */
+    private static Image.Plane[] getYuv420Planes(Image img) {
+        if (img.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("Only " +
+                "ImageFormat.YUV_420_888 is supported, found " + img.getFormat());
+        }
+        return getDirectPlanes(img, 3);
+    }
+
+    /** Returns the planes of img, checking their number and that they are direct. */
+    private static Image.Plane[] getDirectPlanes(Image img, int numPlanes) {
+        final Image.Plane[] planes = img.getPlanes();
+        if (planes.length != numPlanes) {
+            throw new IllegalArgumentException("Only " + numPlanes
+                    + "-plane image is supported");
+        }
+        for (Image.Plane plane : planes) {
+            if (!plane.getBuffer().isDirect()) {
+                throw new IllegalArgumentException("Plane buffer must be direct");
+            }
+        }
+        return planes;
+    }
 
-        outBuf.limit(numBytesWritten);
+    /**
+     * Losslessly crops a jpeg by copying its DCT coefficients, without decoding
+     * it to pixels or re-encoding it. Markers, including EXIF, are kept.
+     * <p>
+     * Blocks cannot be split, so the top-left corner of the crop is moved up
+     * and left onto the grid of MCUs (16x16 pixels for 4:2:0 jpegs). The right
+     * and bottom edges are kept exactly. The bounds the image was actually
+     * cropped to are returned in {@code outCrop}.
+     *
+     * @param jpeg a direct byte buffer holding the jpeg between its position
+     *            and limit
+     * @param outBuf a direct byte buffer to hold the output jpeg. The output
+     *            is never larger than the input and its markers.
+     * @param crop the crop rectangle, in the coordinates of the jpeg
+     * @param outCrop if not null, receives the crop that was applied
+     * @return The number of bytes written to outBuf,
+     *         {@link #ERROR_OUT_BUF_TOO_SMALL} if outBuf cannot hold the
+     *         result, or {@link #ERROR_TRANSFORM_FAILED} if the input is not a
+     *         valid jpeg or the crop rectangle lies outside of it
+     */
+    public static int cropJpegLossless(ByteBuffer jpeg, ByteBuffer outBuf, Rect crop,
+            Rect outCrop) {
+        if (!jpeg.isDirect() || !outBuf.isDirect()) {
+            throw new IllegalArgumentException("Jpeg buffers must be direct");
+        }
+        if (crop.left >= crop.right || crop.top >= crop.bottom) {
+            throw new IllegalArgumentException("Invalid crop rectangle: " + crop);
+        }
 
+        outBuf.clear();
+        int[] bounds = outCrop != null ? new int[4] : null;
+        int numBytesWritten = transformJpegNative(jpeg, jpeg.position(), jpeg.remaining(),
+                outBuf, outBuf.capacity(), TRANSFORM_NONE, false, false,
+                true, crop.left, crop.top, crop.right, crop.bottom, bounds);
+        if (numBytesWritten >= 0) {
+            outBuf.limit(numBytesWritten);
+            if (outCrop != null) {
+                outCrop.set(bounds[0], bounds[1], bounds[2], bounds[3]);
+            }
+        }
         return numBytesWritten;
     }
-}
 
+    /**
+     * Losslessly flips, transposes or rotates a jpeg by rearranging its DCT
+     * coefficients, without decoding it to pixels or re-encoding it. Markers,
+     * including EXIF, are kept, and the EXIF pixel dimensions are updated.
+     * <p>
+     * Blocks cannot be split, so a partial MCU at the right or bottom edge
+     * cannot be moved by most transforms. Such a transform fails unless
+     * {@code trim} is set, in which case the partial MCUs are dropped; this is
+     * never a problem for dimensions which are multiples of 16.
+     *
+     * @param jpeg a direct byte buffer holding the jpeg between its position
+     *            and limit
+     * @param outBuf a direct byte buffer to hold the output jpeg. The output
+     *            is never larger than the input and its markers.
+     * @param transform one of the {@code TRANSFORM_} constants
+     * @param trim whether to drop the edge pixels that cannot be transformed
+     *            losslessly, rather than fail
+     * @return The number of bytes written to outBuf,
+     *         {@link #ERROR_OUT_BUF_TOO_SMALL} if outBuf cannot hold the
+     *         result, or {@link #ERROR_TRANSFORM_FAILED} if the input is not a
+     *         valid jpeg or cannot be transformed exactly
+     */
+    public static int transformJpegLossless(ByteBuffer jpeg, ByteBuffer outBuf, int transform,
+            boolean trim) {
+        if (transform < TRANSFORM_NONE || transform > TRANSFORM_ROTATE_270) {
+            throw new IllegalArgumentException("Invalid transform: " + transform);
+        }
+        return transformJpeg(jpeg, outBuf, transform, false, trim);
+    }
+
+    /**
+     * Losslessly applies the EXIF orientation of a jpeg to its pixels, and
+     * resets the orientation tag to normal, so that viewers which ignore EXIF
+     * display it upright. A jpeg without an orientation tag is copied as is.
+     * See {@link #transformJpegLossless} for the meaning of {@code trim} and
+     * the return value.
+     */
+    public static int normalizeJpegOrientation(ByteBuffer jpeg, ByteBuffer outBuf,
+            boolean trim) {
+        return transformJpeg(jpeg, outBuf, TRANSFORM_NONE, true, trim);
+    }
+
+    private static int transformJpeg(ByteBuffer jpeg, ByteBuffer outBuf, int transform,
+            boolean applyExifOrientation, boolean trim) {
+        if (!jpeg.isDirect() || !outBuf.isDirect()) {
+            throw new IllegalArgumentException("Jpeg buffers must be direct");
+        }
+
+        outBuf.clear();
+        int numBytesWritten = transformJpegNative(jpeg, jpeg.position(), jpeg.remaining(),
+                outBuf, outBuf.capacity(), transform, applyExifOrientation, trim,
+                false, 0, 0, 0, 0, null);
+        if (numBytesWritten >= 0) {
+            outBuf.limit(numBytesWritten);
+        }
+        return numBytesWritten;
+    }
+
+    private static native int transformJpegNative(
+            Object inBuf, int inOffset, int inSize,
+            Object outBuf, int outBufCapacity,
+            int transform, boolean applyExifOrientation, boolean trim,
+            boolean crop, int cropLeft, int cropTop, int cropRight, int cropBottom,
+            int[] outCrop);
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The pure Java conversions behind {@link ImageUtils}, on the buffers and strides of image
+ * planes rather than on {@code android.media.Image}, so that they also run, and can be
+ * benchmarked, on a desktop JVM.
+ *
+ * <p>The plane buffers are read from position 0 and rewound afterwards.
+ */
+final class PlaneConversions {
+    static final int BYTES_PER_RGB_PIX = 3; // bytes per pixel
+
+    private PlaneConversions() {
+    }
+
+    /**
+     * Converts a YUV420_888 frame to NV21 in {@code nv21} at offset 0. The luma pixel stride
+     * must be 1.
+     */
+    static void yuv420ToNv21(@NonNull ByteBuffer yBuffer, int yRowStride,
+                             @NonNull ByteBuffer uBuffer, int uPixelStride, int uRowStride,
+                             @NonNull ByteBuffer vBuffer, int vPixelStride, int vRowStride,
+                             int width, int height, @NonNull byte[] nv21) {
+        convertToNv21(yBuffer, yRowStride, uBuffer, uPixelStride, uRowStride, vBuffer,
+                vPixelStride, vRowStride, width, height, nv21, null);
+    }
+
+    /**
+     * Converts a YUV420_888 frame to NV21 in {@code nv21} at its current position. The luma
+     * pixel stride must be 1.
+     */
+    static void yuv420ToNv21(@NonNull ByteBuffer yBuffer, int yRowStride,
+                             @NonNull ByteBuffer uBuffer, int uPixelStride, int uRowStride,
+                             @NonNull ByteBuffer vBuffer, int vPixelStride, int vRowStride,
+                             int width, int height, @NonNull ByteBuffer nv21) {
+        convertToNv21(yBuffer, yRowStride, uBuffer, uPixelStride, uRowStride, vBuffer,
+                vPixelStride, vRowStride, width, height, null, nv21);
+    }
+
+    /**
+     * Writes NV21 data either into {@code nv21Array} at offset 0 or into {@code nv21Buffer} at
+     * its current position. Exactly one of the two must be non-null.
+     */
+    private static void convertToNv21(@NonNull ByteBuffer yBuffer, int yRowStride,
+                                      @NonNull ByteBuffer uBuffer, int uPixelStride,
+                                      int uRowStride, @NonNull ByteBuffer vBuffer,
+                                      int vPixelStride, int vRowStride, int width, int height,
+                                      @Nullable byte[] nv21Array,
+                                      @Nullable ByteBuffer nv21Buffer) {
+        int position = 0;
+
+        // Add the full y buffer to the output. If rowStride > width, the padding is skipped.
+        for (int row = 0; row < height; row++) {
+            yBuffer.position(row * yRowStride);
+            if (nv21Array != null) {
+                yBuffer.get(nv21Array, position, width);
+                position += width;
+            } else {
+                int limit = yBuffer.limit();
+                yBuffer.limit(yBuffer.position() + width);
+                nv21Buffer.put(yBuffer);
+                yBuffer.limit(limit);
+            }
+        }
+
+        int chromaHeight = height / 2;
+        int chromaWidth = width / 2;
+
+        // Interleave the u and v frames, filling up the rest of the output. Use two line buffers
+        // to perform faster bulk gets from the byte buffers. They come from the shared pool so
+        // that steady-state conversion does not allocate.
+        BufferPool pool = BufferPool.getDefault();
+        byte[] vLineBuffer = pool.acquireByteArray(vRowStride);
+        byte[] uLineBuffer = pool.acquireByteArray(uRowStride);
+        byte[] vuLineBuffer = nv21Array == null ? pool.acquireByteArray(chromaWidth * 2) : null;
+        try {
+            for (int row = 0; row < chromaHeight; row++) {
+                vBuffer.position(row * vRowStride);
+                uBuffer.position(row * uRowStride);
+                vBuffer.get(vLineBuffer, 0, Math.min(vRowStride, vBuffer.remaining()));
+                uBuffer.get(uLineBuffer, 0, Math.min(uRowStride, uBuffer.remaining()));
+                if (nv21Array != null) {
+                    weaveVuRow(vLineBuffer, vPixelStride, uLineBuffer, uPixelStride, nv21Array,
+                            position, chromaWidth);
+                    position += chromaWidth * 2;
+                } else {
+                    weaveVuRow(vLineBuffer, vPixelStride, uLineBuffer, uPixelStride, vuLineBuffer,
+                            0, chromaWidth);
+                    nv21Buffer.put(vuLineBuffer, 0, chromaWidth * 2);
+                }
+            }
+        } finally {
+            pool.releaseByteArray(vLineBuffer);
+            pool.releaseByteArray(uLineBuffer);
+            if (vuLineBuffer != null) {
+                pool.releaseByteArray(vuLineBuffer);
+            }
+        }
+
+        yBuffer.rewind();
+        uBuffer.rewind();
+        vBuffer.rewind();
+    }
+
+    private static void weaveVuRow(byte[] vLine, int vPixelStride, byte[] uLine,
+                                   int uPixelStride, byte[] dst, int dstOffset, int chromaWidth) {
+        int vPosition = 0;
+        int uPosition = 0;
+        for (int col = 0; col < chromaWidth; col++) {
+            dst[dstOffset++] = vLine[vPosition];
+            dst[dstOffset++] = uLine[uPosition];
+            vPosition += vPixelStride;
+            uPosition += uPixelStride;
+        }
+    }
+
+    /**
+     * Converts a YUV420_888 frame to packed 8-bit RGB in {@code rgb} at its current position,
+     * with one of the {@link ImageUtils.ColorMatrix} conversions. Each chroma sample is looked
+     * up once and applied to the 2x2 block of luma samples it covers. The line buffers come from
+     * the shared pool so that steady-state conversion does not allocate.
+     */
+    static void yuv420ToRgb(@NonNull ByteBuffer yBuffer, int yPixelStride, int yRowStride,
+                            @NonNull ByteBuffer uBuffer, int uPixelStride, int uRowStride,
+                            @NonNull ByteBuffer vBuffer, int vPixelStride, int vRowStride,
+                            int width, int height, int colorMatrix, @NonNull ByteBuffer rgb) {
+        final RgbTables tables = RgbTables.get(colorMatrix);
+        final int chromaWidth = (width + 1) / 2;
+
+        // The last row of a plane may stop right after its last sample.
+        final int yLineLength = yPixelStride * (width - 1) + 1;
+        final int uLineLength = uPixelStride * (chromaWidth - 1) + 1;
+        final int vLineLength = vPixelStride * (chromaWidth - 1) + 1;
+        final int rgbLineLength = width * BYTES_PER_RGB_PIX;
+
+        final int[] yTable = tables.mY;
+        final int[] crRTable = tables.mCrR;
+        final int[] cbGTable = tables.mCbG;
+        final int[] crGTable = tables.mCrG;
+        final int[] cbBTable = tables.mCbB;
+
+        BufferPool pool = BufferPool.getDefault();
+        byte[] yLine0 = pool.acquireByteArray(yLineLength);
+        byte[] yLine1 = pool.acquireByteArray(yLineLength);
+        byte[] uLine = pool.acquireByteArray(uLineLength);
+        byte[] vLine = pool.acquireByteArray(vLineLength);
+        byte[] rgbLines = pool.acquireByteArray(rgbLineLength * 2);
+        try {
+            for (int row = 0; row < height; row += 2) {
+                // An odd last row is paired with itself, and only written once.
+                final boolean hasRow1 = row + 1 < height;
+                yBuffer.position(row * yRowStride);
+                yBuffer.get(yLine0, 0, yLineLength);
+                if (hasRow1) {
+                    yBuffer.position((row + 1) * yRowStride);
+                    yBuffer.get(yLine1, 0, yLineLength);
+                }
+                uBuffer.position((row / 2) * uRowStride);
+                uBuffer.get(uLine, 0, uLineLength);
+                vBuffer.position((row / 2) * vRowStride);
+                vBuffer.get(vLine, 0, vLineLength);
+                final byte[] yLineB = hasRow1 ? yLine1 : yLine0;
+
+                for (int cx = 0; cx < chromaWidth; cx++) {
+                    final int cb = uLine[cx * uPixelStride] & 0xFF;
+                    final int cr = vLine[cx * vPixelStride] & 0xFF;
+                    final int rOffset = crRTable[cr];
+                    final int gOffset = cbGTable[cb] + crGTable[cr];
+                    final int bOffset = cbBTable[cb];
+
+                    final int x = cx * 2;
+                    final int out = x * BYTES_PER_RGB_PIX;
+                    putRgb(yTable[yLine0[x * yPixelStride] & 0xFF], rOffset, gOffset, bOffset,
+                            rgbLines, out);
+                    putRgb(yTable[yLineB[x * yPixelStride] & 0xFF], rOffset, gOffset, bOffset,
+                            rgbLines, rgbLineLength + out);
+                    if (x + 1 < width) {
+                        final int y = (x + 1) * yPixelStride;
+                        putRgb(yTable[yLine0[y] & 0xFF], rOffset, gOffset, bOffset,
+                                rgbLines, out + BYTES_PER_RGB_PIX);
+                        putRgb(yTable[yLineB[y] & 0xFF], rOffset, gOffset, bOffset,
+                                rgbLines, rgbLineLength + out + BYTES_PER_RGB_PIX);
+                    }
+                }
+                rgb.put(rgbLines, 0, hasRow1 ? rgbLineLength * 2 : rgbLineLength);
+            }
+        } finally {
+            pool.releaseByteArray(yLine0);
+            pool.releaseByteArray(yLine1);
+            pool.releaseByteArray(uLine);
+            pool.releaseByteArray(vLine);
+            pool.releaseByteArray(rgbLines);
+        }
+
+        yBuffer.rewind();
+        uBuffer.rewind();
+        vBuffer.rewind();
+    }
+
+    private static void putRgb(int y, int rOffset, int gOffset, int bOffset, byte[] dst,
+                               int offset) {
+        final byte[] clamp = RgbTables.CLAMP;
+        dst[offset] = clamp[((y + rOffset) >> RgbTables.SCALE_BITS) + RgbTables.CLAMP_OFFSET];
+        dst[offset + 1] = clamp[((y + gOffset) >> RgbTables.SCALE_BITS) + RgbTables.CLAMP_OFFSET];
+        dst[offset + 2] = clamp[((y + bOffset) >> RgbTables.SCALE_BITS) + RgbTables.CLAMP_OFFSET];
+    }
+
+    /**
+     * Copies the pixels of an RGBA_8888 plane into a byte array, without the padding at the end
+     * of each row. If the rows have no padding, the whole remaining buffer is returned.
+     */
+    @NonNull
+    static byte[] rgbaToByteArray(@NonNull ByteBuffer buffer, int pixelStride, int rowStride,
+                                  int width, int height) {
+        final int rowPadding = rowStride - pixelStride * width;
+
+        final byte[] imageBuffer = new byte[buffer.remaining()];
+        buffer.get(imageBuffer);
+        if (rowPadding == 0) {
+            return imageBuffer;
+        }
+
+        final int actualSize = width * height * pixelStride;
+        final byte[] result = new byte[actualSize];
+
+        int srcPos = 0;
+        int dstPos = 0;
+        for (int i = 0; i < height ; ++i) {
+            System.arraycopy(imageBuffer, srcPos, result, dstPos, width * pixelStride);
+            srcPos += rowStride;
+            dstPos += width * pixelStride;
+        }
+        return result;
+    }
+
+    /**
+     * Fixed-point lookup tables for one {@link ImageUtils.ColorMatrix}, in the style of libjpeg's
+     * jdcolor.c. The luma table holds the scaled luma plus the rounding bias, and each chroma
+     * table holds the signed contribution of one chroma sample to one channel, so that a channel
+     * is one addition, one shift and one clamp lookup.
+     */
+    private static final class RgbTables {
+        static final int SCALE_BITS = 16;
+        // The channel values of every matrix lie well within [-CLAMP_OFFSET, 255 + CLAMP_OFFSET].
+        static final int CLAMP_OFFSET = 512;
+        static final byte[] CLAMP = new byte[256 + 2 * CLAMP_OFFSET];
+
+        private static final RgbTables[] TABLES = {
+                new RgbTables(0.299, 0.114, false),
+                new RgbTables(0.299, 0.114, true),
+                new RgbTables(0.2126, 0.0722, false),
+                new RgbTables(0.2126, 0.0722, true),
+                new RgbTables(0.2627, 0.0593, false),
+                new RgbTables(0.2627, 0.0593, true),
+        };
+
+        static {
+            for (int i = 0; i < CLAMP.length; i++) {
+                CLAMP[i] = (byte) Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+            }
+        }
+
+        final int[] mY = new int[256];
+        final int[] mCrR = new int[256];
+        final int[] mCbG = new int[256];
+        final int[] mCrG = new int[256];
+        final int[] mCbB = new int[256];
+
+        /**
+         * @param kr           the luma weight of red.
+         * @param kb           the luma weight of blue.
+         * @param limitedRange whether luma is in [16, 235] and chroma in [16, 240].
+         */
+        private RgbTables(double kr, double kb, boolean limitedRange) {
+            final double kg = 1 - kr - kb;
+            final double yScale = limitedRange ? 255.0 / 219 : 1;
+            final double cScale = limitedRange ? 255.0 / 224 : 1;
+            final int yOffset = limitedRange ? 16 : 0;
+            final double one = 1 << SCALE_BITS;
+            for (int i = 0; i < 256; i++) {
+                int c = i - 128;
+                mY[i] = (int) Math.round((i - yOffset) * yScale * one) + (1 << (SCALE_BITS - 1));
+                mCrR[i] = (int) Math.round(2 * (1 - kr) * cScale * c * one);
+                mCbG[i] = (int) Math.round(-2 * kb * (1 - kb) / kg * cScale * c * one);
+                mCrG[i] = (int) Math.round(-2 * kr * (1 - kr) / kg * cScale * c * one);
+                mCbB[i] = (int) Math.round(2 * (1 - kb) * cScale * c * one);
+            }
+        }
+
+        static RgbTables get(int colorMatrix) {
+            if (colorMatrix < 0 || colorMatrix >= TABLES.length) {
+                throw new IllegalArgumentException("Invalid color matrix: " + colorMatrix);
+            }
+            return TABLES[colorMatrix];
+        }
+    }
+}
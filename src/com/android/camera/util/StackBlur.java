@@ -0,0 +1,326 @@
+/*
+ * Copyright 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Blurs images in place with the stack blur of {@code libjni_stackblur}.
+ *
+ * <p>The blur runs as a horizontal pass over the rows followed by a vertical pass over the
+ * columns. Each pass is split into bands which run concurrently on a fixed pool of worker
+ * threads and on the calling thread. Radii above {@value #MAX_FULL_SIZE_RADIUS} are blurred at
+ * a reduced size, with a proportionally smaller radius, and scaled back up, which looks nearly
+ * the same and costs a fraction of the work.
+ *
+ * <p>This class is thread safe, but concurrent blurs share the same workers. It must be closed
+ * to stop its threads.
+ */
+public final class StackBlur implements Closeable {
+    static {
+        System.loadLibrary("jni_stackblur");
+    }
+
+    /** The largest supported blur radius. */
+    public static final int MAX_RADIUS = 254;
+
+    private static final int MAX_FULL_SIZE_RADIUS = 32;
+
+    private static final int STEP_ROWS = 1;
+    private static final int STEP_COLUMNS = 2;
+
+    private final int mNumThreads;
+    private final ExecutorService mExecutor;
+
+    /**
+     * Creates a blur which splits its work across {@code numThreads} threads, including the
+     * calling thread.
+     */
+    public StackBlur(@IntRange(from = 1) int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be positive, was " + numThreads);
+        }
+        mNumThreads = numThreads;
+        mExecutor = numThreads > 1
+                ? Executors.newFixedThreadPool(numThreads - 1, new WorkerThreadFactory())
+                : null;
+    }
+
+    /** Creates a blur which uses every available processor. */
+    public StackBlur() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Blurs a mutable {@link Bitmap.Config#ARGB_8888} bitmap in place. All four channels are
+     * blurred, which is correct for premultiplied alpha.
+     */
+    public void blur(@NonNull Bitmap bitmap, @IntRange(from = 0, to = MAX_RADIUS) int radius) {
+        checkRadius(radius);
+        if (bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            throw new IllegalArgumentException("Bitmap must be a mutable ARGB_8888 bitmap");
+        }
+        if (radius == 0) {
+            return;
+        }
+
+        long pixels = nativeLockPixels(bitmap);
+        if (pixels == 0) {
+            throw new IllegalStateException("Failed to lock bitmap pixels");
+        }
+        try {
+            blurPixels(pixels, bitmap.getWidth(), bitmap.getHeight(), bitmap.getRowBytes(), 4,
+                    radius);
+        } finally {
+            nativeUnlockPixels(bitmap);
+        }
+    }
+
+    /**
+     * Blurs an image held in a direct buffer in place, starting at the position of the buffer.
+     *
+     * @param pixels      a direct buffer holding the image.
+     * @param width       the width of the image.
+     * @param height      the height of the image.
+     * @param rowStride   the distance between rows, in bytes.
+     * @param pixelStride 1 for an 8-bit plane, or 4 for 32-bit pixels such as RGBA, whose four
+     *                    channels are blurred separately.
+     * @param radius      the blur radius. 0 leaves the image unchanged.
+     */
+    public void blur(@NonNull ByteBuffer pixels, @IntRange(from = 1) int width,
+            @IntRange(from = 1) int height, int rowStride, int pixelStride,
+            @IntRange(from = 0, to = MAX_RADIUS) int radius) {
+        checkRadius(radius);
+        if (!pixels.isDirect() || pixels.isReadOnly()) {
+            throw new IllegalArgumentException("Pixel buffer must be direct and writable");
+        }
+        if (pixelStride != 1 && pixelStride != 4) {
+            throw new IllegalArgumentException("Pixel stride must be 1 or 4, was " + pixelStride);
+        }
+        if (width <= 0 || height <= 0 || rowStride < width * pixelStride) {
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height
+                    + ", row stride " + rowStride);
+        }
+        long size = (long) (height - 1) * rowStride + (long) width * pixelStride;
+        if (pixels.remaining() < size) {
+            throw new IllegalArgumentException(
+                    "Pixel buffer too small: " + pixels.remaining() + " < " + size);
+        }
+        if (radius == 0) {
+            return;
+        }
+
+        blurPixels(nativeGetBufferAddress(pixels) + pixels.position(), width, height, rowStride,
+                pixelStride, radius);
+    }
+
+    /**
+     * Blurs the luma plane of a writable YUV_420_888 {@link Image} in place, such as one
+     * dequeued from an {@link android.media.ImageWriter}. The chroma planes are left as is.
+     */
+    public void blurLuma(@NonNull Image image, @IntRange(from = 0, to = MAX_RADIUS) int radius) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new IllegalArgumentException("Input image format must be YUV_420_888");
+        }
+        Image.Plane luma = image.getPlanes()[0];
+        if (luma.getPixelStride() != 1) {
+            throw new IllegalArgumentException("Luma pixel stride must be 1");
+        }
+        ByteBuffer buffer = luma.getBuffer().duplicate();
+        buffer.clear();
+        blur(buffer, image.getWidth(), image.getHeight(), luma.getRowStride(), 1, radius);
+    }
+
+    /** Stops the worker threads. The blur cannot be used afterwards. */
+    @Override
+    public void close() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    private void blurPixels(long pixels, int width, int height, int rowStride, int channels,
+            int radius) {
+        int factor = (radius + MAX_FULL_SIZE_RADIUS - 1) / MAX_FULL_SIZE_RADIUS;
+        int scaledWidth = Math.max(1, width / factor);
+        int scaledHeight = Math.max(1, height / factor);
+        if (factor == 1 || (scaledWidth == width && scaledHeight == height)) {
+            blurPasses(pixels, width, height, rowStride, channels, radius);
+            return;
+        }
+
+        BufferPool pool = BufferPool.getDefault();
+        int scaledRowStride = scaledWidth * channels;
+        ByteBuffer scratch = pool.acquireDirectBuffer(scaledRowStride * scaledHeight);
+        try {
+            long scaled = nativeGetBufferAddress(scratch);
+            if (nativeScale(pixels, width, height, rowStride, scaled, scaledWidth,
+                    scaledHeight, scaledRowStride, channels) != 0) {
+                throw new IllegalStateException("Failed to scale image down for blurring");
+            }
+            blurPasses(scaled, scaledWidth, scaledHeight, scaledRowStride, channels,
+                    Math.max(1, radius / factor));
+            if (nativeScale(scaled, scaledWidth, scaledHeight, scaledRowStride, pixels, width,
+                    height, rowStride, channels) != 0) {
+                throw new IllegalStateException("Failed to scale blurred image back up");
+            }
+        } finally {
+            pool.releaseDirectBuffer(scratch);
+        }
+    }
+
+    private void blurPasses(long pixels, int width, int height, int rowStride, int channels,
+            int radius) {
+        // Every band of a pass must be done before the next pass reads across the bands.
+        blurPass(pixels, width, height, rowStride, channels, radius, STEP_ROWS, height);
+        blurPass(pixels, width, height, rowStride, channels, radius, STEP_COLUMNS, width);
+    }
+
+    private void blurPass(long pixels, int width, int height, int rowStride, int channels,
+            int radius, int step, int lines) {
+        int numBands = Math.min(mNumThreads, lines);
+        Future<?>[] futures = new Future<?>[numBands - 1];
+        Throwable failure;
+        try {
+            for (int i = 1; i < numBands; i++) {
+                futures[i - 1] = mExecutor.submit(new Band(pixels, width, height, rowStride,
+                        channels, radius, step, lines * i / numBands,
+                        lines * (i + 1) / numBands));
+            }
+            nativeBlurBand(pixels, width, height, rowStride, channels, radius, step, 0,
+                    lines / numBands);
+        } finally {
+            // The workers write into the caller's pixels, so they are always waited for, also
+            // when the caller's band or another worker failed.
+            failure = awaitBands(futures);
+        }
+        if (failure != null) {
+            throw new IllegalStateException("Blur band failed", failure);
+        }
+    }
+
+    /**
+     * Waits for every band that was submitted, and returns the cause of the first band that
+     * failed, or null.
+     */
+    @Nullable
+    private static Throwable awaitBands(@NonNull Future<?>[] futures) {
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            if (future == null) {
+                continue;
+            }
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return failure;
+    }
+
+    private static void checkRadius(int radius) {
+        if (radius < 0 || radius > MAX_RADIUS) {
+            throw new IllegalArgumentException("Radius must be in [0, " + MAX_RADIUS + "], was "
+                    + radius);
+        }
+    }
+
+    /** One band of rows or columns of a blur pass. */
+    private static final class Band implements Runnable {
+        private final long mPixels;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mRowStride;
+        private final int mChannels;
+        private final int mRadius;
+        private final int mStep;
+        private final int mStart;
+        private final int mEnd;
+
+        Band(long pixels, int width, int height, int rowStride, int channels, int radius,
+                int step, int start, int end) {
+            mPixels = pixels;
+            mWidth = width;
+            mHeight = height;
+            mRowStride = rowStride;
+            mChannels = channels;
+            mRadius = radius;
+            mStep = step;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        public void run() {
+            nativeBlurBand(mPixels, mWidth, mHeight, mRowStride, mChannels, mRadius, mStep,
+                    mStart, mEnd);
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "StackBlur-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static native long nativeGetBufferAddress(@NonNull ByteBuffer buffer);
+
+    private static native long nativeLockPixels(@NonNull Bitmap bitmap);
+
+    private static native void nativeUnlockPixels(@NonNull Bitmap bitmap);
+
+    private static native void nativeBlurBand(long pixels, int width, int height, int rowStride,
+            int channels, int radius, int step, int start, int end);
+
+    private static native int nativeScale(long src, int srcWidth, int srcHeight,
+            int srcRowStride, long dst, int dstWidth, int dstHeight, int dstRowStride,
+            int channels);
+}